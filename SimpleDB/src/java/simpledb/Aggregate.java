@@ -7,7 +7,7 @@ import java.util.*;
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -19,6 +19,7 @@ public class Aggregate extends Operator {
     private Aggregator aggregator;//进行聚合操作的类
     private OpIterator aggIterator;//聚合结果的迭代器
     private TupleDesc aggTupleDesc;//聚合结果的属性行
+    private transient TupleBatch batch;//nextBatch复用的batch
 
     /**
      * Constructor.
@@ -132,8 +133,10 @@ public class Aggregate extends Operator {
             //string类型field的聚合
             aggregator = new StringAggregator(gbFieldIndex,gbFieldType,aggFieldIndex,aop);
         }
-        while (child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
+        //按batch读child，聚合值直接从列中取
+        BatchIterator in = TupleBatcher.of(child);
+        for (TupleBatch b = in.nextBatch(); b != null; b = in.nextBatch()) {
+            aggregator.mergeBatch(b);
         }
 
         aggIterator = aggregator.iterator();
@@ -155,6 +158,27 @@ public class Aggregate extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of aggregate results; see {@link #fetchNext}.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (batch == null) {
+            //结果的类型以aggregator为准（如字符串的COUNT是INT），名字同getTupleDesc
+            TupleDesc resultTd = aggIterator.getTupleDesc();
+            Type[] types = new Type[resultTd.numFields()];
+            String[] names = new String[resultTd.numFields()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = resultTd.getFieldType(i);
+                names[i] = aggTupleDesc.getFieldName(i);
+            }
+            batch = new TupleBatch(new TupleDesc(types, names), TupleBatch.DEFAULT_SIZE);
+        }
+        batch.clear();
+        while (!batch.isFull() && aggIterator.hasNext())
+            batch.addTuple(aggIterator.next());
+        return batch.size() == 0 ? null : batch;
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         this.child.rewind();
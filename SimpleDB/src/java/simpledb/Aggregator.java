@@ -76,6 +76,14 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merges every row of a batch into the aggregate, like
+     * mergeTupleIntoGroup does for a tuple.
+     *
+     * @param batch rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatch(TupleBatch batch);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -21,6 +21,7 @@ import simpledb.Predicate.Op;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final PageFile pageFile;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
@@ -35,6 +36,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.pageFile = new PageFile(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -78,13 +80,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = pageFile.read(0, pageBuf);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -98,12 +98,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = pageFile.read(pageOffset(id.getPageNumber()), pageBuf);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -127,14 +122,6 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -148,24 +135,32 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			pageFile.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			pageFile.write(pageOffset(page.getId().getPageNumber()), data);
 		}
 	}
+
+	/**
+	 * Returns the offset in the file of the page with the given page number
+	 * (page numbers start at 1, after the root pointer page)
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo-1) * BufferPool.getPageSize();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((pageFile.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -204,25 +199,31 @@ public class BTreeFile implements DbFile {
 			return (BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
 		}
 		//3.如果不是则说明该页面是内部节点，将页面进行类型转换
-		BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid,dirtypages,pid,Permissions.READ_ONLY);
-		//4.获取内部节点的迭代器
-		Iterator<BTreeEntry> it = internalPage.iterator();
-		//5.对内部节点的entry进行迭代
-		BTreeEntry entry = null;
-		//递归查找f所在的叶节点
-		while(it.hasNext()){
-			entry = it.next();
-			//若f==null则返回最左侧的叶节点
-			if(f == null){
-				return findLeafPage(tid,dirtypages,entry.getLeftChild(),perm,f);
-			}
-			//找到第一个大于（或等于）filed的entry，然后递归其左孩子；
-			if(entry.getKey().compare(Op.GREATER_THAN_OR_EQ,f)){
-				return findLeafPage(tid,dirtypages,entry.getLeftChild(),perm,f);
+		//扫描entry期间pin住该页，防止被驱逐
+		BTreeInternalPage internalPage = (BTreeInternalPage) pinPage(tid,dirtypages,pid,Permissions.READ_ONLY);
+		BTreePageId child = null;
+		try {
+			//4.获取内部节点的迭代器
+			Iterator<BTreeEntry> it = internalPage.iterator();
+			//5.对内部节点的entry进行迭代
+			BTreeEntry entry = null;
+			//查找f所在的子节点
+			while(it.hasNext()){
+				entry = it.next();
+				//若f==null则返回最左侧的叶节点
+				//找到第一个大于（或等于）filed的entry，然后递归其左孩子；
+				if(f == null || entry.getKey().compare(Op.GREATER_THAN_OR_EQ,f)){
+					child = entry.getLeftChild();
+					break;
+				}
 			}
+			//6.如果到了最后一个页面还没找到，则递归其右孩子；
+			if(child == null)
+				child = entry.getRightChild();
+		} finally {
+			unpinPage(tid,pid);
 		}
-		//6.如果到了最后一个页面还没找到，则递归其右孩子；
-		return findLeafPage(tid,dirtypages,entry.getRightChild(),perm,f);
+		return findLeafPage(tid,dirtypages,child,perm,f);
 	}
 	
 	/**
@@ -549,6 +550,38 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Like getPage(), but the page is also pinned in the buffer pool so that it stays cached while
+	 * it is being read. Each call must be matched by a call to unpinPage().
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 */
+	Page pinPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		Page p = Database.getBufferPool().pinPage(tid, pid, perm);
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		if(perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Release a page fetched with pinPage()
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the id of the page
+	 */
+	void unpinPage(TransactionId tid, BTreePageId pid) {
+		Database.getBufferPool().unpinPage(tid, pid);
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -1064,15 +1097,12 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(pageFile.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				pageFile.append(emptyRootPtrData);
+				pageFile.append(emptyLeafData);
 			}
 		}
 
@@ -1128,11 +1158,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				pageFile.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1163,10 +1190,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		pageFile.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1317,10 +1341,26 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		BTreeLeafPage leaf = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = pin(leaf.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the leaf page the iterator moves to so that it is not evicted while 
+	 * being read, and unpin the page it leaves
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpin();
+		curp = null;
+		return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	private void unpin() {
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1335,11 +1375,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
+				unpin();
 				curp = null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1365,6 +1405,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		unpin();
 		curp = null;
 	}
 }
@@ -1402,16 +1443,33 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
+		BTreeLeafPage leaf;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			leaf = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			leaf = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		}
+		curp = pin(leaf.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the leaf page the iterator moves to so that it is not evicted while 
+	 * being read, and unpin the page it leaves
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpin();
+		curp = null;
+		return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	private void unpin() {
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1447,8 +1505,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1470,5 +1527,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		unpin();
+		curp = null;
 	}
 }
@@ -0,0 +1,50 @@
+package simpledb;
+import java.io.Serializable;
+
+/**
+ * BatchIterator is the batch-at-a-time counterpart of {@link OpIterator}:
+ * instead of a Tuple per call, nextBatch returns a {@link TupleBatch} of
+ * rows stored in column vectors. This saves a virtual call and a Tuple per
+ * row, and lets operators work on primitive ints in tight loops.
+ * <p>
+ * SeqScan, Filter, Project, Aggregate and HashEquiJoin implement both
+ * interfaces; an instance is used either through next() or through
+ * nextBatch() between open and close, not both. Their batch
+ * implementations read their children in batches too, through
+ * {@link TupleBatcher#of} if a child only implements OpIterator.
+ * {@link TupleBatcher} and {@link BatchOpIterator} convert between the two
+ * interfaces, so plans can mix them.
+ */
+public interface BatchIterator extends Serializable {
+    /**
+     * Opens the iterator. This must be called before any of the other methods.
+     * @throws DbException when there are problems opening/accessing the database.
+     */
+    public void open() throws DbException, TransactionAbortedException;
+
+    /**
+     * Returns the next batch of rows. The batch may be reused by the next
+     * call, so a caller that keeps rows has to copy them.
+     *
+     * @return the next batch, which is never empty, or null if there are
+     *         no more rows
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+    /**
+     * Resets the iterator to the start.
+     * @throws DbException when rewind is unsupported.
+     */
+    public void rewind() throws DbException, TransactionAbortedException;
+
+    /**
+     * @return the TupleDesc of the rows of the batches
+     */
+    public TupleDesc getTupleDesc();
+
+    /**
+     * Closes the iterator.
+     */
+    public void close();
+}
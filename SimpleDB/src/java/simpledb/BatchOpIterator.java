@@ -0,0 +1,65 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchOpIterator turns a BatchIterator into an OpIterator, returning the
+ * rows of its batches one Tuple at a time. It lets a plan that was built
+ * from batch operators feed operators that only work on Tuples.
+ */
+public class BatchOpIterator extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private transient TupleBatch batch;
+    private transient int row;
+
+    public BatchOpIterator(BatchIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (batch == null || row == batch.size()) {
+            batch = child.nextBatch();
+            row = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(row++);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        if (child instanceof OpIterator)
+            return new OpIterator[] { (OpIterator) child };
+        return new OpIterator[0];
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = TupleBatcher.of(children[0]);
+    }
+}
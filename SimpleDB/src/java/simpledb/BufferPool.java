@@ -4,7 +4,12 @@ import java.io.*;
 
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import static java.lang.Thread.currentThread;
 
 /**
@@ -29,138 +34,115 @@ public class BufferPool {
      constructor instead. */
     public static final int DEFAULT_PAGES = 50;//默认page大小
     private final int numPages;//bufferpool能读取的最大page数
-    private ConcurrentHashMap<PageId,Page> pid2pages;
-    private final ConcurrentHashMap<PageId,Integer> pageAge;
-    //pageAge将pid映射到该页对应的age
-    private int age;
-    private PageLockManager lockManager;
-
-    //自定义锁类
-    private class Lock{
-        TransactionId tid;
-        int lockType;   // 0：读锁，1：写锁
-
-        public Lock(TransactionId tid,int lockType){
-            this.tid = tid;
-            this.lockType = lockType;
-        }
+    //页表：PageId到frame的映射。ConcurrentHashMap按桶分段加锁，查找不加锁
+    private final ConcurrentHashMap<PageId,Frame> pageTable;
+    //已占用的frame数（包括正在读入的），不超过numPages
+    private final AtomicInteger allocated = new AtomicInteger(0);
+    //页面置换策略，决定evictPage驱逐哪一页
+    private final ReplacementPolicy policy;
+    //命中/未命中/驱逐次数
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    //顺序扫描时异步预读后面的page，为null时不预读
+    private volatile ReadAhead readAhead;
+    private final AtomicLong readAheads = new AtomicLong(0);
+    //STEAL模式：池中没有干净页时，可以先写日志再把未提交事务的脏页写回磁盘并驱逐
+    private volatile boolean steal;
+    private final AtomicLong stolen = new AtomicLong(0);
+    //有脏页被偷写回磁盘的事务，回滚时需要按日志undo
+    private final Set<TransactionId> stolenFrom;
+    //锁管理：拿不到锁的事务在对应page的等待队列上阻塞
+    private final LockManager lockManager;
+    //每个事务以写权限取过的page，只有这些page可能被它弄脏
+    //提交/回滚时只需检查这些page，而不用遍历整个bufferpool
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> writtenPages;
+    //每个事务在各page上pin住的frame，每个pin一项；事务结束时释放它忘记unpin的pin
+    //记下frame本身，page被discardPage丢弃后重新读入时，unpin不会减到新frame上
+    private final ConcurrentHashMap<TransactionId,Map<PageId,List<Frame>>> pinnedPages;
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * replacement policy named by the simpledb.ReplacementPolicy system
+     * property ("clock", the default, or "2q").
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
+    public BufferPool(int numPages) {
+        this(numPages, createPolicy(System.getProperty("simpledb.ReplacementPolicy", "clock"), numPages));
     }
 
-    //自定义PageLockManager类实现对锁的管理
-    //功能：申请锁、释放锁、查看指定数据页的指定事务是否有锁
-    private class PageLockManager{
-        //lockMap保存对应page上的所有锁，如果page上没有锁则将其移出lockMap
-        ConcurrentHashMap<PageId,Vector<Lock>> lockMap;
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the policy that chooses which page to evict
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        // some code goes here
+        this.numPages=numPages;
+        pageTable=new ConcurrentHashMap<>(this.numPages);
+        this.policy = policy;
+        lockManager = new LockManager();
+        writtenPages = new ConcurrentHashMap<TransactionId,Set<PageId>>();
+        pinnedPages = new ConcurrentHashMap<TransactionId,Map<PageId,List<Frame>>>();
+        stolenFrom = ConcurrentHashMap.newKeySet();
+        steal = Boolean.getBoolean("simpledb.Steal");
+        if (Boolean.getBoolean("simpledb.ReadAhead"))
+            readAhead = new ReadAhead(this, numPages);
+    }
 
-        public PageLockManager(){
-            lockMap = new ConcurrentHashMap<PageId,Vector<Lock>>();
+    /**
+     * Turn sequential read-ahead on or off. When it is on, the pages that
+     * follow a sequential scan of a HeapFile or of the leaves of a
+     * BTreeFile are loaded by background I/O threads before the scan asks
+     * for them; see {@link ReadAhead}. Off by default, or as set by the
+     * simpledb.ReadAhead system property.
+     */
+    public synchronized void setReadAhead(boolean enabled) {
+        if (enabled && readAhead == null) {
+            readAhead = new ReadAhead(this, numPages);
+        } else if (!enabled && readAhead != null) {
+            readAhead.shutdown();
+            readAhead = null;
         }
+    }
 
-        //申请锁
-        public synchronized boolean acquireLock(PageId pid,TransactionId tid,int lockType){
-            // 1.页面没有锁->直接加锁
-            if(lockMap.get(pid) == null){
-                //根据tid和locktype新建锁
-                Lock lock = new Lock(tid,lockType);
-                Vector<Lock> locks = new Vector<>();
-                locks.add(lock);
-                lockMap.put(pid,locks);
-                return true;
-            }
-            //2.page上有锁->2种情况
-            Vector<Lock> locks = lockMap.get(pid);
-
-            //2-1.tid在pid上有锁
-            for(Lock lock:locks){
-                //遍历现有的锁，找到在该事务上已经有的锁
-                //对应四种情况：
-                //1:想要shared，已有ex；
-                //2:想要ex，已有shared；
-                //3:想要ex，已有ex
-                //4:想要shared，已有shared
-                if(lock.tid == tid){
-                    // 已经有同样的锁 -> 成功
-                    if(lock.lockType == lockType)
-                        return true;
-                    // 已经有写锁 -> 不需要再上读锁，成功
-                    if(lock.lockType == 1)
-                        return true;
-                    // 已经有读锁 -> 升级锁，成功
-                    if(locks.size()==1){
-                        lock.lockType = 1;
-                        return true;
-                    }else{
-                        //对应情况2，不止一个shared锁，则不能上ex锁 -> 失败
-                        return false;
-                    }
-                }
-            }
-            //2-2.tid在pid上无锁 -> 看其他t在pid上的锁
-            //2-2-1.已有的锁是写锁 -> 无法加锁
-            if (locks.get(0).lockType ==1){
-                assert locks.size() == 1 : "exclusive lock can't coexist with other locks";
-                return false;
-            }
+    /** @return true if this buffer pool reads ahead of sequential scans */
+    public boolean isReadAhead() {
+        return readAhead != null;
+    }
 
-            // 2-2-2.要上的锁是读锁 -> 加锁
-            if(lockType == 0){
-                Lock lock = new Lock(tid,0);
-                locks.add(lock);
-                lockMap.put(pid,locks);
+    /**
+     * Turn STEAL mode on or off. In STEAL mode, when no clean page can be
+     * evicted, a page dirtied by a running transaction is written to disk
+     * and evicted, after its before and after images are forced to the
+     * log. If that transaction aborts, its changes are undone from the log,
+     * so STEAL only applies to transactions started with
+     * {@link Transaction#start}. Off (NO STEAL) by default, or as set by
+     * the simpledb.Steal system property.
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
 
-                return true;
-            }
-            // 2-2-3.已有的锁是读锁且要上的锁是写锁
-            return false;
-        }
-        //释放锁
-        public synchronized boolean releaseLock(PageId pid,TransactionId tid){
-            //1.pid上没有锁
-            assert lockMap.get(pid) != null : "page not locked!";
-            //2.pid上有锁 -> pid上是否有tid的锁
-            Vector<Lock> locks = lockMap.get(pid);
-            for(int i=0;i<locks.size();++i){
-                Lock lock = locks.get(i);
-                //pid上有tid的锁
-                if(lock.tid == tid){
-                    locks.remove(lock);
-                    //如果pid上没有锁了，就将它从lockMap上移除
-                    if(locks.size() == 0)
-                        lockMap.remove(pid);
-                    return true;
-                }
-            }
-            //pid上没有tid的锁
-            return false;
-        }
-        //查看指定事务是否在指定页上锁
-        public synchronized boolean holdsLock(PageId pid,TransactionId tid){
-            //1.pid上没有锁
-            if(lockMap.get(pid) == null)
-                return false;
-            //2.pid上有锁
-            Vector<Lock> locks = lockMap.get(pid);
-            //遍历pid
-            for(Lock lock:locks){
-                if(lock.tid == tid){
-                    return true;
-                }
-            }
-            return false;
-        }
+    /** @return true if this buffer pool may evict uncommitted dirty pages */
+    public boolean isSteal() {
+        return steal;
     }
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Create a replacement policy by name.
      *
-     * @param numPages maximum number of pages in this buffer pool.
+     * @param name "clock" or "2q"
+     * @param numPages the number of pages in the buffer pool
      */
-    public BufferPool(int numPages) {
-        // some code goes here
-        this.numPages=numPages;
-        pid2pages=new ConcurrentHashMap<>(this.numPages);
-        pageAge = new ConcurrentHashMap<PageId,Integer>();
-        age = 0;
-        lockManager = new PageLockManager();
+    public static ReplacementPolicy createPolicy(String name, int numPages) {
+        if (name.equalsIgnoreCase("clock"))
+            return new ClockReplacementPolicy(numPages);
+        if (name.equalsIgnoreCase("2q"))
+            return new TwoQReplacementPolicy(numPages);
+        throw new IllegalArgumentException("unknown replacement policy " + name);
     }
 
     public static int getPageSize() {
@@ -195,44 +177,320 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        //先给该page在事务tid上加锁
-        long start = System.currentTimeMillis();//获取开始时间
-        long timeout = new Random().nextInt(2000) + 1000;
-        boolean isLocked = false;//定义一个bool变量来看是否上好锁了，用于防止死锁！
-        while(!isLocked)
-        {
-            long now = System.currentTimeMillis();//获取当前时间
-
-            if(now-start > timeout){
-                //如果超时，则判断死锁，事务中断
-                throw new TransactionAbortedException();
+        return fetchPage(tid,pid,perm,null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage} and pin it, so that
+     * it is not evicted until the transaction calls {@link #unpinPage}.
+     * Pins a transaction still holds when it completes are released.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        Frame[] pinned = new Frame[1];
+        Page page = fetchPage(tid,pid,perm,pinned);
+        Map<PageId,List<Frame>> pins = pinnedPages.get(tid);
+        if(pins == null){
+            pins = new HashMap<PageId,List<Frame>>();
+            Map<PageId,List<Frame>> prev = pinnedPages.putIfAbsent(tid,pins);
+            if(prev != null)
+                pins = prev;
+        }
+        synchronized (pins) {
+            List<Frame> frames = pins.get(pid);
+            if(frames == null){
+                frames = new ArrayList<Frame>(1);
+                pins.put(pid, frames);
+            }
+            frames.add(pinned[0]);
+        }
+        return page;
+    }
+
+    /**
+     * Release one pin tid holds on the page, making it evictable again once
+     * no pins are left.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Map<PageId,List<Frame>> pins = pinnedPages.get(tid);
+        if(pins == null)
+            return;
+        Frame frame;
+        synchronized (pins) {
+            List<Frame> frames = pins.get(pid);
+            if(frames == null)
+                return;
+            frame = frames.remove(frames.size() - 1);
+            if(frames.isEmpty())
+                pins.remove(pid);
+        }
+        unpinFrame(frame);
+    }
+
+    //释放tid持有的所有pin
+    private void releasePins(TransactionId tid) {
+        Map<PageId,List<Frame>> pins = pinnedPages.remove(tid);
+        if(pins == null)
+            return;
+        synchronized (pins) {
+            for(List<Frame> frames : pins.values()){
+                for(Frame frame : frames)
+                    unpinFrame(frame);
             }
-            //若还未给page上tid的锁，则给他上锁
-            if(perm == Permissions.READ_ONLY)
-                //读锁
-                isLocked = lockManager.acquireLock(pid,tid,0);
-            else
-                //写锁
-                isLocked = lockManager.acquireLock(pid,tid,1);
         }
-        //如果这个page已经在缓存里，直接返回即可
-        if(pid2pages.containsKey(pid)){
-            return pid2pages.get(pid);
+    }
+
+    //释放pin住的那个frame上的一个pin，即使它已被驱逐或丢弃
+    private static void unpinFrame(Frame frame) {
+        synchronized (frame) {
+            frame.pins--;
+            assert frame.pins >= 0 : "negative pin count on " + frame.pid;
+        }
+    }
+
+    /** @return the number of pins on the cached page, 0 if it is not cached */
+    public int getPinCount(PageId pid) {
+        Frame frame = pageTable.get(pid);
+        if(frame == null)
+            return 0;
+        synchronized (frame) {
+            return frame.pins;
+        }
+    }
+
+    //pinned不为null时pin住page，并在pinned[0]中返回pin住的frame
+    private Page fetchPage(TransactionId tid, PageId pid, Permissions perm, Frame[] pinned)
+            throws TransactionAbortedException, DbException {
+        //先给该page在事务tid上加锁，拿不到锁时在该page的等待队列上阻塞
+        //若形成死锁，环中最年轻的事务会被中断
+        lockManager.acquireLock(tid, pid, perm);
+        if(perm == Permissions.READ_WRITE)
+            addWrittenPage(tid,pid);
+        while(true){
+            //如果这个page已经在缓存里（或正在被别的线程读入），等它读完直接返回
+            Frame frame = pageTable.get(pid);
+            if(frame != null){
+                boolean ready = frame.loaded.isDone();
+                Page page = awaitPage(frame);
+                if(page != null && pinned != null)
+                    page = pinFrame(frame);
+                if(page != null){
+                    if(pinned != null)
+                        pinned[0] = frame;
+                    hits.incrementAndGet();
+                    policy.pageAccessed(pid);
+                    accessed(page, ready ? ReadAhead.Access.HIT : ReadAhead.Access.WAITED);
+                    return page;
+                }
+                //读入失败或刚被驱逐，重新查找
+                pageTable.remove(pid,frame);
+                continue;
+            }
+            //如果这个page不在缓存里，先占住页表项，保证同一page只有一个线程去读磁盘
+            frame = new Frame(pid);
+            if(pageTable.putIfAbsent(pid,frame) != null)
+                continue;
+            misses.incrementAndGet();
+            Page page = loadFrame(frame,null,pinned != null,true);
+            if(pinned != null)
+                pinned[0] = frame;
+            accessed(page, ReadAhead.Access.MISS);
+            return page;
+        }
+    }
+
+    //通知预读：顺序扫描时在后台读入之后的page
+    private void accessed(Page page, ReadAhead.Access access) {
+        ReadAhead ra = readAhead;
+        if(ra != null)
+            ra.pageAccessed(page, access);
+    }
+
+    /**
+     * Load a page into the buffer pool on behalf of read-ahead, without
+     * locking it; the transaction that uses it later gets the lock then.
+     * Only clean pages are evicted to make room for it.
+     *
+     * @return the cached page
+     */
+    Page prefetchPage(PageId pid) throws DbException {
+        while(true){
+            Frame frame = pageTable.get(pid);
+            if(frame != null){
+                Page page = awaitPage(frame);
+                if(page != null)
+                    return page;
+                pageTable.remove(pid,frame);
+                continue;
+            }
+            frame = new Frame(pid);
+            if(pageTable.putIfAbsent(pid,frame) != null)
+                continue;
+            Page page = loadFrame(frame,null,false,false);
+            readAheads.incrementAndGet();
+            return page;
+        }
+    }
+
+    //在驱逐latch内给frame加一个pin，frame已失效时返回null
+    private static Page pinFrame(Frame frame) {
+        synchronized (frame) {
+            if(frame.evicted)
+                return null;
+            frame.pins++;
+            return frame.page;
         }
-        //如果这个page不在缓存里，就把page放进缓存
-        else{
+    }
+
+    //缓存中存放一个page的槽位
+    private static final class Frame {
+        final PageId pid;
+        //page读入完成后complete，其他请求同一page的线程在此等待
+        final CompletableFuture<Page> loaded = new CompletableFuture<Page>();
+        volatile Page page;
+        //是否占用了allocated中的一个名额，由frame自身的monitor（驱逐latch）保护
+        boolean reserved;
+        //正在使用这一页的pin数，大于0时不能被驱逐；同样由驱逐latch保护
+        int pins;
+        //page每次被换掉或被updateBufferPool标记为脏时加1，同样由驱逐latch保护
+        //写回磁盘后只有版本没变时才能清除脏标记，否则写回期间的修改会丢失
+        long version;
+        //已被驱逐/丢弃或读入失败，不能再使用；只在驱逐latch内被置位
+        volatile boolean evicted;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    //等待frame读入完成，返回其中的page；读入失败或已被驱逐时返回null
+    private static Page awaitPage(Frame frame) {
+        try {
+            frame.loaded.join();
+        } catch (CompletionException | CancellationException e) {
+            return null;
+        }
+        return frame.evicted ? null : frame.page;
+    }
+
+    //缓存中已读入的page，不存在或正在读入时返回null，不阻塞
+    private Page cachedPage(PageId pid) {
+        Frame frame = pageTable.get(pid);
+        if(frame == null || !frame.loaded.isDone() || frame.evicted)
+            return null;
+        return frame.page;
+    }
+
+    //为已放入页表的frame占一个名额并填入page；page为null时从磁盘读入
+    //maySteal为false时即使在STEAL模式下也只驱逐干净页
+    private Page loadFrame(Frame frame, Page page, boolean pin, boolean maySteal) throws DbException {
+        boolean done = false;
+        try {
             //如果page数已满了，则要先赶出去一个页面，才能再新加进去
-            if(pid2pages.size()>=numPages){
-                evictPage();
+            reserveFrame(maySteal);
+            synchronized (frame) {
+                if(frame.evicted)
+                    allocated.decrementAndGet();
+                else
+                    frame.reserved = true;
+                if(pin)
+                    frame.pins++;
+            }
+            if(page == null){
+                //通过pid（PageId）找到这个page
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(frame.pid.getTableId());
+                page = dbFile.readPage(frame.pid);
+            }
+            frame.page = page;
+            done = true;
+        } finally {
+            if(!done){
+                pageTable.remove(frame.pid,frame);
+                retire(frame);
+                frame.loaded.completeExceptionally(new DbException("failed to load page " + frame.pid));
+            }
+        }
+        frame.loaded.complete(page);
+        policy.pageLoaded(frame.pid);
+        return page;
+    }
+
+    //占用一个空闲名额，池满时先驱逐一页，保证缓存的page数不超过numPages
+    private void reserveFrame(boolean maySteal) throws DbException {
+        while(true){
+            int n = allocated.get();
+            if(n < numPages){
+                if(allocated.compareAndSet(n,n + 1))
+                    return;
+            }else{
+                evictPage(maySteal);
             }
-            //通过pid（PageId）找到这个page
-            DbFile dbFile=Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page=dbFile.readPage(pid);
-            //把page存到buffpool里
-            pid2pages.put(pid,page);
-            pageAge.put(pid,age++);
         }
-        return pid2pages.get(pid);
+    }
+
+    //标记frame失效并归还它占用的名额
+    private void retire(Frame frame) {
+        synchronized (frame) {
+            frame.evicted = true;
+            if(frame.reserved){
+                frame.reserved = false;
+                allocated.decrementAndGet();
+            }
+        }
+    }
+
+    //把tid弄脏的page放入缓存，替换已有的版本；在驱逐latch内标记脏页，
+    //这样并发写回这一页的线程不会把它当作干净页
+    private void installPage(Page page, TransactionId tid) throws DbException {
+        PageId pid = page.getId();
+        while(true){
+            Frame frame = pageTable.get(pid);
+            if(frame != null){
+                if(awaitPage(frame) != null){
+                    synchronized (frame) {
+                        if(!frame.evicted){
+                            page.markDirty(true,tid);
+                            frame.page = page;
+                            frame.version++;
+                            return;
+                        }
+                    }
+                }
+                pageTable.remove(pid,frame);
+                continue;
+            }
+            frame = new Frame(pid);
+            if(pageTable.putIfAbsent(pid,frame) != null)
+                continue;
+            page.markDirty(true,tid);
+            loadFrame(frame,page,false,true);
+            return;
+        }
+    }
+
+    //记录tid以写权限取过pid
+    private void addWrittenPage(TransactionId tid, PageId pid) {
+        Set<PageId> pages = writtenPages.get(tid);
+        if(pages == null){
+            pages = ConcurrentHashMap.newKeySet();
+            Set<PageId> prev = writtenPages.putIfAbsent(tid,pages);
+            if(prev != null)
+                pages = prev;
+        }
+        pages.add(pid);
+    }
+
+    //tid可能弄脏的page
+    private Set<PageId> getWrittenPages(TransactionId tid) {
+        Set<PageId> pages = writtenPages.get(tid);
+        return pages == null ? Collections.<PageId>emptySet() : pages;
     }
 
     /**
@@ -248,7 +506,7 @@ public class BufferPool {
     public void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        lockManager.releaseLock(pid,tid);
+        lockManager.releasePage(tid,pid);
     }
 
     /**
@@ -263,24 +521,59 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
+    /**
+     * Acquire a write lock on a page tid writes to disk itself, without
+     * reading it into the buffer pool (see {@link HeapFile.BulkLoader}).
+     * Since the page reaches disk before tid commits, aborting tid needs
+     * the log to undo it.
+     *
+     * @param tid the ID of the transaction writing the page
+     * @param pid the ID of the page
+     */
+    void lockNewPage(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        lockManager.acquireLock(tid, pid, Permissions.READ_WRITE);
+        stolenFrom.add(tid);
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     //判断tid在p上是否有锁
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return lockManager.holdsLock(p,tid);
+        return lockManager.holdsLock(tid,p);
+    }
+    /** @return the number of deadlocks detected by the lock manager */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlockCount();
+    }
+
+    /** @return total time in milliseconds transactions spent blocked on page locks */
+    public long getLockWaitTime() {
+        return lockManager.getLockWaitTime();
     }
+
     //重新加载被tid污染的pages
     private synchronized void restorePages(TransactionId tid) {
-        for (PageId pid : pid2pages.keySet()) {
-            Page page = pid2pages.get(pid);
+        for (PageId pid : getWrittenPages(tid)) {
+            Frame frame = pageTable.get(pid);
+            Page page = cachedPage(pid);
+            if (page == null)
+                continue;
+            int tabId = pid.getTableId();
+            DbFile file =  Database.getCatalog().getDatabaseFile(tabId);
             if (page.isDirty() == tid) {
-                int tabId = pid.getTableId();
-                DbFile file =  Database.getCatalog().getDatabaseFile(tabId);
-                Page pageFromDisk = file.readPage(pid);
+                page = file.readPage(pid);
 
-                pid2pages.put(pid, pageFromDisk);
+                synchronized (frame) {
+                    if (!frame.evicted) {
+                        frame.page = page;
+                        frame.version++;
+                    }
+                }
             }
+            //tid插入时占用的slot又空出来了，free space map中这一页可能还记为满
+            if (file instanceof HeapFile && page instanceof HeapFilePage)
+                ((HeapFile) file).refreshFreeSpace((HeapFilePage) page);
         }
     }
     /**
@@ -294,18 +587,28 @@ public class BufferPool {
             throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        boolean wasStolen = stolenFrom.remove(tid);
         if(commit){
             //如果事务提交了，则将所有page写入磁盘
             flushPages(tid);
+            //已提交的内容成为这些page新的before image，之后的事务回滚时恢复到这里
+            for(PageId pid: getWrittenPages(tid)){
+                Page page = cachedPage(pid);
+                if(page != null)
+                    page.setBeforeImage();
+            }
         }else{
+            //有脏页已被偷写回磁盘，按日志中的before image恢复
+            //（经Transaction回滚时logAbort已经做过了）
+            if(wasStolen && Database.getLogFile().hasBegun(tid))
+                Database.getLogFile().rollback(tid);
             //未提交则从磁盘重新取page
             restorePages(tid);
         }
-        //释放tid在所有page上的锁
-        for(PageId pid:pid2pages.keySet()){
-            if(holdsLock(tid,pid))
-                releasePage(tid,pid);
-        }
+        writtenPages.remove(tid);
+        releasePins(tid);
+        //释放tid在所有page上的锁，并唤醒等待这些锁的事务
+        lockManager.releaseAllLocks(tid);
     }
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
@@ -356,12 +659,9 @@ public class BufferPool {
     //自定义updateBufferPool函数
     private void updateBufferPool(ArrayList<Page> pagelist,TransactionId tid) throws DbException{
         for(Page p:pagelist){
-            p.markDirty(true,tid);
-            //如果当前bufferpool存不下了，就执行evict
-            if(pid2pages.size() > numPages)
-                evictPage();
-            //加入p
-            pid2pages.put(p.getId(),p);
+            addWrittenPage(tid,p.getId());
+            //标记为脏页并加入p，当前bufferpool存不下时会先执行evict
+            installPage(p,tid);
         }
     }
 
@@ -370,13 +670,19 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        //flashAllPages循环调用flushPage
-        for(Page p:pid2pages.values()){
-            flushPage(p.getId());
+        List<DirtyPage> dirty = new ArrayList<DirtyPage>();
+        synchronized (this) {
+            for(PageId pid:pageTable.keySet()){
+                DirtyPage d = dirtyPage(pid,null);
+                if(d != null)
+                    dirty.add(d);
+            }
+            logWrites(dirty);
         }
+        writePages(dirty);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -391,85 +697,239 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         //将Page移出bufferPool
-        pid2pages.remove(pid);
+        Frame frame = pageTable.remove(pid);
+        if(frame != null){
+            retire(frame);
+            policy.pageRemoved(pid);
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
         //将脏页写入磁盘并标记为非脏
-        Page p = pid2pages.get(pid);
-        TransactionId tid = null;
-        // flush it if it is dirty
-        tid = p.isDirty();
-        if(tid != null){
+        List<DirtyPage> dirty;
+        synchronized (this) {
             //isDirty函数：Get the id of the transaction that last dirtied this page, or null if the page is clean
-            // write to disk
-            //写日志（事务，更新前，更新后）
-            Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
-            Database.getLogFile().force();
-            // 将page写到disk里
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
-            //取消标记脏页
-            p.markDirty(false,null);
+            DirtyPage d = dirtyPage(pid,null);
+            // flush it if it is dirty
+            if(d == null)
+                return;
+            dirty = Collections.singletonList(d);
+            logWrites(dirty);
         }
+        writePages(dirty);
+    }
+
+    //要写回磁盘的一个脏页，以及取出它时弄脏它的事务和frame的版本
+    private static final class DirtyPage {
+        final Frame frame;
+        final Page page;
+        final TransactionId tid;
+        final long version;
+
+        DirtyPage(Frame frame, Page page, TransactionId tid, long version) {
+            this.frame = frame;
+            this.page = page;
+            this.tid = tid;
+            this.version = version;
+        }
+    }
+
+    //缓存中被tid（为null时是任意事务）弄脏的pid，不是这样的脏页时返回null
+    private DirtyPage dirtyPage(PageId pid, TransactionId tid) {
+        Frame frame = pageTable.get(pid);
+        if(frame == null || !frame.loaded.isDone())
+            return null;
+        synchronized (frame) {
+            if(frame.evicted)
+                return null;
+            TransactionId dirtier = frame.page.isDirty();
+            if(dirtier == null || (tid != null && dirtier != tid))
+                return null;
+            return new DirtyPage(frame,frame.page,dirtier,frame.version);
+        }
+    }
+
+    //为一批脏页写日志（事务，更新前，更新后），在bufferpool的monitor内调用
+    private void logWrites(List<DirtyPage> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        for(DirtyPage d: pages)
+            log.logWrite(d.tid, d.page.getBeforeImage(), d.page);
     }
 
-    /** Write all pages of the specified transaction to disk.
+    //把已写过日志的一批脏页写入磁盘：先force一次日志（WAL），再把page写到disk里，
+    //这样提交时多个脏页只需一次fsync。在bufferpool的monitor外调用，
+    //等待force时其他事务可以写它们的日志并加入同一次force
+    private void writePages(List<DirtyPage> pages) throws IOException {
+        if(pages.isEmpty())
+            return;
+        Database.getLogFile().force();
+        for(DirtyPage d: pages){
+            Database.getCatalog().getDatabaseFile(d.page.getId().getTableId()).writePage(d.page);
+            //取消标记脏页，除非写回期间page又被修改了
+            synchronized (d.frame) {
+                if(d.frame.version == d.version)
+                    d.page.markDirty(false,null);
+            }
+        }
+    }
+
+    /** Write all pages of the specified transaction to disk. The log
+        records of the pages are written while holding the buffer pool's
+        lock, but the log is forced after releasing it, so that concurrent
+        transactions share forces.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for(Page page: pid2pages.values()){
-            if(page.isDirty() != null && page.isDirty() == tid){
-                flushPage(page.getId());
+        //只需检查tid以写权限取过的page
+        List<DirtyPage> dirty = new ArrayList<DirtyPage>();
+        synchronized (this) {
+            for(PageId pid: getWrittenPages(tid)){
+                DirtyPage d = dirtyPage(pid,tid);
+                if(d != null)
+                    dirty.add(d);
             }
+            logWrites(dirty);
         }
-        /*for (PageId pid : pid2pages.keySet()) {
-            Page page = pid2pages.get(pid);
-            if (page.isDirty() == tid) {
-                flushPage(pid);
-            }
-        }*/
+        writePages(dirty);
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * @param maySteal false if only clean pages may be evicted, even in STEAL mode
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage(boolean maySteal) throws DbException {
         // some code goes here
         // not necessary for lab1
-        assert numPages == pid2pages.size() : "Buffor Pool is not full, not need to evict page";
-        PageId pageId = null;
-        int oldestAge = -1;
-        //找到oldest的非脏页驱逐
-        for (PageId pid: pageAge.keySet()) {
-            Page page = pid2pages.get(pid);
-            //不能驱逐脏页
-            if (page.isDirty() != null)
-                continue;
+        while(true){
+            //由置换策略选出一个非脏且未被pin的页驱逐（不能驱逐脏页）
+            //选中的frame在自身latch内被标记为失效，不会和并发的读入/替换冲突
+            final Frame[] chosen = new Frame[1];
+            PageId pageId = policy.chooseVictim(new ReplacementPolicy.EvictionFilter() {
+                public boolean canEvict(PageId pid) {
+                    Frame frame = pageTable.get(pid);
+                    //页表中已没有这一页，让策略忘掉它
+                    if (frame == null)
+                        return true;
+                    synchronized (frame) {
+                        if (frame.evicted || !frame.loaded.isDone() || frame.pins > 0
+                                || frame.page.isDirty() != null)
+                            return false;
+                        frame.evicted = true;
+                    }
+                    chosen[0] = frame;
+                    return true;
+                }
+            });
             if (pageId == null) {
-                pageId = pid;
-                oldestAge = pageAge.get(pid);
+                //所有页都脏
+                if (!steal || !maySteal)
+                    throw  new DbException("failed to evict page: all pages are either dirty or pinned");
+                if (stealPage())
+                    return;
                 continue;
             }
-            if (pageAge.get(pid) < oldestAge) {
-                pageId = pid;
-                oldestAge = pageAge.get(pid);
+            if (chosen[0] != null) {
+                pageTable.remove(pageId, chosen[0]);
+                retire(chosen[0]);
+                evictions.incrementAndGet();
+                return;
             }
         }
-        //所有页都脏
+    }
+
+    //STEAL：选一个未被pin的脏页，先写日志再写回磁盘，然后驱逐
+    //返回false表示选中的页在写回期间又被使用了，需要重新选
+    private boolean stealPage() throws DbException {
+        final Frame[] chosen = new Frame[1];
+        final TransactionId[] dirtier = new TransactionId[1];
+        PageId pageId = policy.chooseVictim(new ReplacementPolicy.EvictionFilter() {
+            public boolean canEvict(PageId pid) {
+                Frame frame = pageTable.get(pid);
+                if (frame == null)
+                    return true;
+                synchronized (frame) {
+                    if (frame.evicted || !frame.loaded.isDone() || frame.pins > 0)
+                        return false;
+                    //只能偷日志里有BEGIN记录的事务的页，否则回滚时无法undo
+                    TransactionId tid = frame.page.isDirty();
+                    if (tid == null || !Database.getLogFile().hasBegun(tid))
+                        return false;
+                    //写回期间pin住，防止被别的线程驱逐
+                    frame.pins++;
+                    dirtier[0] = tid;
+                }
+                chosen[0] = frame;
+                return true;
+            }
+        });
         if (pageId == null)
-            throw  new DbException("failed to evict page: all pages are either dirty");
-        Page page = pid2pages.get(pageId);
-        //驱逐oldest的非脏页
-        pid2pages.remove(pageId);
-        pageAge.remove(pageId);
+            throw  new DbException("failed to evict page: all pages are either pinned or dirtied by transactions that are not logged");
+        Frame frame = chosen[0];
+        if (frame == null)
+            return false;
+        stolenFrom.add(dirtier[0]);
+        boolean evicted = false;
+        try {
+            //flushPage先force日志（WAL）再写page
+            flushPage(pageId);
+        } catch (IOException e) {
+            throw new DbException("failed to steal page " + pageId + ": " + e.getMessage());
+        } finally {
+            synchronized (frame) {
+                frame.pins--;
+                if (!frame.evicted && frame.pins == 0 && frame.page.isDirty() == null) {
+                    frame.evicted = true;
+                    evicted = true;
+                }
+            }
+            if (!evicted)
+                policy.pageLoaded(pageId);
+        }
+        if (!evicted)
+            return false;
+        pageTable.remove(pageId, frame);
+        retire(frame);
+        evictions.incrementAndGet();
+        stolen.incrementAndGet();
+        return true;
+    }
+
+    /** @return the replacement policy used by this buffer pool */
+    public ReplacementPolicy getReplacementPolicy() {
+        return policy;
+    }
+
+    /** @return the number of getPage calls served from the buffer pool */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** @return the number of pages loaded by read-ahead */
+    public long getReadAheadCount() {
+        return readAheads.get();
+    }
+
+    /** @return the number of pages evicted to make room for other pages */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /** @return the number of uncommitted dirty pages written out and evicted in STEAL mode */
+    public long getStolenPageCount() {
+        return stolen.get();
     }
 
 }
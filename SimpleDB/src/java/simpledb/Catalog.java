@@ -208,7 +208,24 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                //an optional page format and "compressed" may follow the field list, e.g. "slotted compressed"
+                HeapFile.Format pageFormat = HeapFile.Format.FIXED;
+                boolean compressed = false;
+                for (String option : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (option.isEmpty())
+                        continue;
+                    if (option.toLowerCase().equals("compressed")) {
+                        compressed = true;
+                        continue;
+                    }
+                    try {
+                        pageFormat = HeapFile.Format.valueOf(option.toUpperCase());
+                    } catch (IllegalArgumentException ex) {
+                        System.out.println("Unknown page format " + option);
+                        System.exit(0);
+                    }
+                }
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, pageFormat, compressed);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
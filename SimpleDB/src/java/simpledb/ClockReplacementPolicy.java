@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) replacement. Cached pages sit in a ring of frames,
+ * each with a reference bit that is set on every access. To find a victim
+ * the clock hand sweeps the ring, clearing set bits and stopping at the
+ * first evictable page whose bit is already clear. Bookkeeping on a hit is
+ * a single bit write, and an eviction only visits the frames the hand
+ * passes over rather than the whole pool.
+ *
+ * @Threadsafe
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    //环形frame数组，frames[i]为null表示空闲frame
+    private PageId[] frames;
+    private boolean[] referenced;
+    //page所在的frame下标
+    private final HashMap<PageId, Integer> frameOf;
+    private final ArrayDeque<Integer> freeFrames;
+    //已使用过的frame数（包括之后被释放的）
+    private int used;
+    private int hand;
+
+    public ClockReplacementPolicy() {
+        this(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * @param capacity the expected number of pages in the buffer pool; the
+     *   ring grows if more pages are admitted
+     */
+    public ClockReplacementPolicy(int capacity) {
+        frames = new PageId[Math.max(capacity, 1)];
+        referenced = new boolean[frames.length];
+        frameOf = new HashMap<PageId, Integer>();
+        freeFrames = new ArrayDeque<Integer>();
+        used = 0;
+        hand = 0;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            frame = freeFrames.isEmpty() ? newFrame() : freeFrames.poll();
+            frames[frame] = pid;
+            frameOf.put(pid, frame);
+        }
+        referenced[frame] = true;
+    }
+
+    private int newFrame() {
+        if (used == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+            referenced = Arrays.copyOf(referenced, referenced.length * 2);
+        }
+        return used++;
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced[frame] = true;
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames[frame] = null;
+            referenced[frame] = false;
+            freeFrames.add(frame);
+        }
+    }
+
+    public synchronized PageId chooseVictim(EvictionFilter filter) {
+        if (used == 0) {
+            return null;
+        }
+        //最多转两圈：第一圈清掉所有引用位，第二圈一定能找到可驱逐的page（如果有）
+        for (int step = 0; step < 2 * used; step++) {
+            int frame = hand;
+            hand = (hand + 1) % used;
+            PageId pid = frames[frame];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            if (filter.canEvict(pid)) {
+                pageRemoved(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "CLOCK";
+    }
+}
@@ -0,0 +1,341 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedPageFile is a PageFile that stores every page compressed with
+ * Deflater. It is used by HeapFiles created with compression on (see
+ * {@link HeapFile#HeapFile(File, TupleDesc, HeapFile.Format, boolean)}),
+ * which suits large, cold tables: their pages are mostly zero padding
+ * (unused slots, short strings) and shrink a lot.
+ * <p>
+ * To its users the file looks like an ordinary PageFile of uncompressed
+ * pages: offsets and length() count uncompressed bytes, so HeapFile
+ * works with it unchanged. Underneath, the data file holds the compressed
+ * pages one after another, and an index file next to it (the data file's
+ * name plus ".idx") holds the offset and compressed length of each page.
+ * A page that grows past the space it had is written at the end of the
+ * data file; the space it leaves behind is not reused. A page that does
+ * not compress is stored as is.
+ * <p>
+ * map() is not supported; HeapFile falls back to read().
+ *
+ * @Threadsafe
+ */
+public class CompressedPageFile extends PageFile {
+
+    /** Suffix of the index file */
+    public static final String INDEX_SUFFIX = ".idx";
+    //索引项：8字节的offset，4字节的压缩后长度
+    private static final int ENTRY_SIZE = 12;
+    //每个压缩page占的空间按它取整，稍微变大时还能原地写
+    private static final int ALIGN = 64;
+
+    private final PageFile index;
+    private final int pageSize = BufferPool.getPageSize();
+    //读写索引和压缩page的锁：读page时共享，写page时独占
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    //各page的offset和压缩后长度（0表示还没写过，读出来全为0）//protected by lock
+    private long[] offsets;
+    private int[] lengths;
+    //逻辑上的page数，包括reserve了还没写的
+    private int numPages;
+    //数据文件中已经分配出去的字节数
+    private long end;
+
+    private final AtomicLong rawBytes = new AtomicLong(0);
+    private final AtomicLong storedBytes = new AtomicLong(0);
+    private final AtomicLong decompressions = new AtomicLong(0);
+    private final AtomicLong decompressNanos = new AtomicLong(0);
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    public CompressedPageFile(File file) {
+        super(file);
+        this.index = new PageFile(new File(file.getPath() + INDEX_SUFFIX));
+    }
+
+    //第一次使用时读入整个索引 //caller holds lock
+    private void loadIndex() throws IOException {
+        if (offsets != null) {
+            return;
+        }
+        long len = index.length();
+        int n = (int) (len / ENTRY_SIZE);
+        byte[] bytes = new byte[n * ENTRY_SIZE];
+        if (n > 0) {
+            index.read(0, bytes);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        offsets = new long[Math.max(n, 16)];
+        lengths = new int[offsets.length];
+        end = 0;
+        for (int i = 0; i < n; i++) {
+            offsets[i] = buf.getLong();
+            lengths[i] = buf.getInt();
+            if (lengths[i] != 0) {
+                end = Math.max(end, offsets[i] + align(lengths[i]));
+            }
+        }
+        numPages = n;
+        end = Math.max(end, super.length());
+    }
+
+    //加载索引；需要写锁，因为可能修改索引的状态
+    private void ensureLoaded() throws IOException {
+        lock.readLock().lock();
+        try {
+            if (offsets != null) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            loadIndex();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static int align(int length) {
+        return (length + ALIGN - 1) / ALIGN * ALIGN;
+    }
+
+    /**
+     * Returns the uncompressed length of the file, in bytes.
+     */
+    @Override
+    public long length() throws IOException {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return (long) numPages * pageSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int read(long offset, byte[] data) throws IOException {
+        long len = length();
+        if (offset >= len) {
+            return data.length > 0 ? -1 : 0;
+        }
+        int n = (int) Math.min(data.length, len - offset);
+        for (int pos = 0; pos < n; ) {
+            int pgNo = (int) ((offset + pos) / pageSize);
+            int inPage = (int) ((offset + pos) % pageSize);
+            int chunk = Math.min(pageSize - inPage, n - pos);
+            System.arraycopy(readPage(pgNo), inPage, data, pos, chunk);
+            pos += chunk;
+        }
+        return n;
+    }
+
+    //读出并解压第pgNo个page
+    private byte[] readPage(int pgNo) throws IOException {
+        byte[] stored;
+        lock.readLock().lock();
+        try {
+            if (pgNo >= lengths.length || lengths[pgNo] == 0) {
+                return new byte[pageSize];
+            }
+            stored = new byte[lengths[pgNo]];
+            super.read(offsets[pgNo], stored);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (stored.length == pageSize) {
+            return stored;
+        }
+        long start = System.nanoTime();
+        byte[] page = new byte[pageSize];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(stored);
+        try {
+            int n = 0;
+            while (n < pageSize && !inflater.finished()) {
+                int k = inflater.inflate(page, n, pageSize - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != pageSize) {
+                throw new IOException("page " + pgNo + " of " + getFile() + " is corrupt");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("page " + pgNo + " of " + getFile() + " is corrupt", e);
+        }
+        decompressions.incrementAndGet();
+        decompressNanos.addAndGet(System.nanoTime() - start);
+        return page;
+    }
+
+    //压缩一个page；压缩后不更小时原样保存
+    private byte[] compress(byte[] data, int offset) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data, offset, pageSize);
+        deflater.finish();
+        byte[] out = new byte[pageSize];
+        int n = 0;
+        while (!deflater.finished() && n < pageSize - 1) {
+            n += deflater.deflate(out, n, pageSize - 1 - n);
+        }
+        if (!deflater.finished()) {
+            return Arrays.copyOfRange(data, offset, offset + pageSize);
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Writes data at the given uncompressed offset. Pages only partly
+     * covered by data are read and merged first.
+     */
+    @Override
+    public void write(long offset, byte[] data) throws IOException {
+        ensureLoaded();
+        for (int pos = 0; pos < data.length; ) {
+            int pgNo = (int) ((offset + pos) / pageSize);
+            int inPage = (int) ((offset + pos) % pageSize);
+            int chunk = Math.min(pageSize - inPage, data.length - pos);
+            byte[] page;
+            int from;
+            if (chunk == pageSize) {
+                page = data;
+                from = pos;
+            } else {
+                page = readPage(pgNo);
+                System.arraycopy(data, pos, page, inPage, chunk);
+                from = 0;
+            }
+            writePage(pgNo, compress(page, from));
+            pos += chunk;
+        }
+    }
+
+    private void writePage(int pgNo, byte[] stored) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (pgNo >= offsets.length) {
+                int n = Math.max(pgNo + 1, offsets.length * 2);
+                offsets = Arrays.copyOf(offsets, n);
+                lengths = Arrays.copyOf(lengths, n);
+            }
+            long offset = offsets[pgNo];
+            //放不下时写到文件末尾
+            if (lengths[pgNo] == 0 || align(stored.length) > align(lengths[pgNo])) {
+                offset = end;
+                end += align(stored.length);
+            }
+            super.write(offset, stored);
+            offsets[pgNo] = offset;
+            lengths[pgNo] = stored.length;
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            entry.putLong(offset).putInt(stored.length);
+            index.write((long) pgNo * ENTRY_SIZE, entry.array());
+            numPages = Math.max(numPages, pgNo + 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        rawBytes.addAndGet(pageSize);
+        storedBytes.addAndGet(stored.length);
+    }
+
+    @Override
+    public long append(byte[] data) throws IOException {
+        ensureLoaded();
+        long offset;
+        lock.writeLock().lock();
+        try {
+            offset = (long) numPages * pageSize;
+            numPages += (data.length + pageSize - 1) / pageSize;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        write(offset, data);
+        return offset;
+    }
+
+    /**
+     * Reserves pages at the end of the file; they read as zeros until they
+     * are written. bytes is rounded up to whole pages.
+     */
+    @Override
+    public long reserve(long bytes) throws IOException {
+        ensureLoaded();
+        lock.writeLock().lock();
+        try {
+            long offset = (long) numPages * pageSize;
+            numPages += (int) ((bytes + pageSize - 1) / pageSize);
+            return offset;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Memory mapping is not supported for compressed files. */
+    @Override
+    public ByteBuffer map(long offset, int size) {
+        return null;
+    }
+
+    @Override
+    public void force() throws IOException {
+        super.force();
+        index.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            super.close();
+            index.close();
+            offsets = null;
+            lengths = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return uncompressed bytes written divided by compressed bytes
+     *         written, or 1 if nothing has been written yet
+     */
+    public double getCompressionRatio() {
+        long stored = storedBytes.get();
+        return stored == 0 ? 1.0 : (double) rawBytes.get() / stored;
+    }
+
+    /** @return the number of pages decompressed */
+    public long getDecompressionCount() {
+        return decompressions.get();
+    }
+
+    /** @return total time in nanoseconds spent decompressing pages */
+    public long getDecompressionTime() {
+        return decompressNanos.get();
+    }
+}
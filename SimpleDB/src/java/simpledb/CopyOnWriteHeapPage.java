@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * CopyOnWriteHeapPage is the base of the HeapFile page formats that keep
+ * the page's bytes as their only contents, like HeapPage does: the bytes
+ * are kept up to date as tuples change, and tuples are decoded only when
+ * they are read.
+ * <p>
+ * The bytes are shared copy-on-write with the before image, iterators and
+ * callers of getPageData, which get the array itself instead of a copy;
+ * subclasses call {@link #beforeWrite} before they modify {@link #data},
+ * and take the array iterators read from with {@link #snapshot}.
+ *
+ * @see HeapPage
+ */
+abstract class CopyOnWriteHeapPage implements HeapFilePage {
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    //page的字节，格式由子类决定 //protected by this
+    byte[] data;
+    //data也被before image、迭代器或getPageData的调用者引用，修改前要先复制
+    private boolean shared;
+    private TransactionId lastDirtyOperation;
+    private boolean dirty;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Creates a page with data as its contents, padded with zeros to the
+     * page size; data is not copied otherwise, and must not be modified
+     * afterwards.
+     */
+    CopyOnWriteHeapPage(HeapPageId id, byte[] data) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        int pageSize = BufferPool.getPageSize();
+        this.data = data.length < pageSize ? Arrays.copyOf(data, pageSize) : data;
+
+        setBeforeImage();
+    }
+
+    /** Creates a page of the same format over the given bytes */
+    abstract CopyOnWriteHeapPage newPage(byte[] bytes) throws IOException;
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public CopyOnWriteHeapPage getBeforeImage() {
+        byte[] oldDataRef;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
+        }
+        try {
+            return newPage(oldDataRef);
+        } catch (IOException e) {
+            //should never happen -- we parsed it OK before!
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void setBeforeImage() {
+        byte[] bytes = snapshot();
+        synchronized (oldDataLock) {
+            oldData = bytes;
+        }
+    }
+
+    /**
+     * Returns the current bytes of the page, which stay as they are: the
+     * next modification of the page works on a copy.
+     */
+    synchronized byte[] snapshot() {
+        shared = true;
+        return data;
+    }
+
+    //修改data之前调用 //protected by this
+    void beforeWrite() {
+        if (shared) {
+            data = data.clone();
+            shared = false;
+        }
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Returns the contents of this page. Like {@link HeapPage#getPageData},
+     * this is the page's own byte image, which the caller must not modify.
+     */
+    public byte[] getPageData() {
+        return snapshot();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        lastDirtyOperation = dirty ? tid : null;
+        this.dirty = dirty;
+    }
+
+    public TransactionId isDirty() {
+        return this.dirty ? lastDirtyOperation : null;
+    }
+}
@@ -5,12 +5,14 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
     private final Predicate p;
     private OpIterator child;
+    private transient BatchIterator batches;//以batch读child
+    private transient TupleBatch out;//nextBatch复用的batch
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -73,6 +75,27 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of rows that pass the predicate, reading the
+     * child in batches.
+     *
+     * @see Predicate#filter(TupleBatch, TupleBatch)
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (batches == null)
+            batches = TupleBatcher.of(child);
+        TupleBatch b;
+        while ((b = batches.nextBatch()) != null) {
+            if (out == null || out.capacity() < b.size())
+                out = new TupleBatch(getTupleDesc(), Math.max(b.size(), TupleBatch.DEFAULT_SIZE));
+            out.clear();
+            p.filter(b, out);
+            if (out.size() > 0)
+                return out;
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -83,6 +106,7 @@ public class Filter extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         child = children[0];
+        batches = null;
     }
 
 }
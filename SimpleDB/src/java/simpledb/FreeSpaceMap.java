@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have an empty slot, so
+ * that HeapFile.insertTuple can go straight to such a page instead of
+ * locking every page from the start of the file.
+ * <p>
+ * The map is kept in memory only and is a hint: it is built from the page
+ * headers on disk the first time the file is inserted into, and kept up to
+ * date by inserts and deletes. Inserters check the page once they hold its
+ * lock, and tell the map when it turned out to be full.
+ * <p>
+ * To spread concurrent inserters over different pages, each page is
+ * claimed by the transaction that was last sent to it. A page stays with
+ * that transaction while it holds a lock on it; other transactions are
+ * sent to another page, or told to add a new one.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    private final int tableId;
+    //有空slot的page
+    private final BitSet free = new BitSet();
+    //已经记录过的page数，之后的page还需要从磁盘读header
+    private int size = 0;
+    //page -> 最近被分到这个page的事务，以及反向的索引
+    private final HashMap<Integer, TransactionId> claimedBy = new HashMap<Integer, TransactionId>();
+    private final HashMap<TransactionId, Integer> claims = new HashMap<TransactionId, Integer>();
+
+    FreeSpaceMap(int tableId) {
+        this.tableId = tableId;
+    }
+
+    /** Number of pages the map knows about */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Records whether page pgNo has an empty slot. Pages the map does not
+     * know yet are ignored; their header is read when they are added.
+     */
+    synchronized void update(int pgNo, boolean hasSpace) {
+        if (pgNo >= size) {
+            return;
+        }
+        free.set(pgNo, hasSpace);
+        if (!hasSpace) {
+            unclaim(pgNo);
+        }
+    }
+
+    /** Adds the page after the last one the map knows. */
+    synchronized void add(boolean hasSpace) {
+        free.set(size, hasSpace);
+        size++;
+    }
+
+    /**
+     * Picks a page with an empty slot for tid to insert into: the page tid
+     * was sent to before if it still has room, otherwise the first page
+     * with room that no other running inserter holds.
+     *
+     * @return the page number, or -1 if tid should add a new page
+     */
+    synchronized int claim(TransactionId tid) {
+        Integer own = claims.get(tid);
+        if (own != null && free.get(own)) {
+            return own;
+        }
+        for (int pgNo = free.nextSetBit(0); pgNo >= 0; pgNo = free.nextSetBit(pgNo + 1)) {
+            TransactionId owner = claimedBy.get(pgNo);
+            //别的事务还锁着这个page，说明它还在往里插入
+            if (owner == null || owner.equals(tid)
+                    || !Database.getBufferPool().holdsLock(owner, new HeapPageId(tableId, pgNo))) {
+                claim(pgNo, tid);
+                return pgNo;
+            }
+        }
+        return -1;
+    }
+
+    /** Adds a page for tid to insert into. */
+    synchronized int addClaimed(TransactionId tid) {
+        add(true);
+        claim(size - 1, tid);
+        return size - 1;
+    }
+
+    //protected by this
+    private void claim(int pgNo, TransactionId tid) {
+        unclaim(pgNo);
+        Integer prev = claims.put(tid, pgNo);
+        if (prev != null) {
+            claimedBy.remove(prev);
+        }
+        claimedBy.put(pgNo, tid);
+    }
+
+    private void unclaim(int pgNo) {
+        TransactionId owner = claimedBy.remove(pgNo);
+        if (owner != null) {
+            claims.remove(owner);
+        }
+    }
+}
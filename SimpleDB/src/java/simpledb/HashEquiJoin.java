@@ -4,8 +4,26 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin hashes child1 and probes the hash table with the tuples of
+ * child2. If child1 has more than MAP_SIZE tuples, it is a hybrid hash
+ * join: the first MAP_SIZE tuples of child1 stay in memory, the rest are
+ * written to PARTITIONS {@link SpillFile}s by the hash of their join key,
+ * and every tuple of child2 is both probed against memory and written to
+ * its partition. The partitions are then joined pair by pair, so child2 is
+ * only read once, however large child1 is.
+ * <p>
+ * A pair whose build partition is still bigger than MAP_SIZE is split
+ * again into PARTITIONS pairs, by the next PARTITION_BITS bits of the hash,
+ * before it is joined. The spilled rows of child2 are thus read back once
+ * per level of partitioning, which is about log<sub>PARTITIONS</sub> of
+ * the size of child1 over MAP_SIZE when the keys hash evenly (see
+ * {@link #spillLevels}). Splitting can not separate the rows of a single
+ * key: a partition that does not get smaller when it is split is joined
+ * MAP_SIZE build rows at a time instead, reading its probe partition once
+ * for each of them.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate pred;
@@ -13,6 +31,8 @@ public class HashEquiJoin extends Operator {
     private TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
+    //fetchNext第一次调用时才读child1，这样nextBatch也可以从头读
+    transient private boolean started = false;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -50,20 +70,117 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
 
+    private final static int PARTITION_BITS = 4;
+    /** Number of partitions each child is written to when child1 does not fit in memory */
+    public final static int PARTITIONS = 1 << PARTITION_BITS;
+    //32位哈希值最多能分几层
+    private final static int LEVELS = 32 / PARTITION_BITS;
+
+    /**
+     * Returns how many levels of partitioning a join with buildRows rows in
+     * child1 needs, when the keys hash evenly: 0 if child1 fits in memory,
+     * otherwise one more level for every factor of PARTITIONS the
+     * partitions are bigger than MAP_SIZE.
+     */
+    static int spillLevels(double buildRows) {
+        if (buildRows <= MAP_SIZE)
+            return 0;
+        int levels = 1;
+        double partitionRows = (buildRows - MAP_SIZE) / PARTITIONS;
+        while (partitionRows > MAP_SIZE && levels < LEVELS) {
+            partitionRows /= PARTITIONS;
+            levels++;
+        }
+        return levels;
+    }
+
+    //一对要连接的分区：build和probe一侧的文件，以及它按哈希值的哪一段位分出来
+    private static class Partition {
+        final SpillFile build, probe;
+        final int level;
+        //再分一次能让build变小；所有行都是同一个键时不能
+        final boolean splittable;
+
+        Partition(SpillFile build, SpillFile probe, int level, boolean splittable) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+            this.splittable = splittable;
+        }
+    }
+
+    //tuple路径当前的build和probe输入：开始是child1和child2，溢出后依次是各个分区
+    transient private OpIterator build, probeSide;
+    //溢出时child1多出的部分和child2按连接键分区写入的临时文件，读child2时写入
+    transient private SpillFile[] buildParts, probeParts;
+    //child2读完后还没有连接的分区，和正在连接的分区
+    transient private ArrayDeque<Partition> pending;
+    transient private Partition current;
+    //从分区文件读回的child2的行数
+    transient private long spilledProbeReads;
+
+    //哈希表：连接键到键号，每个键的build行按加入顺序串成一条链
+    //first/last按键号存放链的第一行和最后一行，nextRow按行号存放链中的下一行（没有为-1）
+    transient private HashKeyTable keys;
+    transient private int[] first, last, nextRow;
+    transient private int buildRows;
+    //tuple路径按行号存放build一侧的tuple
+    transient private Tuple[] buildTuples;
+
+    //清空哈希表，准备读入build的下一部分
+    private void clearTable() {
+        if (keys == null) {
+            keys = new HashKeyTable(child1.getTupleDesc().getFieldType(pred.getField1()));
+            first = new int[64];
+            last = new int[64];
+            nextRow = new int[TupleBatch.DEFAULT_SIZE];
+        } else {
+            keys.clear();
+        }
+        if (buildTuples != null)
+            Arrays.fill(buildTuples, 0, buildRows, null);
+        buildRows = 0;
+    }
+
+    //把下一个build行加到键号为id的链的末尾，返回它的行号；isNew表示id是新加入的键
+    private int addRow(int id, boolean isNew) {
+        int r = buildRows++;
+        if (r == nextRow.length) {
+            nextRow = Arrays.copyOf(nextRow, r * 2);
+            if (buildTuples != null)
+                buildTuples = Arrays.copyOf(buildTuples, r * 2);
+            if (rowBatch != null) {
+                rowBatch = Arrays.copyOf(rowBatch, r * 2);
+                rowIndex = Arrays.copyOf(rowIndex, r * 2);
+            }
+        }
+        nextRow[r] = -1;
+        if (isNew) {
+            if (id == first.length) {
+                first = Arrays.copyOf(first, id * 2);
+                last = Arrays.copyOf(last, id * 2);
+            }
+            first[id] = r;
+        } else {
+            nextRow[last[id]] = r;
+        }
+        last[id] = r;
+        return r;
+    }
+
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
-            }
-            list.add(t1);
+        if (buildTuples == null)
+            buildTuples = new Tuple[TupleBatch.DEFAULT_SIZE];
+        clearTable();
+        while (build.hasNext()) {
+            t1 = build.next();
+            int n = keys.size();
+            int id = keys.add(t1.getField(pred.getField1()));
+            int r = addRow(id, id == n);
+            buildTuples[r] = t1;
             if (cnt++ == MAP_SIZE)
                 return true;
         }
@@ -71,11 +188,130 @@ public class HashEquiJoin extends Operator {
 
     }
 
+    //第level层用哈希值从高位数第level段PARTITION_BITS位分区；HashKeyTable用的是混合后的低位，所以同一分区的键在表中仍然分散
+    static int partition(int hash, int level) {
+        return ((hash * 0x9E3779B9) >>> (32 - PARTITION_BITS * (level + 1))) & (PARTITIONS - 1);
+    }
+
+    private static int hash(Field f) {
+        return f == null ? 0 : f.hashCode();
+    }
+
+    private void startSpill() {
+        buildParts = new SpillFile[PARTITIONS];
+        probeParts = new SpillFile[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            buildParts[i] = new SpillFile(child1.getTupleDesc());
+            probeParts[i] = new SpillFile(child2.getTupleDesc());
+        }
+    }
+
+    //正在读child2并且需要把它写入分区
+    private boolean spillingProbe() {
+        return buildParts != null;
+    }
+
+    //换到下一对都不为空的分区，作为两条路径的输入；没有了返回false
+    private boolean nextPartition() throws DbException {
+        if (buildParts != null) {
+            //child2读完了，第0层的分区都已写好
+            pending = new ArrayDeque<Partition>();
+            for (int i = 0; i < PARTITIONS; i++)
+                pending.addLast(new Partition(buildParts[i], probeParts[i], 0, true));
+            buildParts = null;
+            probeParts = null;
+        }
+        if (current != null) {
+            closePartition(current);
+            current = null;
+        }
+        while (pending != null && !pending.isEmpty()) {
+            Partition p = pending.removeFirst();
+            if (p.build.size() == 0 || p.probe.size() == 0) {
+                closePartition(p);
+            } else if (p.build.size() > MAP_SIZE && p.splittable && p.level + 1 < LEVELS) {
+                split(p);
+            } else {
+                p.build.open();
+                p.probe.open();
+                build = p.build;
+                probeSide = p.probe;
+                buildIn = p.build;
+                probeIn = p.probe;
+                current = p;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //把一对太大的分区按哈希值的下一段位分成PARTITIONS对，放在其余分区前面先连接
+    private void split(Partition p) throws DbException {
+        int level = p.level + 1;
+        SpillFile[] builds = new SpillFile[PARTITIONS], probes = new SpillFile[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            builds[i] = new SpillFile(child1.getTupleDesc());
+            probes[i] = new SpillFile(child2.getTupleDesc());
+        }
+        copyRows(p.build, builds, pred.getField1(), level);
+        copyRows(p.probe, probes, pred.getField2(), level);
+        int size = p.build.size();
+        closePartition(p);
+        for (int i = PARTITIONS - 1; i >= 0; i--)
+            pending.addFirst(new Partition(builds[i], probes[i], level, builds[i].size() < size));
+    }
+
+    private static void copyRows(SpillFile in, SpillFile[] out, int col, int level) throws DbException {
+        in.open();
+        TupleBatch b;
+        while ((b = in.nextBatch()) != null) {
+            for (int i = 0; i < b.size(); i++)
+                out[partition(hash(b, col, i), level)].addRow(b, i);
+        }
+    }
+
+    private void closePartition(Partition p) {
+        spilledProbeReads += p.probe.getReadCount();
+        p.build.close();
+        p.probe.close();
+    }
+
+    private void closeSpill() {
+        if (buildParts != null) {
+            for (int i = 0; i < PARTITIONS; i++) {
+                buildParts[i].close();
+                probeParts[i].close();
+            }
+        }
+        if (current != null)
+            closePartition(current);
+        if (pending != null) {
+            for (Partition p : pending)
+                closePartition(p);
+        }
+        buildParts = null;
+        probeParts = null;
+        pending = null;
+        current = null;
+    }
+
+    /**
+     * Returns the number of rows of child2 read back from partition files
+     * since the join was opened or rewound: about spillLevels(rows of
+     * child1) times the rows of child2 when child1 does not fit in memory,
+     * and 0 when it does.
+     */
+    public long getSpilledProbeReadCount() {
+        return spilledProbeReads;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        started = false;
+        resetRun();
+        spilledProbeReads = 0;
         super.open();
     }
 
@@ -85,17 +321,17 @@ public class HashEquiJoin extends Operator {
         child1.close();
         this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        resetRun();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        started = false;
+        resetRun();
+        spilledProbeReads = 0;
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -115,7 +351,8 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+        t1 = buildTuples[chain];
+        chain = nextRow[chain];
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -131,32 +368,185 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
+        if (!started) {
+            started = true;
+            build = child1;
+            probeSide = child2;
+            if (!loadMap())
+                return null;
+            if (child1.hasNext()) {
+                // child1 does not fit: partition the rest of it
+                startSpill();
+                while (child1.hasNext()) {
+                    Tuple t = child1.next();
+                    buildParts[partition(hash(t.getField(pred.getField1())), 0)].add(t);
+                }
+            }
+        }
+        if (chain >= 0) {
             return processList();
         }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        while (true) {
+            // loop around the probe side
+            while (probeSide.hasNext()) {
+                t2 = probeSide.next();
+                Field key = t2.getField(pred.getField2());
+                if (spillingProbe())
+                    probeParts[partition(hash(key), 0)].add(t2);
+
+                // if match, create a combined tuple and fill it with the values
+                // from both tuples
+                int id = keys.find(key);
+                if (id < 0)
+                    continue;
+                chain = first[id];
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+                return processList();
+            }
+
+            // the probe side is done: advance the build side, which only has
+            // more if a partition can not be split below MAP_SIZE, or go to
+            // the next pair of partitions
+            if (loadMap()) {
+                probeSide.rewind();
                 continue;
-            listIt = l.iterator();
+            }
+            do {
+                if (!nextPartition())
+                    return null;
+            } while (!loadMap());
+        }
+    }
 
-            return processList();
+    //nextBatch按行号存放build行所在的batch（从输入复制出来）和它在batch中的行
+    transient private ArrayList<TupleBatch> buildBatches;
+    transient private int[] rowBatch, rowIndex;
+    //正在探测的batch、当前行、以及下一个与之匹配的build行（没有为-1）；tuple路径也用chain
+    transient private TupleBatch probe;
+    transient private int probeRow, chain = -1;
+    transient private BatchIterator buildIn, probeIn;
+    transient private TupleBatch out;
+
+    //清空一次执行的状态：分区文件和nextBatch的状态
+    private void resetRun() {
+        closeSpill();
+        keys = null;
+        first = last = nextRow = null;
+        buildTuples = null;
+        buildRows = 0;
+        buildBatches = null;
+        rowBatch = rowIndex = null;
+        probe = null;
+        chain = -1;
+        buildIn = null;
+        probeIn = null;
+    }
 
+    private static int hash(TupleBatch b, int col, int row) {
+        int[] ints = b.getInts(col);
+        if (ints != null)
+            return ints[row];
+        String s = b.getStrings(col)[row];
+        return s == null ? 0 : s.hashCode();
+    }
+
+    //把child1接下来约MAP_SIZE行读入哈希表，child1读完时返回false
+    private boolean loadBuild() throws DbException, TransactionAbortedException {
+        buildBatches = new ArrayList<TupleBatch>();
+        clearTable();
+        if (rowBatch == null) {
+            rowBatch = new int[nextRow.length];
+            rowIndex = new int[nextRow.length];
         }
+        TupleBatch b;
+        while (buildRows < MAP_SIZE && (b = buildIn.nextBatch()) != null) {
+            TupleBatch copy = b.copy();
+            buildBatches.add(copy);
+            int[] ints = copy.getInts(pred.getField1());
+            String[] strs = copy.getStrings(pred.getField1());
+            for (int i = 0; i < copy.size(); i++) {
+                int n = keys.size();
+                int id = ints != null ? keys.add(ints[i]) : keys.add(strs[i]);
+                int r = addRow(id, id == n);
+                rowBatch[r] = buildBatches.size() - 1;
+                rowIndex[r] = i;
+            }
+        }
+        return buildRows > 0;
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    //下一个用来探测的batch；probe一侧读完时换build的下一部分（只有分区太大时才有）或下一对分区，全部完成时返回null
+    private TupleBatch nextProbe() throws DbException, TransactionAbortedException {
+        TupleBatch b = probeIn.nextBatch();
+        while (b == null) {
+            if (loadBuild()) {
+                probeIn.rewind();
+            } else {
+                do {
+                    if (!nextPartition())
+                        return null;
+                } while (!loadBuild());
+            }
+            b = probeIn.nextBatch();
+        }
+        if (spillingProbe()) {
+            for (int i = 0; i < b.size(); i++)
+                probeParts[partition(hash(b, pred.getField2(), i), 0)].addRow(b, i);
         }
+        return b;
+    }
+
+    /**
+     * Returns the next batch of joined rows. Reads child1 in batches into
+     * a hash table of up to about MAP_SIZE rows and probes it with the
+     * batches of child2, partitioning both if child1 does not fit, like
+     * {@link #fetchNext} does with tuples.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (buildBatches == null) {
+            buildIn = TupleBatcher.of(child1);
+            probeIn = TupleBatcher.of(child2);
+            out = new TupleBatch(comboTD, TupleBatch.DEFAULT_SIZE);
+            if (!loadBuild())
+                return null;
+            TupleBatch b = buildIn.nextBatch();
+            if (b != null) {
+                // child1 does not fit: partition the rest of it
+                startSpill();
+                do {
+                    for (int i = 0; i < b.size(); i++)
+                        buildParts[partition(hash(b, pred.getField1(), i), 0)].addRow(b, i);
+                } while ((b = buildIn.nextBatch()) != null);
+            }
+            probe = nextProbe();
+            probeRow = 0;
+            chain = probe == null ? -1 : lookup();
+        }
+        out.clear();
+        while (probe != null) {
+            while (chain >= 0) {
+                if (out.isFull())
+                    return out;
+                out.addJoinedRow(buildBatches.get(rowBatch[chain]), rowIndex[chain], probe, probeRow);
+                chain = nextRow[chain];
+            }
+            if (++probeRow >= probe.size()) {
+                probe = nextProbe();
+                probeRow = 0;
+                if (probe == null)
+                    break;
+            }
+            chain = lookup();
+        }
+        return out.size() == 0 ? null : out;
+    }
 
-        return null;
+    private int lookup() {
+        int[] ints = probe.getInts(pred.getField2());
+        int id = ints != null ? keys.find(ints[probeRow])
+                : keys.find(probe.getStrings(pred.getField2())[probeRow]);
+        return id < 0 ? -1 : first[id];
     }
 
     @Override
@@ -168,6 +558,7 @@ public class HashEquiJoin extends Operator {
     public void setChildren(OpIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
+        resetRun();
     }
     
 }
@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * HashKeyTable maps the keys of a join or a group by, the values of an
+ * INT_TYPE or a STRING_TYPE column, to dense ids 0, 1, 2, ... in the order
+ * they are first added. Callers keep whatever belongs to a key in their
+ * own arrays, indexed by its id.
+ * <p>
+ * It is an open-addressing hash table with linear probing, and its slots
+ * and keys are flat arrays: int keys are stored as they are, string keys
+ * with their hash, which is compared before the strings. Adding or finding
+ * an int or String key allocates nothing, unlike a HashMap, which needs a
+ * boxed key and an entry per key.
+ */
+public class HashKeyTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean strings;
+    //槽中存放id+1，0表示空槽；容量是2的幂，最多用一半
+    private int[] slots;
+    private int mask;
+    private int size;
+    //按id存放：int键本身，或者字符串键的哈希值
+    private int[] keys;
+    //按id存放字符串键，int键时为null
+    private String[] strs;
+
+    /**
+     * Creates an empty table for keys of the given type.
+     */
+    public HashKeyTable(Type type) {
+        this(type, 16);
+    }
+
+    /**
+     * Creates an empty table for keys of the given type, with room for
+     * expected keys before it grows.
+     */
+    public HashKeyTable(Type type, int expected) {
+        this.strings = type == Type.STRING_TYPE;
+        int capacity = 16;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        keys = new int[Math.max(expected, 8)];
+        if (strings)
+            strs = new String[keys.length];
+    }
+
+    /** @return the number of keys, which is the id the next new key gets */
+    public int size() {
+        return size;
+    }
+
+    /** Removes all keys; ids start from 0 again. */
+    public void clear() {
+        Arrays.fill(slots, 0);
+        if (strings)
+            Arrays.fill(strs, 0, size, null);
+        size = 0;
+    }
+
+    //murmur3的fmix32，让相邻的int键分散到不同的槽
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Returns the id of int key, adding it if it is new; a new key gets id
+     * size() - 1 after the call.
+     */
+    public int add(int key) {
+        int i = mix(key) & mask;
+        for (int s; (s = slots[i]) != 0; i = (i + 1) & mask) {
+            if (keys[s - 1] == key)
+                return s - 1;
+        }
+        return insert(i, key, null);
+    }
+
+    /** Returns the id of int key, or -1 if it has not been added. */
+    public int find(int key) {
+        int i = mix(key) & mask;
+        for (int s; (s = slots[i]) != 0; i = (i + 1) & mask) {
+            if (keys[s - 1] == key)
+                return s - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the id of String key, which may be null, adding it if it is
+     * new; a new key gets id size() - 1 after the call.
+     */
+    public int add(String key) {
+        int h = key == null ? 0 : key.hashCode();
+        int i = mix(h) & mask;
+        for (int s; (s = slots[i]) != 0; i = (i + 1) & mask) {
+            if (keys[s - 1] == h && same(strs[s - 1], key))
+                return s - 1;
+        }
+        return insert(i, h, key);
+    }
+
+    /** Returns the id of String key, or -1 if it has not been added. */
+    public int find(String key) {
+        int h = key == null ? 0 : key.hashCode();
+        int i = mix(h) & mask;
+        for (int s; (s = slots[i]) != 0; i = (i + 1) & mask) {
+            if (keys[s - 1] == h && same(strs[s - 1], key))
+                return s - 1;
+        }
+        return -1;
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Like {@link #add(int)} or {@link #add(String)}, for the value of f. */
+    public int add(Field f) {
+        if (strings)
+            return add(f == null ? null : ((StringField) f).getValue());
+        return add(((IntField) f).getValue());
+    }
+
+    /** Like {@link #find(int)} or {@link #find(String)}, for the value of f. */
+    public int find(Field f) {
+        if (strings)
+            return find(f == null ? null : ((StringField) f).getValue());
+        return find(((IntField) f).getValue());
+    }
+
+    /** @return the int key with the given id */
+    public int getInt(int id) {
+        return keys[id];
+    }
+
+    /** @return the String key with the given id */
+    public String getString(int id) {
+        return strs[id];
+    }
+
+    /** @return the key with the given id as a Field */
+    public Field getField(int id) {
+        if (strings)
+            return strs[id] == null ? null : new StringField(strs[id], Type.STRING_LEN);
+        return new IntField(keys[id]);
+    }
+
+    private int insert(int slot, int key, String str) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            if (strings)
+                strs = Arrays.copyOf(strs, size * 2);
+        }
+        keys[size] = key;
+        if (strings)
+            strs[size] = str;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length)
+            rehash();
+        return size - 1;
+    }
+
+    //容量翻倍，按保存的键（字符串为哈希值）重新放入槽
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = mix(keys[id]) & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = id + 1;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -23,7 +24,87 @@ public class HeapFile implements DbFile {
     //java的File类：代表磁盘实际存在的文件和目录
     private File file;
     private TupleDesc tupleDesc;
+    //一直打开的文件channel，并在内存中缓存文件长度
+    private final PageFile pageFile;
+    //为true时通过内存映射读page，见setMemoryMapped
+    private volatile boolean memoryMapped = Boolean.getBoolean("simpledb.MmapHeapFiles");
+    //记录哪些page有空slot，第一次插入时从磁盘上的page header建立
+    //在文件末尾加page都在它的锁里进行
+    private final FreeSpaceMap freeSpace;
+    //page的格式，由创建者决定，不记录在文件里
+    private final Format format;
 
+    /**
+     * The page formats a HeapFile can store its tuples in. The format is
+     * not recorded in the file, so a file has to be opened with the format
+     * it was written in.
+     */
+    public enum Format {
+        /**
+         * {@link HeapPage}: a bitmap header and a fixed size slot per tuple,
+         * as wide as the widest tuple of the table.
+         */
+        FIXED {
+            HeapFilePage newPage(HeapPageId pid, byte[] data) throws IOException {
+                return new HeapPage(pid, data);
+            }
+
+            int headerSize(TupleDesc td) {
+                return HeapPage.getHeaderSize(HeapPage.getNumSlots(td));
+            }
+
+            boolean hasRoom(byte[] header, TupleDesc td) {
+                return HeapPage.hasEmptySlot(header, HeapPage.getNumSlots(td));
+            }
+        },
+        /**
+         * {@link SlottedHeapPage}: a slot directory and records of their
+         * actual length, which saves the padding of short strings.
+         */
+        SLOTTED {
+            HeapFilePage newPage(HeapPageId pid, byte[] data) throws IOException {
+                return new SlottedHeapPage(pid, data);
+            }
+
+            int headerSize(TupleDesc td) {
+                return SlottedHeapPage.HEADER_SIZE;
+            }
+
+            boolean hasRoom(byte[] header, TupleDesc td) {
+                return SlottedHeapPage.hasRoom(header, td);
+            }
+        },
+        /**
+         * {@link PaxHeapPage}: the slots of a HeapPage, with the values of
+         * each column stored together, so that scans decode only the
+         * columns they need.
+         */
+        PAX {
+            HeapFilePage newPage(HeapPageId pid, byte[] data) throws IOException {
+                return new PaxHeapPage(pid, data);
+            }
+
+            int headerSize(TupleDesc td) {
+                return FIXED.headerSize(td);
+            }
+
+            boolean hasRoom(byte[] header, TupleDesc td) {
+                return FIXED.hasRoom(header, td);
+            }
+        };
+
+        /** Creates a page of this format from the bytes of the page on disk */
+        abstract HeapFilePage newPage(HeapPageId pid, byte[] data) throws IOException;
+
+        /** Number of bytes at the start of a page that hasRoom needs */
+        abstract int headerSize(TupleDesc td);
+
+        /**
+         * Returns whether a page has room for another tuple of the largest
+         * size, given the first headerSize(td) bytes of the page.
+         */
+        abstract boolean hasRoom(byte[] header, TupleDesc td);
+    }
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -33,9 +114,31 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, Format.FIXED);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages have
+     * the given format.
+     */
+    public HeapFile(File f, TupleDesc td, Format format) {
+        this(f, td, format, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages have
+     * the given format. If compressed is true the pages are stored
+     * compressed, with an index file next to f; see
+     * {@link CompressedPageFile}. Like the format, this is not recorded in
+     * the file.
+     */
+    public HeapFile(File f, TupleDesc td, Format format, boolean compressed) {
         // some code goes here
         this.file=f;
         this.tupleDesc=td;
+        this.format=format;
+        this.pageFile=compressed ? new CompressedPageFile(f) : new PageFile(f);
+        this.freeSpace=new FreeSpaceMap(getId());
     }
 
     /**
@@ -73,6 +176,46 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /** Returns the format of the pages of this file. */
+    public Format getFormat() {
+        return format;
+    }
+
+    /** Returns whether the pages of this file are stored compressed. */
+    public boolean isCompressed() {
+        return pageFile instanceof CompressedPageFile;
+    }
+
+    /**
+     * Returns the CompressedPageFile this file's pages are stored in, for
+     * its compression statistics, or null if the file is not compressed.
+     */
+    public CompressedPageFile getCompressedPageFile() {
+        return isCompressed() ? (CompressedPageFile) pageFile : null;
+    }
+
+    //页号为pgNo的空page
+    HeapFilePage emptyPage(int pgNo) throws IOException {
+        return format.newPage(new HeapPageId(getId(), pgNo), HeapPage.createEmptyPageData());
+    }
+
+    /**
+     * Turns the memory mapped read path on or off. When it is on, readPage
+     * copies pages out of a memory mapping of the file instead of reading
+     * them with a system call. This only saves the read call: pages keep
+     * their contents in a byte array of their own, so every page read is
+     * still copied once. Writes still go through the file channel, and the
+     * mapping is extended when the file grows. Off by default, unless the
+     * system property simpledb.MmapHeapFiles is set to true.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) throws IllegalArgumentException{
         /**
@@ -80,22 +223,22 @@ public class HeapFile implements DbFile {
          * @throws IllegalArgumentException if the page,xx, does not exist in this file.
          */
         // some code goes here
-        byte[] data=new byte[BufferPool.getPageSize()];
-        HeapPage heapPage=null;//最后返回的page
-
-        int tableId= pid.getTableId();
-        int pgNo=pid.getPageNumber();
-
-        //定义随机访问文件的类对象
-        RandomAccessFile randomAccessFile=null;
+        int pageSize=BufferPool.getPageSize();
+        HeapFilePage heapPage=null;//最后返回的page
 
         try {
-            //定义随机访问文件的类对象
-            randomAccessFile = new RandomAccessFile(file, "r");
-            int pos = pid.getPageNumber() * BufferPool.getPageSize();//计算偏移量
-            randomAccessFile.seek(pos);
-            randomAccessFile.read(data, 0, data.length);
-            heapPage=new HeapPage((HeapPageId) pid,data);
+            long pos = (long) pid.getPageNumber() * pageSize;//计算偏移量
+            byte[] data=new byte[pageSize];
+            ByteBuffer mapped = memoryMapped ? pageFile.map(pos, pageSize) : null;
+            if (mapped != null) {
+                //从映射中复制，省去read的系统调用；page要有自己的byte[]，复制省不掉
+                mapped.get(data);
+            } else {
+                //page不在映射范围内（如超出文件末尾）时退回到普通的read
+                //按位置读，不移动共享的文件指针
+                pageFile.read(pos, data);
+            }
+            heapPage=format.newPage((HeapPageId) pid,data);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -108,10 +251,10 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         //把page中的数据写入data，然后把data写入file
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.seek(page.getId().getPageNumber() * BufferPool.getPageSize());
-            byte[] data = page.getPageData();
-            raf.write(data);
+        byte[] data = page.getPageData();
+        pageFile.write((long) page.getId().getPageNumber() * BufferPool.getPageSize(), data);
+        if (page instanceof HeapFilePage) {
+            freeSpace.update(page.getId().getPageNumber(), ((HeapFilePage) page).getNumEmptySlots() != 0);
         }
     }
 
@@ -120,7 +263,12 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int) (file.length() / BufferPool.getPageSize());
+        //文件长度缓存在pageFile中，不需要每次都stat文件
+        try {
+            return (int) (pageFile.length() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // see DbFile.java for javadocs
@@ -162,36 +310,76 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        HeapPage page  = null;
-
-        // find a non full page
-        for(int i=0;i<numPages();++i){
-            HeapPageId pid = new HeapPageId(getId(),i);
-            page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
-            if(page.getNumEmptySlots()!=0){
+        BufferPool bufferPool = Database.getBufferPool();
+        FreeSpaceMap fsm = freeSpaceMap();
+        HeapFilePage page = null;
+
+        // ask the free space map for a page with an empty slot, instead of
+        // locking every page from the start of the file
+        for (int pgNo = fsm.claim(tid); pgNo >= 0; pgNo = fsm.claim(tid)) {
+            HeapPageId pid = new HeapPageId(getId(), pgNo);
+            boolean held = bufferPool.holdsLock(tid, pid);
+            HeapFilePage p = (HeapFilePage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+            if (p.getNumEmptySlots() != 0) {
+                page = p;
                 break;
             }
-            else{
-                Database.getBufferPool().releasePage(tid,pid);
+            //map里的信息过时了
+            fsm.update(pgNo, false);
+            if (!held) {
+                bufferPool.releasePage(tid, pid);
             }
         }
 
         // if not exist an empty slot, create a new page to store
-        if(page == null || page.getNumEmptySlots() == 0){
-            HeapPageId pid = new HeapPageId(getId(),numPages());
-            byte[] data = HeapPage.createEmptyPageData();
-            HeapPage heapPage = new HeapPage(pid,data);
-            writePage(heapPage);
-            page = (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+        if (page == null) {
+            int pgNo;
+            synchronized (fsm) {
+                syncFreeSpace();
+                pageFile.append(HeapPage.createEmptyPageData());
+                pgNo = fsm.addClaimed(tid);
+            }
+            page = (HeapFilePage) bufferPool.getPage(tid, new HeapPageId(getId(), pgNo), Permissions.READ_WRITE);
         }
 
         page.insertTuple(t);
+        fsm.update(page.getId().getPageNumber(), page.getNumEmptySlots() != 0);
 
         ArrayList<Page> res = new ArrayList<>();
         res.add(page);
         return res;
     }
 
+    //返回free space map，并把它扩展到文件当前所有的page
+    private FreeSpaceMap freeSpaceMap() throws IOException {
+        synchronized (freeSpace) {
+            syncFreeSpace();
+        }
+        return freeSpace;
+    }
+
+    //把map还不知道的page加进去，只读page header就知道有没有空slot //protected by freeSpace
+    private void syncFreeSpace() throws IOException {
+        int numPages = numPages();
+        if (freeSpace.size() >= numPages) {
+            return;
+        }
+        byte[] header = new byte[format.headerSize(tupleDesc)];
+        for (int pgNo = freeSpace.size(); pgNo < numPages; pgNo++) {
+            int n = pageFile.read((long) pgNo * BufferPool.getPageSize(), header);
+            freeSpace.add(n < header.length || format.hasRoom(header, tupleDesc));
+        }
+    }
+
+    /**
+     * Tells the free space map whether the cached page has an empty slot.
+     * BufferPool calls this for the pages an aborted transaction wrote,
+     * once they are back to their committed version, since the map still
+     * counts the slots the transaction filled.
+     */
+    void refreshFreeSpace(HeapFilePage page) {
+        freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots() != 0);
+    }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
@@ -201,8 +389,9 @@ public class HeapFile implements DbFile {
         PageId pid = rid.getPageId();
 
         // delete tuple and mark page as dirty
-        HeapPage page =  (HeapPage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
+        HeapFilePage page =  (HeapFilePage)Database.getBufferPool().getPage(tid,pid,Permissions.READ_WRITE);
         page.deleteTuple(t);
+        freeSpace.update(pid.getPageNumber(), true);
 
         // return res
         ArrayList<Page> res = new ArrayList<>();
@@ -223,6 +412,165 @@ public class HeapFile implements DbFile {
         return pageList;
     }*/
 
+    /**
+     * Returns a BulkLoader that appends tuples to this file on behalf of
+     * tid, bypassing the BufferPool.
+     */
+    public BulkLoader bulkLoader(TransactionId tid) {
+        return new BulkLoader(tid);
+    }
+
+    /**
+     * A BulkLoader appends tuples to a HeapFile in whole new pages, for
+     * loading many tuples at once. The pages are built in memory, and every
+     * BATCH_PAGES pages are appended to the file with a single write.
+     * Instead of a before and after image per page, the log gets one short
+     * record per batch (see {@link LogFile#logBulkLoad}); aborting the
+     * transaction empties the pages again. The transaction holds write
+     * locks on the new pages, so other transactions only see them after it
+     * commits.
+     * <p>
+     * Tuples never go into free space on existing pages. {@link #finish}
+     * must be called before the transaction commits.
+     * <p>
+     * For the FIXED format tuples are encoded straight into the batch;
+     * pages of other formats are built with their insertTuple.
+     */
+    public class BulkLoader {
+        /** Number of pages appended with one write */
+        public static final int BATCH_PAGES = 64;
+
+        private final TransactionId tid;
+        private final int pageSize = BufferPool.getPageSize();
+        private final int numSlots = HeapPage.getNumSlots(tupleDesc);
+        private final int headerSize = HeapPage.getHeaderSize(numSlots);
+        private final int tupleSize = tupleDesc.getSize();
+        //正在构建的一批page，格式同HeapPage.getPageData
+        private final byte[] batch = new byte[BATCH_PAGES * pageSize];
+        //batch中已写满的page数，当前page已用的slot数
+        private int pages = 0;
+        private int slots = 0;
+        private int count = 0;
+        private final ByteBuffer out = ByteBuffer.wrap(batch);
+        //不是FIXED格式时正在构建的page，写满后复制进batch
+        private HeapFilePage current;
+
+        private BulkLoader(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        /**
+         * Adds a tuple. Its record id is not set.
+         *
+         * @throws DbException if the tuple does not match the table
+         */
+        public void add(Tuple t) throws DbException, IOException, TransactionAbortedException {
+            if (!tupleDesc.equals(t.getTupleDesc()))
+                throw new DbException("tupleDesc is mismatch");
+            if (format != Format.FIXED) {
+                addToPage(t);
+                return;
+            }
+            if (slots == numSlots) {
+                pages++;
+                slots = 0;
+                if (pages == BATCH_PAGES) {
+                    write(pages);
+                }
+            }
+            int page = pages * pageSize;
+            //直接编码进它的slot
+            out.position(page + headerSize + slots * tupleSize);
+            for (int i = 0; i < tupleDesc.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+            batch[page + slots / 8] |= (byte) (1 << (slots % 8));
+            slots++;
+            count++;
+        }
+
+        private void addToPage(Tuple t) throws DbException, IOException, TransactionAbortedException {
+            if (current == null) {
+                //页号要到写入时才知道，先随便用一个
+                current = emptyPage(pages);
+            }
+            RecordId rid = t.getRecordId();
+            try {
+                current.insertTuple(t);
+            } catch (DbException full) {
+                closePage();
+                if (pages == BATCH_PAGES) {
+                    write(pages);
+                }
+                current = emptyPage(pages);
+                current.insertTuple(t);
+            } finally {
+                t.setRecordId(rid);
+            }
+            slots++;
+            count++;
+        }
+
+        //把current放进batch
+        private void closePage() {
+            System.arraycopy(current.getPageData(), 0, batch, pages * pageSize, pageSize);
+            current = null;
+            pages++;
+            slots = 0;
+        }
+
+        /**
+         * Appends the pages not written yet and forces the file to disk.
+         *
+         * @return the number of tuples added
+         */
+        public int finish() throws IOException, TransactionAbortedException {
+            boolean room = current != null ? current.getNumEmptySlots() != 0 : slots < numSlots;
+            boolean partial = slots > 0;
+            if (current != null) {
+                closePage();
+            }
+            int n = pages + (slots > 0 ? 1 : 0);
+            int first = write(n);
+            if (partial && room) {
+                //最后一页还有空slot，事务提交后别的插入者可以用
+                freeSpace.update(first + n - 1, true);
+            }
+            slots = 0;
+            pageFile.force();
+            return count;
+        }
+
+        //把batch中的前n个page加到文件末尾，返回第一个page的页号
+        private int write(int n) throws IOException, TransactionAbortedException {
+            if (n == 0) {
+                return numPages();
+            }
+            int first;
+            synchronized (freeSpace) {
+                syncFreeSpace();
+                first = (int) (pageFile.reserve((long) n * pageSize) / pageSize);
+                for (int i = 0; i < n; i++) {
+                    freeSpace.add(false);
+                }
+            }
+            BufferPool bufferPool = Database.getBufferPool();
+            for (int i = 0; i < n; i++) {
+                bufferPool.lockNewPage(tid, new HeapPageId(getId(), first + i));
+            }
+            //先写日志（WAL），再写page
+            Database.getLogFile().logBulkLoad(tid, getId(), first, n);
+            pageFile.write((long) first * pageSize, n == BATCH_PAGES ? batch : Arrays.copyOf(batch, n * pageSize));
+            //有人在page写入前读过它们（空page）
+            for (int i = 0; i < n; i++) {
+                bufferPool.discardPage(new HeapPageId(getId(), first + i));
+            }
+            Arrays.fill(batch, (byte) 0);
+            pages = 0;
+            return first;
+        }
+    }
+
     // see DbFile.java for javadocs
     /**
      * Returns an iterator over all the tuples stored in this DbFile. The
@@ -235,20 +583,36 @@ public class HeapFile implements DbFile {
         // some code goes here
         //iterate through the tuples of each page in the HeapFile
         //use the `BufferPool.getPage()`
-        return new HeapFileIterator(this,tid);
+        return new HeapFileIterator(this,tid,null);
+    }
+
+    /**
+     * Returns an iterator over all the tuples stored in this file, of which
+     * only the fields whose index is set in columns are needed; pages
+     * whose format stores columns separately leave the other fields null.
+     *
+     * @see HeapFilePage#iterator(BitSet)
+     */
+    public DbFileIterator iterator(TransactionId tid, BitSet columns) {
+        return new HeapFileIterator(this,tid,columns);
     }
 
     //自定义HeapFileIterator类
-    private static final class HeapFileIterator implements DbFileIterator{
+    static final class HeapFileIterator implements DbFileIterator{
         private final HeapFile heapFile;
         private final TransactionId tid;
         private Iterator<Tuple> it;//用于遍历tuple
         private int whichPage;
+        private HeapFilePage page;//正在遍历的page
+        private HeapFilePage.BatchReader reader;//fillBatch从page中解码行，null表示还没开始读page
+        private HeapPageId pinned;//正在遍历、被pin住的page
+        private final BitSet columns;//需要的列，null表示全部
 
         //构造函数
-        public HeapFileIterator(HeapFile file,TransactionId tid){
+        public HeapFileIterator(HeapFile file,TransactionId tid,BitSet columns){
             this.heapFile = file;
             this.tid = tid;
+            this.columns = columns;
         }
 
         //根据DbFileIterator提供给的接口来写函数
@@ -256,6 +620,7 @@ public class HeapFile implements DbFile {
         public void open() throws DbException, TransactionAbortedException {
             //打开iterator，加载第一页的tuples，令whichpage=0
             whichPage = 0;
+            reader = null;
             it = getPageTuples(whichPage);
         }
 
@@ -263,8 +628,11 @@ public class HeapFile implements DbFile {
             // The iterator must use the `BufferPool.getPage()` method
             if(pageNumber >= 0 && pageNumber < heapFile.numPages()){
                 HeapPageId pid = new HeapPageId(heapFile.getId(),pageNumber);
-                HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-                return page.iterator();
+                //遍历期间pin住当前page，防止它被驱逐；先释放上一页，小bufferpool也能换页
+                unpin();
+                page = (HeapFilePage)Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+                pinned = pid;
+                return columns == null ? page.iterator() : page.iterator(columns);
             }else{
                 throw new DbException(String.format("heapfile %d does not contain page %d!", pageNumber,heapFile.getId()));
             }
@@ -303,6 +671,35 @@ public class HeapFile implements DbFile {
             return it.next();
         }
 
+        /**
+         * Appends the next rows of the file to batch, decoded straight from
+         * the pages (see {@link HeapFilePage#batchReader}), until the batch
+         * is full or there are no more rows. An open iterator is read
+         * either with next() or with fillBatch, not both.
+         *
+         * @throws IllegalStateException if the iterator is not open
+         */
+        void fillBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+            if(page == null){
+                throw new IllegalStateException("iterator is not open");
+            }
+            while(!batch.isFull()){
+                if(reader == null){
+                    reader = page.batchReader(columns);
+                }
+                if(reader.read(batch)){
+                    continue;
+                }
+                //当前页读完了
+                if(whichPage >= heapFile.numPages() - 1){
+                    return;
+                }
+                whichPage++;
+                it = getPageTuples(whichPage);
+                reader = null;
+            }
+        }
+
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
             // 重新开一遍
@@ -313,6 +710,16 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             it = null;
+            page = null;
+            reader = null;
+            unpin();
+        }
+
+        private void unpin() {
+            if(pinned != null){
+                Database.getBufferPool().unpinPage(tid, pinned);
+                pinned = null;
+            }
         }
     }
 
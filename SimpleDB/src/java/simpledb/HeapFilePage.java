@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.BitSet;
+import java.util.Iterator;
+
+/**
+ * A page of a HeapFile. The pages of a HeapFile all have the format chosen
+ * for the table (see {@link HeapFile.Format}); each format is a class that
+ * implements this interface.
+ * <p>
+ * An array of BufferPool.getPageSize() zero bytes is an empty page in
+ * every format (see {@link HeapPage#createEmptyPageData}).
+ */
+public interface HeapFilePage extends Page {
+
+    public HeapPageId getId();
+
+    /**
+     * Returns how many more tuples fit on this page, assuming they all
+     * have the largest size the table's TupleDesc allows. A page with 0
+     * empty slots may still fit smaller tuples.
+     */
+    public int getNumEmptySlots();
+
+    /**
+     * Adds the specified tuple to the page and sets its RecordId.
+     *
+     * @throws DbException if the page is full or the tupledesc does not
+     *         match
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Delete the specified tuple from the page.
+     *
+     * @throws DbException if this tuple is not on this page, or its slot
+     *         is already empty
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * @return an iterator over all tuples on this page, as they were when
+     *         the iterator was created
+     */
+    public Iterator<Tuple> iterator();
+
+    /**
+     * Like {@link #iterator()}, but only the fields whose index is set in
+     * columns need to be filled in; formats that can skip decoding the
+     * other fields leave them null.
+     */
+    public default Iterator<Tuple> iterator(BitSet columns) {
+        return iterator();
+    }
+
+    /**
+     * Returns a reader that decodes the tuples on this page, as they were
+     * when the reader was created, straight into the column vectors of
+     * TupleBatches, without creating Tuples. Like {@link #iterator(BitSet)},
+     * only the fields in columns (all of them if columns is null) need to
+     * be decoded; formats that skip the others store 0 or null for them.
+     */
+    public default BatchReader batchReader(BitSet columns) {
+        final Iterator<Tuple> it = columns == null ? iterator() : iterator(columns);
+        return new BatchReader() {
+            public boolean read(TupleBatch batch) {
+                while (!batch.isFull() && it.hasNext())
+                    batch.addTuple(it.next());
+                return it.hasNext();
+            }
+        };
+    }
+
+    /** Decodes the rows of a page into TupleBatches; see {@link #batchReader}. */
+    public interface BatchReader {
+        /**
+         * Appends the next rows of the page to batch, until the batch is
+         * full or all rows were appended.
+         *
+         * @return true if the page has rows left
+         */
+        boolean read(TupleBatch batch);
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -11,13 +12,18 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements HeapFilePage {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    final int headerSize;
+    //page的字节：header和tuple都直接在这里读写 //protected by this
+    private byte[] data;
+    //data也被before image或迭代器引用，修改前要先复制一份（copy-on-write）
+    private boolean shared;
+    //已经解码的tuple，迭代到时才从data解码 //protected by this
+    private Tuple[] tuples;
     private TransactionId lastDirtyOperation;
     private boolean dirty;
 
@@ -36,6 +42,10 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * <p>
+     * The page keeps data as its contents without copying it, and decodes
+     * a tuple only when it is read; data must not be modified afterwards.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -44,26 +54,36 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        if (data.length < headerSize) {
+            throw new EOFException("page " + id.getPageNumber() + " is truncated");
         }
-        dis.close();
+        int pageSize = BufferPool.getPageSize();
+        this.data = data.length < pageSize ? Arrays.copyOf(data, pageSize) : data;
 
         setBeforeImage();
     }
 
+    /**
+     * Create a HeapPage from the page's bytes in a buffer, which may be a
+     * region of a memory mapped file (see {@link HeapFile#setMemoryMapped}).
+     * The page is read from the buffer's position on; the buffer itself
+     * is not modified and not referenced after the constructor returns.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, copyPage(data));
+    }
+
+    //映射的内容在文件被写或关闭时会变，不能留着，拷贝出来
+    private static byte[] copyPage(ByteBuffer data) {
+        ByteBuffer buf = data.duplicate();
+        byte[] bytes = new byte[Math.min(buf.remaining(), BufferPool.getPageSize())];
+        buf.get(bytes);
+        return bytes;
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -72,10 +92,31 @@ public class HeapPage implements Page {
         if(numSlots != 0)
             return numSlots;
 
-        return (int)Math.floor((BufferPool.getPageSize() * 8) / (this.td.getSize() * 8 + 1));
+        return getNumSlots(td);
 
     }
 
+    /**
+     * Returns the number of tuple slots on a page of a table whose tuples
+     * are described by td.
+     */
+    static int getNumSlots(TupleDesc td) {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+    }
+
+    /**
+     * Returns whether a page header, as read from disk, has an unused slot
+     * among the first numSlots ones.
+     */
+    static boolean hasEmptySlot(byte[] header, int numSlots) {
+        for (int i = 0; i < numSlots; i++) {
+            if ((header[i / 8] & (1 << (i % 8))) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
@@ -83,8 +124,13 @@ public class HeapPage implements Page {
     private int getHeaderSize() {//返回page中的header大小
 
         // some code goes here
-        return (int)Math.ceil(getNumTuples() / 8.0);
+        return getHeaderSize(getNumTuples());
+
+    }
 
+    /** Returns the number of header bytes of a page with numSlots slots */
+    static int getHeaderSize(int numSlots) {
+        return (numSlots + 7) / 8;
     }
 
     /** Return a view of this page before it was modified
@@ -106,9 +152,23 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
+        byte[] snapshot;
+        synchronized (this) {
+            //不复制，等page下次被修改时再复制
+            shared = true;
+            snapshot = data;
+        }
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = snapshot;
+        }
+    }
+
+    //修改data之前调用 //protected by this
+    private void beforeWrite() {
+        if (shared) {
+            data = data.clone();
+            shared = false;
         }
     }
 
@@ -120,35 +180,38 @@ public class HeapPage implements Page {
         return this.pid;
     }
 
-    /**
-     * Suck up tuples from the source file.
-     */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    //第slotId个tuple，第一次访问时解码；bytes不是当前的data时（迭代器还在读旧的版本）不缓存
+    private synchronized Tuple tuple(byte[] bytes, int slotId) {
+        if (bytes != data) {
+            return readTuple(bytes, slotId);
+        }
+        if (tuples == null) {
+            tuples = new Tuple[numSlots];
         }
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = readTuple(bytes, slotId);
+            tuples[slotId] = t;
+        }
+        return t;
+    }
 
-        // read fields in the tuple
+    /**
+     * Decode the tuple in slot slotId of the page bytes.
+     */
+    private Tuple readTuple(byte[] bytes, int slotId) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes, headerSize + slotId * td.getSize(), td.getSize());
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = td.getFieldType(j).parse(buf);
                 t.setField(j, f);
             }
         } catch (java.text.ParseException e) {
             e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            return null;
         }
 
         return t;
@@ -161,69 +224,19 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * The page keeps its byte image up to date as tuples change, so this
+     * neither serializes nor copies: it returns the image itself, which
+     * stays unchanged since the page copies it before the next change. The
+     * caller must not modify the array.
      *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        //tuple插入时已经编码进data；标记为共享，下次修改前先复制
+        shared = true;
+        return data;
     }
 
     /**
@@ -253,11 +266,18 @@ public class HeapPage implements Page {
         RecordId tid = t.getRecordId();
         HeapPageId hpid = (HeapPageId) tid.getPageId();
         int tupleNum = tid.getTupleNumber();
-        if(!hpid.equals(pid) || !isSlotUsed(tupleNum)){
-            throw new DbException("this tuple is not on this page,or tuple slot is already empty");
+        synchronized (this) {
+            if(!hpid.equals(pid) || !isSlotUsed(tupleNum)){
+                throw new DbException("this tuple is not on this page,or tuple slot is already empty");
+            }
+            beforeWrite();
+            if (tuples != null)
+                tuples[tupleNum] = null;
+            //空slot的内容全为0
+            int offset = headerSize + tupleNum * td.getSize();
+            Arrays.fill(data, offset, offset + td.getSize(), (byte) 0);
+            markSlotUsed(tupleNum,false);
         }
-        tuples[tupleNum] = null;
-        markSlotUsed(tupleNum,false);
     }
 
     /**
@@ -267,13 +287,20 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if (!td.equals(t.getTupleDesc())) throw new DbException("tupleDesc is mismatch");
-        //遍历tuples数组，找到可用的slot
+        //遍历header，找到可用的slot
         for(int i = 0;i < getNumTuples(); i++) {
             if (!isSlotUsed(i)) {
+                beforeWrite();
+                //直接编码进data
+                ByteBuffer buf = ByteBuffer.wrap(data, headerSize + i * td.getSize(), td.getSize());
+                for (int j = 0; j < td.numFields(); j++)
+                    t.getField(j).serialize(buf);
+                if (tuples == null)
+                    tuples = new Tuple[numSlots];
                 tuples[i] = t;
                 //修改tuple的信息，表明它现在存储在这个page上
                 t.setRecordId(new RecordId(pid, i));
@@ -309,22 +336,31 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {//返回page中空slot的数量
         // some code goes here
+        byte[] bytes = bytes();
         int cnt = 0;
         for(int i = 0;i < numSlots; i++){
-            if(!isSlotUsed(i)) cnt++;
+            if(!isSlotUsed(bytes, i)) cnt++;
         }
         return cnt;
     }
 
+    private synchronized byte[] bytes() {
+        return data;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
+        return isSlotUsed(bytes(), i);
+    }
+
+    private static boolean isSlotUsed(byte[] bytes, int i) {
         //判断第i个slot是否为空
         int index = i / 8;
         int offset = i % 8;
-        int bit = header[index]>>offset & 1;
+        int bit = bytes[index]>>offset & 1;
 
         return (bit == 1);
 
@@ -338,7 +374,7 @@ public class HeapPage implements Page {
         // not necessary for lab1
         int byteNum = i / 8;//计算在第几个字节
         int posInByte = i % 8;//计算在该字节的第几位,从右往左算（big-endian）
-        header[byteNum] = editBitInByte(header[byteNum], posInByte, value);//自定义editBitInByte函数实现位运算
+        data[byteNum] = editBitInByte(data[byteNum], posInByte, value);//自定义editBitInByte函数实现位运算
     }
 
     //自己添加的函数
@@ -365,13 +401,67 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {//返回heapPage中所有元组的迭代器（不包括空slot）
         // some code goes here
-        List<Tuple> filledslot = new ArrayList<>();
-        for(int i = 0;i < numSlots; i++){
-            if(isSlotUsed(i)){
-                filledslot.add(tuples[i]);
+        final byte[] snapshot;
+        synchronized (this) {
+            //迭代器看到的是创建时的page，之后的修改会先复制data
+            shared = true;
+            snapshot = data;
+        }
+        return new Iterator<Tuple>() {
+            private int next = nextUsedSlot(snapshot, 0);
+
+            public boolean hasNext() {
+                return next < numSlots;
             }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                //到这里才解码
+                Tuple t = tuple(snapshot, next);
+                next = nextUsedSlot(snapshot, next + 1);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Returns a reader that decodes the tuples on this page straight into
+     * the column vectors of TupleBatches; see {@link HeapFilePage#batchReader}.
+     * All fields are decoded, like {@link #iterator()} does.
+     */
+    public BatchReader batchReader(BitSet columns) {
+        final byte[] snapshot;
+        synchronized (this) {
+            shared = true;
+            snapshot = data;
         }
-        return filledslot.iterator();
+        //每个字段在tuple中的偏移
+        final int[] fieldOffset = new int[td.numFields()];
+        for (int j = 1; j < fieldOffset.length; j++)
+            fieldOffset[j] = fieldOffset[j - 1] + td.getFieldType(j - 1).getLen();
+        return new BatchReader() {
+            private int next = nextUsedSlot(snapshot, 0);
+
+            public boolean read(TupleBatch batch) {
+                int row = batch.size();
+                while (next < numSlots && row < batch.capacity()) {
+                    int offset = headerSize + next * td.getSize();
+                    for (int j = 0; j < fieldOffset.length; j++)
+                        batch.readField(j, row, snapshot, offset + fieldOffset[j]);
+                    row++;
+                    next = nextUsedSlot(snapshot, next + 1);
+                }
+                batch.setSize(row);
+                return next < numSlots;
+            }
+        };
+    }
+
+    private int nextUsedSlot(byte[] bytes, int from) {
+        while (from < numSlots && !isSlotUsed(bytes, from))
+            from++;
+        return from;
     }
 
 }
@@ -17,6 +17,8 @@ public class Insert extends Operator {
     private boolean accessed;//标志位，避免fetchNext无限向下取
     private TupleDesc td;//返回结果（表示影响了多少tuple的一个tuple）的td，fieldType={Type.INT_TYPE},fieldNames={null}
     private int count;//插入的tuple数量
+    //为true且目标表是HeapFile时，绕过BufferPool整页追加，见setBulkLoad
+    private boolean bulkLoad = Boolean.getBoolean("simpledb.BulkLoad");
 
     /**
      * Constructor.
@@ -48,6 +50,22 @@ public class Insert extends Operator {
         this.td = new TupleDesc(types,fieldNames);
     }
 
+    /**
+     * Turns bulk loading on or off. When it is on and the table is a
+     * HeapFile, the tuples are appended to the file in whole new pages by a
+     * {@link HeapFile.BulkLoader} instead of being inserted one by one
+     * through the BufferPool; this is much faster for large inserts, but
+     * leaves free space on existing pages unused. Off by default, unless
+     * the system property simpledb.BulkLoad is set to true.
+     */
+    public void setBulkLoad(boolean bulkLoad) {
+        this.bulkLoad = bulkLoad;
+    }
+
+    public boolean isBulkLoad() {
+        return bulkLoad;
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
         return td;
@@ -58,6 +76,19 @@ public class Insert extends Operator {
         accessed = false;
         child.open();
         super.open();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if(bulkLoad && file instanceof HeapFile){
+            HeapFile.BulkLoader loader = ((HeapFile) file).bulkLoader(t);
+            try{
+                while(child.hasNext()){
+                    loader.add(child.next());
+                }
+                count = loader.finish();
+            } catch (IOException e) {
+                throw new DbException("bulk load failed: " + e.getMessage());
+            }
+            return;
+        }
         while(child.hasNext()){
             Tuple next = child.next();
             try{
@@ -12,95 +12,109 @@ public class IntegerAggregator implements Aggregator {
     private int aggFieldIndex;//聚合字段的序号
     AggHandler aggHandler;//自定义类实现count、sum、max、min、avg
     private Op what;//需要的聚合操作
+    private HashKeyTable groups;//分组字段的值到组号的映射，NO_GROUPING时为null，只有组0
+    private int numGroups;//已有的组数
     private abstract class AggHandler{
-        HashMap<Field,Integer> aggResult;
-        //用于保存聚合后的结果
-        //Filed是用于分组的gbField，gbFieIndex=NO_GROUPING时为null
-        //Integer是聚合结果
-        abstract void handle(Field gbField, IntField aggField);
+        int[] aggResult;
+        //用于保存聚合后的结果，按组号存放
+        //组号是gbField在groups中的id，gbFieIndex=NO_GROUPING时只有组0
+        //组第一次出现时调用init，之后调用handle
+        abstract void init(int group, int value);
+        abstract void handle(int group, int value);
 
         public AggHandler(){
-            aggResult = new HashMap<>();
+            aggResult = new int[16];
         }
-        public HashMap<Field,Integer> getAggResult(){
-            return aggResult;
+        //保证可以存放groups个组
+        void grow(int groups){
+            if(groups > aggResult.length){
+                aggResult = Arrays.copyOf(aggResult, aggResult.length * 2);
+            }
+        }
+        int getAggResult(int group){
+            return aggResult[group];
         }
     }
 
     private class CountHandler extends AggHandler{
 
         @Override
-        void handle(Field gbField, IntField aggField) {
-            if(aggResult.containsKey(gbField)){
-                //对相同gbField对应的Integer计数
-                //HashMap的put方法覆盖键值对
-                //HashMap的get方法获取key对应的value
-                aggResult.put(gbField, aggResult.get(gbField) + 1);
-            } else {
-                aggResult.put(gbField, 1);
-            }
+        void init(int group, int value) {
+            aggResult[group] = 1;
+        }
+
+        @Override
+        void handle(int group, int value) {
+            //对相同组号的Integer计数
+            aggResult[group]++;
         }
     }
 
     private class SumHandler extends AggHandler{
 
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField, aggResult.get(gbField) + value);
-            } else {
-                aggResult.put(gbField, value);
-            }
+        void init(int group, int value) {
+            aggResult[group] = value;
+        }
+
+        @Override
+        void handle(int group, int value) {
+            aggResult[group] += value;
         }
     }
 
     private class MaxHandler extends AggHandler{
 
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField, Math.max(aggResult.get(gbField) , value));
-            } else {
-                aggResult.put(gbField, value);
-            }
+        void init(int group, int value) {
+            aggResult[group] = value;
+        }
+
+        @Override
+        void handle(int group, int value) {
+            aggResult[group] = Math.max(aggResult[group], value);
         }
     }
 
     private class MinHandler extends AggHandler{
 
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if(aggResult.containsKey(gbField)){
-                aggResult.put(gbField, Math.min(aggResult.get(gbField) , value));
-            } else {
-                aggResult.put(gbField, value);
-            }
+        void init(int group, int value) {
+            aggResult[group] = value;
+        }
+
+        @Override
+        void handle(int group, int value) {
+            aggResult[group] = Math.min(aggResult[group], value);
         }
     }
 
     private class AvgHandler extends  AggHandler{
-        HashMap<Field, Integer> sum;
-        HashMap<Field, Integer> count;
+        //aggResult存放和，count存放个数，结果在取出时才计算
+        int[] count;
         private AvgHandler(){
-            sum = new HashMap<>();
-            count = new HashMap<>();
+            count = new int[aggResult.length];
         }
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-
-            if(sum.containsKey(gbField) && count.containsKey(gbField)){
-                sum.put(gbField, sum.get(gbField) + value);
-                count.put(gbField, count.get(gbField) + 1);
-            } else {
-                sum.put(gbField, value);
-                count.put(gbField, 1);
+        void grow(int groups) {
+            super.grow(groups);
+            if(count.length < aggResult.length){
+                count = Arrays.copyOf(count, aggResult.length);
             }
-            int avg = sum.get(gbField) / count.get(gbField);
-            aggResult.put(gbField, avg);
+        }
+        @Override
+        void init(int group, int value) {
+            aggResult[group] = value;
+            count[group] = 1;
+        }
+        @Override
+        void handle(int group, int value) {
+            aggResult[group] += value;
+            count[group]++;
+        }
+        @Override
+        int getAggResult(int group) {
+            return aggResult[group] / count[group];
         }
     }
     /**
@@ -124,6 +138,9 @@ public class IntegerAggregator implements Aggregator {
         gbFieldIndex = gbfield;
         gbFieldType = gbfieldtype;
         aggFieldIndex = afield;
+        if(gbfield != NO_GROUPING){
+            groups = new HashKeyTable(gbfieldtype);
+        }
         switch (what) {
             case MIN:
                 aggHandler = new MinHandler();
@@ -155,14 +172,41 @@ public class IntegerAggregator implements Aggregator {
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
         //把1个tuple加入group，需要在遍历时反复调用
-        Field gbField;
         IntField aggField = (IntField) tup.getField(aggFieldIndex);
-        if(gbFieldIndex == NO_GROUPING){
-            gbField = null;
+        int group = gbFieldIndex == NO_GROUPING ? 0 : groups.add(tup.getField(gbFieldIndex));
+        merge(group, aggField.getValue());
+    }
+
+    //把value加入组号为group的组，group等于numGroups时是新的组
+    private void merge(int group, int value) {
+        if(group == numGroups){
+            numGroups++;
+            aggHandler.grow(numGroups);
+            aggHandler.init(group, value);
         } else {
-            gbField = tup.getField(gbFieldIndex);
+            aggHandler.handle(group, value);
+        }
+    }
+
+    /**
+     * Merge every row of a batch into the aggregate, reading the aggregate
+     * and group-by values straight from the column vectors
+     */
+    public void mergeBatch(TupleBatch batch) {
+        int[] values = batch.getInts(aggFieldIndex);
+        int n = batch.size();
+        if (gbFieldIndex == NO_GROUPING) {
+            for (int i = 0; i < n; i++)
+                merge(0, values[i]);
+        } else if (gbFieldType == Type.INT_TYPE) {
+            int[] gb = batch.getInts(gbFieldIndex);
+            for (int i = 0; i < n; i++)
+                merge(groups.add(gb[i]), values[i]);
+        } else {
+            String[] gb = batch.getStrings(gbFieldIndex);
+            for (int i = 0; i < n; i++)
+                merge(groups.add(gb[i]), values[i]);
         }
-        aggHandler.handle(gbField,aggField);
     }
 
     /**
@@ -178,7 +222,6 @@ public class IntegerAggregator implements Aggregator {
     public OpIterator iterator() {
         // some code goes here
         //结果集中的tuple一般形式为(groupByValue,aggregateValue)
-        HashMap<Field,Integer> result = aggHandler.getAggResult();
         Type[] fieldTypes;
         String[] fieldNames;
         TupleDesc tupleDesc;
@@ -188,27 +231,24 @@ public class IntegerAggregator implements Aggregator {
             fieldTypes = new Type[]{Type.INT_TYPE};
             fieldNames = new String[]{"aggregateValue"};
             tupleDesc = new TupleDesc(fieldTypes,fieldNames);
-            Tuple tuple = new Tuple(tupleDesc);
-            IntField resultField = new IntField(result.get(gbFieldIndex));
-            tuple.setField(0,resultField);
-            tuples.add(tuple);
+            //没有输入时没有结果
+            if(numGroups > 0){
+                Tuple tuple = new Tuple(tupleDesc);
+                IntField resultField = new IntField(aggHandler.getAggResult(0));
+                tuple.setField(0,resultField);
+                tuples.add(tuple);
+            }
         } else {
             //否则TupleDesc为(groupByValue,aggregateValue)
             fieldTypes = new Type[]{gbFieldType,Type.INT_TYPE};
             fieldNames = new String[]{"groupByValue" , "aggregateValue"};
             tupleDesc = new TupleDesc(fieldTypes,fieldNames);
             //分组后，要处理group中每个tuple
-            for(Field field : result.keySet()){
+            for(int group = 0; group < numGroups; group++){
                 Tuple tuple = new Tuple(tupleDesc);
-                if(gbFieldType == Type.INT_TYPE){
-                    IntField gbField = (IntField)field;
-                    tuple.setField(0,gbField);
-                } else {
-                    StringField gbField = (StringField) field;
-                    tuple.setField(0,gbField);
-                }
-
-                IntField resultField = new IntField(result.get(field));
+                tuple.setField(0,groups.getField(group));
+
+                IntField resultField = new IntField(aggHandler.getAggResult(group));
                 tuple.setField(1,resultField);
                 tuples.add(tuple);
             }
@@ -34,6 +34,14 @@ public class JoinOptimizer {
      * inner/outer here -- because OpIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * lj is instantiated with the algorithm the optimizer chose for it (see
+     * {@link LogicalJoinNode#algorithm}); a {@link SortMergeJoin} sorts only
+     * the children that are not already sorted on their join field (see
+     * {@link #sortedOn(OpIterator)}). If no algorithm was chosen, joins whose
+     * children are both sorted on their join fields are instantiated as a
+     * SortMergeJoin, other equality joins as a {@link HashEquiJoin} and the
+     * rest as a {@link Join}.
      * 
      * @param lj
      *            The join being considered
@@ -68,7 +76,36 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        String name1 = plan1.getTupleDesc().getFieldName(t1id);
+        String name2 = plan2.getTupleDesc().getFieldName(t2id);
+        boolean sorted1 = sortedOn(plan1).contains(name1);
+        boolean sorted2 = sortedOn(plan2).contains(name2);
+        LogicalJoinNode.Algorithm algorithm = lj.algorithm;
+        if (algorithm == null) {
+            //没有代价估计时，两边已经有序就合并，这样不用排序也不用哈希表
+            if (canMergeJoin(lj) && sorted1 && sorted2)
+                algorithm = LogicalJoinNode.Algorithm.SORT_MERGE;
+            else if (canHashJoin(lj))
+                algorithm = LogicalJoinNode.Algorithm.HASH;
+            else
+                algorithm = LogicalJoinNode.Algorithm.NESTED_LOOPS;
+        }
+
+        switch (algorithm) {
+        case SORT_MERGE:
+            //只对还没有序的一边排序
+            if (!sorted1)
+                plan1 = new OrderBy(t1id, true, plan1);
+            if (!sorted2)
+                plan2 = new OrderBy(t2id, true, plan2);
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2);
+            break;
+        default:
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
@@ -102,19 +139,160 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2,
+                isIndexedOn(j.t1Alias, j.f1PureName),
+                isIndexedOn(j.t2Alias, j.f2PureName));
+    }
+
+    /**
+     * Estimate the cost of a join, given whether each side is already
+     * sorted on its join field: the cost of the cheapest algorithm that can
+     * compute j (see {@link #chooseAlgorithm}).
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
-        } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+        }
+        switch (chooseAlgorithm(j, card1, card2, cost1, cost2, sorted1, sorted2)) {
+        case SORT_MERGE:
+            return estimateSortMergeJoinCost(j.p, card1, card2, cost1, cost2, sorted1, sorted2);
+        case HASH:
+            return estimateHashJoinCost(card1, card2, cost1, cost2);
+        default:
+            return estimateNestedLoopJoinCost(card1, card2, cost1, cost2);
         }
     }
 
+    /**
+     * Return the algorithm with the lowest estimated cost for j, among the
+     * ones that can compute it; a sort-merge join wins ties, since it needs
+     * no hash table when both sides are sorted.
+     */
+    static LogicalJoinNode.Algorithm chooseAlgorithm(LogicalJoinNode j,
+            int card1, int card2, double cost1, double cost2,
+            boolean sorted1, boolean sorted2) {
+        LogicalJoinNode.Algorithm best = LogicalJoinNode.Algorithm.NESTED_LOOPS;
+        double bestCost = estimateNestedLoopJoinCost(card1, card2, cost1, cost2);
+        if (canHashJoin(j)) {
+            double cost = estimateHashJoinCost(card1, card2, cost1, cost2);
+            if (cost < bestCost) {
+                best = LogicalJoinNode.Algorithm.HASH;
+                bestCost = cost;
+            }
+        }
+        if (canMergeJoin(j) && estimateSortMergeJoinCost(j.p, card1, card2,
+                cost1, cost2, sorted1, sorted2) <= bestCost)
+            best = LogicalJoinNode.Algorithm.SORT_MERGE;
+        return best;
+    }
+
+    /**
+     * Estimate the cost of a nested-loops {@link Join}: one scan of the
+     * left-hand side, one scan of the right-hand side per left-hand tuple,
+     * and one predicate application per pair of tuples.
+     */
+    public static double estimateNestedLoopJoinCost(int card1, int card2,
+            double cost1, double cost2) {
+        return cost1 + card1 * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * Estimate the cost of a {@link HashEquiJoin}: one scan of each side,
+     * one insert per left-hand tuple and one probe per right-hand tuple. If
+     * the left-hand side has more than HashEquiJoin.MAP_SIZE tuples, the
+     * tuples beyond MAP_SIZE and all of the right-hand side are also
+     * written to partitions, read back and hashed once more for every level
+     * of partitioning the join needs, assuming the keys hash evenly.
+     */
+    public static double estimateHashJoinCost(int card1, int card2,
+            double cost1, double cost2) {
+        double cost = cost1 + card1 + cost2 + card2;
+        int levels = HashEquiJoin.spillLevels(card1);
+        if (levels > 0) {
+            double spilled = (double) (card1 - HashEquiJoin.MAP_SIZE) / card1;
+            cost += levels * (2 * spilled * cost1 + 2 * cost2 + (card1 - HashEquiJoin.MAP_SIZE) + card2);
+        }
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of a {@link SortMergeJoin}: one scan of each side,
+     * an in-memory sort (about n log n comparisons) of each side that is
+     * not already sorted on its join field, and one comparison per tuple to
+     * merge them. Other joins than EQUALS also walk a range of the
+     * right-hand side per left-hand tuple, on average half of it, or all of
+     * it for NOT_EQUALS.
+     */
+    public static double estimateSortMergeJoinCost(Predicate.Op op,
+            int card1, int card2, double cost1, double cost2,
+            boolean sorted1, boolean sorted2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        if (!sorted1)
+            cost += sortCost(card1);
+        if (!sorted2)
+            cost += sortCost(card2);
+        if (op == Predicate.Op.NOT_EQUALS)
+            cost += (double) card1 * card2;
+        else if (op != Predicate.Op.EQUALS)
+            cost += (double) card1 * card2 / 2;
+        return cost;
+    }
+
+    private static double sortCost(int card) {
+        return card <= 1 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * Return true if j can be computed by a HashEquiJoin, i.e. it is an
+     * equality join of two tables
+     */
+    static boolean canHashJoin(LogicalJoinNode j) {
+        return j.p == Predicate.Op.EQUALS && !(j instanceof LogicalSubplanJoinNode);
+    }
+
+    /**
+     * Return true if j can be computed by a SortMergeJoin, i.e. it is a
+     * join of two tables with any predicate but LIKE
+     */
+    static boolean canMergeJoin(LogicalJoinNode j) {
+        return j.p != Predicate.Op.LIKE && !(j instanceof LogicalSubplanJoinNode);
+    }
+
+    /**
+     * Return the names of the fields the tuples of plan are known to be in
+     * ascending order of: a SeqScan or BTreeScan of a BTreeFile is sorted
+     * on its key field, an ascending OrderBy on its field, a SortMergeJoin
+     * on join field1 (and on join field2 if it is an equality join), and a
+     * Filter, Project or nested-loops Join keep the order of their (outer)
+     * child. Nothing is known about the order of other operators.
+     */
+    public static Set<String> sortedOn(OpIterator plan) {
+        Set<String> fields = new HashSet<String>();
+        if (plan instanceof SeqScan || plan instanceof BTreeScan) {
+            String table = plan instanceof SeqScan ? ((SeqScan) plan).getTableName()
+                    : ((BTreeScan) plan).getTableName();
+            DbFile f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(table));
+            if (f instanceof BTreeFile)
+                fields.add(plan.getTupleDesc().getFieldName(((BTreeFile) f).keyField()));
+        } else if (plan instanceof OrderBy) {
+            if (((OrderBy) plan).isASC())
+                fields.add(((OrderBy) plan).getOrderFieldName());
+        } else if (plan instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) plan;
+            fields.add(j.getJoinField1Name());
+            if (j.getJoinPredicate().getOperator() == Predicate.Op.EQUALS)
+                fields.add(j.getJoinField2Name());
+        } else if (plan instanceof Join || plan instanceof Filter
+                || plan instanceof Project) {
+            fields.addAll(sortedOn(((Operator) plan).getChildren()[0]));
+        }
+        return fields;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -155,9 +333,26 @@ public class JoinOptimizer {
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
+        double card;
         // some code goes here
-        return card <= 0 ? 1 : card;
+        if (joinOp == Predicate.Op.EQUALS) {
+            //主键上的等值连接：另一边的每个tuple最多匹配一个
+            if (t1pkey && t2pkey)
+                card = Math.min(card1, card2);
+            else if (t1pkey)
+                card = card2;
+            else if (t2pkey)
+                card = card1;
+            else
+                card = Math.max(card1, card2);
+        } else if (joinOp == Predicate.Op.NOT_EQUALS) {
+            card = (double) card1 * card2;
+        } else {
+            //范围连接按叉积的30%估计
+            card = 0.3 * card1 * card2;
+        }
+        card = Math.min(card, Integer.MAX_VALUE);
+        return card <= 0 ? 1 : (int) card;
     }
 
     /**
@@ -196,6 +391,12 @@ public class JoinOptimizer {
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * Each returned join has {@link LogicalJoinNode#algorithm} set to the
+     * algorithm its cost was estimated for, which
+     * {@link #instantiateJoin} then uses. If a join is a subquery, or a
+     * table has no statistics, the joins are returned in their original
+     * order and without an algorithm.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -220,8 +421,44 @@ public class JoinOptimizer {
         //Not necessary for labs 1--3
 
         // some code goes here
-        //Replace the following
-        return joins;
+        //子查询和没有统计信息的表无法估计代价，保持原来的顺序，由instantiateJoin按规则选算法
+        for (LogicalJoinNode j : joins) {
+            if (j instanceof LogicalSubplanJoinNode || !hasStats(stats, j.t1Alias)
+                    || !hasStats(stats, j.t2Alias))
+                return joins;
+        }
+
+        //Selinger的动态规划：按大小枚举join的子集，每个子集记下代价最低的左深计划
+        PlanCache pc = new PlanCache();
+        for (int size = 1; size <= joins.size(); size++) {
+            for (Set<LogicalJoinNode> joinSet : enumerateSubsets(joins, size)) {
+                CostCard best = null;
+                double bestCost = Double.MAX_VALUE;
+                for (LogicalJoinNode j : joinSet) {
+                    CostCard cc = computeCostAndCardOfSubplan(stats,
+                            filterSelectivities, j, joinSet, bestCost, pc);
+                    if (cc != null) {
+                        best = cc;
+                        bestCost = cc.cost;
+                    }
+                }
+                if (best != null)
+                    pc.addPlan(joinSet, best.cost, best.card, best.plan);
+            }
+        }
+
+        //两个join连接同样两张表时它们在集合中相等，这时计划会少join；保持原来的顺序
+        Vector<LogicalJoinNode> order = pc.getOrder(new HashSet<LogicalJoinNode>(joins));
+        if (order == null || order.size() != joins.size())
+            return joins;
+        if (explain)
+            printJoins(order, pc, stats, filterSelectivities);
+        return order;
+    }
+
+    private boolean hasStats(HashMap<String, TableStats> stats, String tableAlias) {
+        Integer id = p.getTableId(tableAlias);
+        return id != null && stats.get(Database.getCatalog().getTableName(id)) != null;
     }
 
     // ===================== Private Methods =================================
@@ -286,6 +523,7 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean leftSorted, rightSorted;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -301,6 +539,8 @@ public class JoinOptimizer {
                             filterSelectivities.get(j.t2Alias));
             rightPkey = table2Alias == null ? false : isPkey(table2Alias,
                     j.f2PureName);
+            leftSorted = isIndexedOn(j.t1Alias, j.f1PureName);
+            rightSorted = isIndexedOn(table2Alias, j.f2PureName);
         } else {
             // news is not empty -- figure best way to join j to news
             prevBest = pc.getOrder(news);
@@ -329,6 +569,8 @@ public class JoinOptimizer {
                                 filterSelectivities.get(j.t2Alias));
                 rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
                         j.f2PureName);
+                leftSorted = sortedOn(prevBest).contains(j.f1QuantifiedName);
+                rightSorted = isIndexedOn(j.t2Alias, j.f2PureName);
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                                                         // (both
                 // shouldn't be)
@@ -341,7 +583,8 @@ public class JoinOptimizer {
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
+                rightSorted = sortedOn(prevBest).contains(j.f2QuantifiedName);
+                leftSorted = isIndexedOn(j.t1Alias, j.f1PureName);
             } else {
                 // don't consider this plan if one of j.t1 or j.t2
                 // isn't a table joined in prevBest (cross product)
@@ -350,10 +593,12 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                leftSorted, rightSorted);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                rightSorted, leftSorted);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -365,6 +610,21 @@ public class JoinOptimizer {
         if (cost1 >= bestCostSoFar)
             return null;
 
+        // remember the join algorithm the cost is for; j may be the node
+        // from joins, which other subplans share, so mark a copy
+        if (!(j instanceof LogicalSubplanJoinNode)) {
+            int card1 = j == j2 ? t2card : t1card, card2 = j == j2 ? t1card : t2card;
+            double scan1 = j == j2 ? t2cost : t1cost, scan2 = j == j2 ? t1cost : t2cost;
+            boolean sorted1 = j == j2 ? rightSorted : leftSorted;
+            boolean sorted2 = j == j2 ? leftSorted : rightSorted;
+            LogicalJoinNode.Algorithm algorithm = chooseAlgorithm(j, card1,
+                    card2, scan1, scan2, sorted1, sorted2);
+            if (algorithm != j.algorithm) {
+                j = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName, j.p);
+                j.algorithm = algorithm;
+            }
+        }
+
         CostCard cc = new CostCard();
 
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
@@ -388,6 +648,61 @@ public class JoinOptimizer {
         return false;
     }
 
+    /**
+     * Return the quantified names of the fields the output of the left-deep
+     * plan is sorted on, from the algorithm chosen for its last join: a
+     * sort-merge join is sorted on its join fields, a nested-loops join
+     * keeps the order of its outer (t1) side, and a hash join has none.
+     */
+    private Set<String> sortedOn(List<LogicalJoinNode> plan) {
+        Set<String> fields = new HashSet<String>();
+        if (plan.isEmpty())
+            return fields;
+        LogicalJoinNode last = plan.get(plan.size() - 1);
+        List<LogicalJoinNode> rest = plan.subList(0, plan.size() - 1);
+        if (last.algorithm == LogicalJoinNode.Algorithm.SORT_MERGE) {
+            fields.add(last.f1QuantifiedName);
+            if (last.p == Predicate.Op.EQUALS)
+                fields.add(last.f2QuantifiedName);
+        } else if (last.algorithm == LogicalJoinNode.Algorithm.NESTED_LOOPS) {
+            if (doesJoin(new Vector<LogicalJoinNode>(rest), last.t1Alias))
+                fields.addAll(sortedOn(rest));
+            else
+                fields.addAll(indexOrder(last.t1Alias));
+        }
+        return fields;
+    }
+
+    //表按B+树的键有序时返回{alias.key}
+    private Set<String> indexOrder(String tableAlias) {
+        Set<String> fields = new HashSet<String>();
+        DbFile f = tableFile(tableAlias);
+        if (f instanceof BTreeFile)
+            fields.add(tableAlias + "." + f.getTupleDesc().getFieldName(((BTreeFile) f).keyField()));
+        return fields;
+    }
+
+    /**
+     * Return true if the specified table is a BTreeFile keyed on field, so
+     * that a scan of it is sorted on field
+     *
+     * @param tableAlias
+     *            The alias of the table in the query (may be null)
+     * @param field
+     *            The pure name of the field
+     */
+    private boolean isIndexedOn(String tableAlias, String field) {
+        return indexOrder(tableAlias).contains(tableAlias + "." + field);
+    }
+
+    //没有逻辑计划或者别名未知时返回null
+    private DbFile tableFile(String tableAlias) {
+        if (p == null || tableAlias == null)
+            return null;
+        Integer id = p.getTableId(tableAlias);
+        return id == null ? null : Database.getCatalog().getDatabaseFile(id);
+    }
+
     /**
      * Return true if field is a primary key of the specified table, false
      * otherwise
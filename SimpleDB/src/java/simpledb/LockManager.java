@@ -1,350 +1,542 @@
 package simpledb;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Queue;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 //自定义LockManager来管理锁
+//每个page有自己的等待队列，拿不到锁的事务在该page上阻塞，直到锁被释放时被唤醒
+//阻塞时维护waits-for图并检测环，发现死锁后立即中断环中最年轻的事务
 public class LockManager {
 
-    //using ConcurrentHashMap because it is thread-safe
-    //dependenciesSet存储当前transaction的依赖关系
-    private ConcurrentHashMap<TransactionId, HashSet<TransactionId>> dependenciesSet;
-    //pageLocks关联page和它所有的锁
-    private ConcurrentHashMap<PageId,LinkedList<PageLock>> pageLocks;
+    /** Number of independently latched partitions of the lock table; a power of two. */
+    private static final int NUM_STRIPES = 64;
 
-    public LockManager() {
-        dependenciesSet = new ConcurrentHashMap<TransactionId, HashSet<TransactionId>>();
-        pageLocks = new ConcurrentHashMap<PageId, LinkedList<PageLock>>();
+    //锁表按PageId的hash分片，每个分片有自己的latch，不同分片上的加锁/解锁互不阻塞
+    private final Stripe[] stripes;
+
+    //每个事务持有锁的page，事务结束时只需释放这些page上的锁
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> lockedPages;
+
+    //waits-for图：dependenciesSet存储每个事务正在等待的加锁请求，
+    //每个请求记录它在等待哪些事务。protected by dependenciesSet
+    private final HashMap<TransactionId, HashSet<LockRequest>> dependenciesSet;
+    //被选为死锁牺牲者、需要中断的事务，protected by dependenciesSet
+    private final HashSet<TransactionId> victims;
+
+    /** Default time in milliseconds a lock request may wait when it is not part of a deadlock. */
+    public static final long DEFAULT_LOCK_WAIT_TIMEOUT = 5000;
+    //非死锁的长时间等待（例如持锁事务一直不结束）的兜底超时，0表示一直等待
+    private volatile long lockWaitTimeout = DEFAULT_LOCK_WAIT_TIMEOUT;
+
+    //统计信息
+    private final AtomicLong deadlockCount = new AtomicLong(0);
+    private final AtomicLong lockWaitCount = new AtomicLong(0);
+    private final AtomicLong lockWaitNanos = new AtomicLong(0);
+
+    //等待队列中的一个加锁请求
+    private static class LockRequest {
+        final TransactionId tid;
+        final Permissions perm;
+        final boolean upgrade;
+        final LockEntry entry;
+        //该请求当前在等待的事务，protected by dependenciesSet
+        Set<TransactionId> blockers = new HashSet<TransactionId>();
+
+        LockRequest(TransactionId tid, Permissions perm, boolean upgrade, LockEntry entry) {
+            this.tid = tid;
+            this.perm = perm;
+            this.upgrade = upgrade;
+            this.entry = entry;
+        }
+    }
+
+    //锁表的一个分片：关联page和它的LockEntry，protected by the stripe
+    private static class Stripe {
+        final HashMap<PageId, LockEntry> pageLocks = new HashMap<PageId, LockEntry>();
     }
 
     /**
-     * a specific transaction acquires the lock on the specific page
-     * @param tid transaction id
-     * @param pid page id
-     * @param permissions the permission of the transaction on the page
+     * The lock state of a single page: the locks currently granted and the
+     * FIFO queue of requests waiting for it. The entry's monitor is the
+     * condition variable that waiting transactions park on.
      */
-    public synchronized boolean acquireLock(TransactionId tid, PageId pid, Permissions permissions){
-        // if the permission is READ_ONLY, then acquire the SHARED_LOCK
-        if(permissions.equals(Permissions.READ_ONLY)){
-            return acquireSharedLock(tid, pid);
+    private static class LockEntry {
+        final LinkedList<PageLock> holders = new LinkedList<PageLock>();
+        final LinkedList<LockRequest> waiters = new LinkedList<LockRequest>();
+        int pins = 0; //protected by the stripe
+
+        PageLock getHolder(TransactionId tid) {
+            for (PageLock lock : holders) {
+                if (lock.getTid().equals(tid)) {
+                    return lock;
+                }
+            }
+            return null;
         }
-        // else the permission is READ_WRITE, then acquire the EXCLUSIVE_LOCK
-        else{
-            return acquireExclusiveLock(tid, pid);
+
+        boolean removeHolder(TransactionId tid) {
+            PageLock lock = getHolder(tid);
+            return lock != null && holders.remove(lock);
         }
-    }
 
-    /**
-     * a specific transaction acquires the SHARED_LOCK on the specific page
-     * @param tid transaction id
-     * @param pid page id
-     * @return true if the transaction acquires the lock successfully
-     */
-    //1.要加的锁是读锁
-    private synchronized boolean acquireSharedLock(TransactionId tid, PageId pid) {
-        // locklist存储pid的所有lock
-        LinkedList<PageLock> lockList = pageLocks.get(pid);
-        // 1-1.pid上没有锁->直接加锁
-        if(lockList==null){
-            lockList = new LinkedList<PageLock>();
+        //判断tid要加的锁是否与其他事务已持有的锁冲突
+        boolean compatible(TransactionId tid, Permissions perm) {
+            for (PageLock lock : holders) {
+                if (lock.getTid().equals(tid)) {
+                    continue;
+                }
+                if (perm.equals(Permissions.READ_WRITE) || lock.getType().equals(PageLock.EXCLUSIVE_LOCK)) {
+                    return false;
+                }
+            }
+            return true;
         }
-        //1-2.pid上有锁
-        if(lockList.size() > 0){
-            // 1-2-1.pid上只有1个锁
-            if(lockList.size() == 1){
-                // 1-2-1-1.是同一个事务
-                if(lockList.getFirst().getTid().equals(tid)){
-                    //                    // improve the lock type of the target transaction upto the EXCLUSIVE_LOCK
-//                    lockList.removeFirst();
-//                    // add a EXCLUSIVE_LOCK lock to the locks list
-//                    addLock(tid,pid,Permissions.READ_WRITE);
-//                    return true;
-                    // 1-2-1-1-1.已有的锁是读锁->已经加锁，直接返回
-                    if(lockList.getFirst().getType().equals(PageLock.SHARED_LOCK)){
-                        return true;
-                    }else{
-                        // 1-2-1-1-1.已有的锁是写锁->加锁
-                        addLock(tid,pid,Permissions.READ_ONLY);
-                        return true;
-                    }
+
+        void grant(TransactionId tid, Permissions perm) {
+            //升级锁：先去掉原来的读锁
+            removeHolder(tid);
+            holders.add(new PageLock(tid, perm));
+        }
+
+        /**
+         * Try to grant the lock without waiting. Succeeds if tid already
+         * holds a sufficient lock, or if nobody is queued ahead of it (lock
+         * upgrades jump the queue) and the request does not conflict.
+         */
+        boolean tryAcquire(TransactionId tid, Permissions perm) {
+            PageLock held = getHolder(tid);
+            // 已有写锁，或已有读锁且要加读锁 -> 已经加锁，直接返回
+            if (held != null && (held.getType().equals(PageLock.EXCLUSIVE_LOCK)
+                    || perm.equals(Permissions.READ_ONLY))) {
+                return true;
+            }
+            // 没有人排队（或是升级请求）且不冲突 -> 直接加锁
+            if ((held != null || waiters.isEmpty()) && compatible(tid, perm)) {
+                grant(tid, perm);
+                return true;
+            }
+            return false;
+        }
+
+        //进入等待队列：升级请求排在所有普通请求之前
+        LockRequest enqueue(TransactionId tid, Permissions perm) {
+            boolean upgrade = getHolder(tid) != null;
+            LockRequest request = new LockRequest(tid, perm, upgrade, this);
+            if (upgrade) {
+                int i = 0;
+                while (i < waiters.size() && waiters.get(i).upgrade) {
+                    i++;
                 }
-                // 1-2-1-2.不是同一个事务
-                else{
-                    // 1-2-1-2-1.已有的锁是读锁->加锁
-                    if(lockList.getFirst().getType().equals(PageLock.SHARED_LOCK)){
-                        addLock(tid,pid,Permissions.READ_ONLY);
-                        return true;
-                    }
-                    // 1-2-1-2-1.已有的锁是写锁->加锁失败
-                    else{
-                        addDependency(tid, lockList.getFirst().getTid());
-                        return false;
-                    }
+                waiters.add(i, request);
+                //排在后面的请求等待的对象变了
+                notifyAll();
+            } else {
+                waiters.addLast(request);
+            }
+            return request;
+        }
+
+        boolean grantable(LockRequest request) {
+            return waiters.getFirst() == request && compatible(request.tid, request.perm);
+        }
+
+        //request在等待的事务：与之冲突的持有者，以及排在它前面且冲突的请求
+        Set<TransactionId> blockersOf(LockRequest request) {
+            boolean exclusive = request.perm.equals(Permissions.READ_WRITE);
+            Set<TransactionId> blockers = new HashSet<TransactionId>();
+            for (PageLock lock : holders) {
+                if (!lock.getTid().equals(request.tid)
+                        && (exclusive || lock.getType().equals(PageLock.EXCLUSIVE_LOCK))) {
+                    blockers.add(lock.getTid());
                 }
             }
-            // 1-2-2.pid上不止1个锁
-            /*
-                there are four cases:
-                1. two locks belongs to the target transaction one SHARED_LOCK and one EXCLUSIVE_LOCK
-                2. two locks belongs to other transaction one SHARED_LOCK and one EXCLUSIVE_LOCK
-                3. many locks and one SHARED_LOCK belongs to the target transaction
-                4. many locks and none belongs to the target transaction
-                In this section only need to check if the lock is an EXCLUSIVE_LOCK and belongs to other transaction
-            */
-            else{
-                for(PageLock lock:lockList){
-                    // 1-2-2-1.当前lock是写锁
-                    if(lock.getType().equals(PageLock.EXCLUSIVE_LOCK)){
-                        // 1-2-2-1-1.写锁的tid不是当前tid->加锁失败
-                        if(!lock.getTid().equals(tid)){
-                            addDependency(tid, lock.getTid());
-                            return false;
-                        }else{
-                            // 1-2-2-1-2.写锁的tid是当前tid->加锁
-                            return true;
-                        }
-                    }
-                    // 1-2-2-2.当前lock是读锁
-                    else{
-                        // 1-2-2-2-1.读锁的tid是当前tid->加锁
-                        if(lock.getTid().equals(tid)){
-                            return true;
-                        }
-                        //1-2-2-2-2.读锁的tid不是当前tid->继续遍历
-                    }
+            for (LockRequest ahead : waiters) {
+                if (ahead == request) {
+                    break;
+                }
+                if (!ahead.tid.equals(request.tid)
+                        && (exclusive || ahead.perm.equals(Permissions.READ_WRITE))) {
+                    blockers.add(ahead.tid);
                 }
             }
+            return blockers;
+        }
+    }
+
+    public LockManager() {
+        stripes = new Stripe[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe();
         }
-        //加锁
-        addLock(tid, pid, Permissions.READ_ONLY);
-        return true;
+        lockedPages = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+        dependenciesSet = new HashMap<TransactionId, HashSet<LockRequest>>();
+        victims = new HashSet<TransactionId>();
     }
 
     /**
-     * a specific transaction acquires the EXCLUSIVE_LOCK on the specific page
+     * a specific transaction acquires the lock on the specific page,
+     * blocking on the page's wait queue until the lock is granted.
+     * Whenever the set of transactions it waits for changes, the waits-for
+     * graph is checked for a cycle, and the youngest transaction in the
+     * cycle is aborted.
      * @param tid transaction id
      * @param pid page id
-     * @return true if the transaction acquires the lock successfully
+     * @param permissions the permission of the transaction on the page
+     * @throws TransactionAbortedException if tid was chosen as a deadlock victim,
+     *   or waited longer than the lock wait timeout
      */
-    //2.要加的锁是写锁
-    private synchronized boolean acquireExclusiveLock(TransactionId tid, PageId pid) {
-        // locklist存储pid的所有lock
-        LinkedList<PageLock> lockList = pageLocks.get(pid);
-        // 2-1.pid上没有锁->直接加锁
-        if(lockList==null){
-            lockList = new LinkedList<PageLock>();
-        }
-        //2-2.pid上有锁
-        if(lockList.size() > 0){
-            // 2-2-1.pid上只有1个锁
-            if(lockList.size() == 1){
-
-                // 2-2-1-1.是同一个事务
-                if(lockList.getFirst().getTid().equals(tid)){
-                    //to be finished.这个if语句块里还没有完全搞清楚，周四学习了锁再来看
-                    //to be finished.LockingTest有时过有时不过
-                    // improve the lock type of the target transaction upto the EXCLUSIVE_LOCK
-                    lockList.removeFirst();
-                    // add a EXCLUSIVE_LOCK lock to the locks list
-                    addLock(tid,pid,Permissions.READ_WRITE);
-                    return true;
-                    // 2-2-1-1-1.已有的锁是读锁->已经加锁，直接返回
-//                    if(lockList.getFirst().getType().equals(PageLock.SHARED_LOCK)){
-//                        return true;
-//                    }else{
-//                        addLock(tid,pid,Permissions.READ_ONLY);
-//                        return true;
-//                    }
-                }
-                // 2-2-1-2.不是同一个事务
-                else{
-                    // the only lock belongs to other transaction need to add the transaction to the dependenciesSet
-                    addDependency(tid, lockList.getFirst().getTid());
-                    return false;
+    public void acquireLock(TransactionId tid, PageId pid, Permissions permissions)
+            throws TransactionAbortedException {
+        LockEntry entry = pinEntry(pid);
+        LockRequest request = null;
+        long waitStart = 0;
+        try {
+            synchronized (entry) {
+                if (entry.tryAcquire(tid, permissions)) {
+                    addLockedPage(tid, pid);
+                    return;
                 }
+                request = entry.enqueue(tid, permissions);
             }
-            // 2-2-2.pid上不止1个锁
-            else{
-                /*
-                there are four cases:
-                1. two locks belongs to the target transaction one SHARED_LOCK and one EXCLUSIVE_LOCK
-                2. two locks belongs to other transaction one SHARED_LOCK and one EXCLUSIVE_LOCK
-                3. many locks and one SHARED_LOCK belongs to the target transaction
-                4. many locks and none belongs to the target transaction
-                 */
-                // 2-2-2-1.pid有2个锁->可能成功可能失败
-                // 2-2-2-2.pid不止2个锁->加锁失败
-                if(lockList.size() == 2) {
-                    for(PageLock lock : lockList){
-                        // if there is an EXCLUSIVE_LOCK lock belongs to the transaction
-                        if(lock.getTid().equals(tid) && lock.getType().equals(PageLock.EXCLUSIVE_LOCK)){
-                            return true;
+            lockWaitCount.incrementAndGet();
+            waitStart = System.nanoTime();
+            long timeout = lockWaitTimeout;
+            long deadline = System.currentTimeMillis() + timeout;
+            addDependency(request);
+            while (true) {
+                Set<TransactionId> blockers;
+                synchronized (entry) {
+                    while (true) {
+                        if (isVictim(tid)) {
+                            throw new TransactionAbortedException();
+                        }
+                        if (entry.grantable(request)) {
+                            entry.grant(tid, permissions);
+                            addLockedPage(tid, pid);
+                            return;
+                        }
+                        blockers = entry.blockersOf(request);
+                        if (!blockers.equals(getBlockers(request))) {
+                            break;
+                        }
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (timeout > 0 && remaining <= 0) {
+                            throw new TransactionAbortedException();
+                        }
+                        try {
+                            entry.wait(timeout > 0 ? remaining : 0);
+                        } catch (InterruptedException e) {
+                            throw new TransactionAbortedException();
                         }
                     }
-                    // add the dependency to the transaction
-                    addDependency(tid, lockList.getFirst().getTid());
                 }
-                for(PageLock lock : lockList){
-                    addDependency(tid, lock.getTid());
+                //等待的对象变了，在entry的监视器之外更新waits-for图并检测死锁
+                TransactionId victim = updateDependency(request, blockers);
+                if (victim != null) {
+                    if (victim.equals(tid)) {
+                        throw new TransactionAbortedException();
+                    }
+                    wakeUp(victim);
+                }
+            }
+        } finally {
+            if (request != null) {
+                synchronized (entry) {
+                    // 无论成功与否都要出队，队首变化后唤醒其他等待者重新检查
+                    entry.waiters.remove(request);
+                    entry.notifyAll();
                 }
-                return false;
+                deleteDependency(request);
+                lockWaitNanos.addAndGet(System.nanoTime() - waitStart);
             }
+            unpinEntry(pid, entry);
         }
-        else{
-            addLock(tid,pid, Permissions.READ_WRITE);
-            return true;
+    }
+
+    private Stripe stripeFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (NUM_STRIPES - 1)];
+    }
+
+    //取得pid对应的LockEntry并pin住，防止等待期间被移出锁表
+    private LockEntry pinEntry(PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            LockEntry entry = stripe.pageLocks.get(pid);
+            if (entry == null) {
+                entry = new LockEntry();
+                stripe.pageLocks.put(pid, entry);
+            }
+            entry.pins++;
+            return entry;
+        }
+    }
+
+    private void unpinEntry(PageId pid, LockEntry entry) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            synchronized (entry) {
+                entry.pins--;
+                removeIfIdle(stripe, pid, entry);
+            }
+        }
+    }
+
+    //page上没有锁、没有等待者时将其移出锁表，调用者需持有stripe和entry的监视器
+    private void removeIfIdle(Stripe stripe, PageId pid, LockEntry entry) {
+        if (entry.pins == 0 && entry.holders.isEmpty() && entry.waiters.isEmpty()) {
+            stripe.pageLocks.remove(pid);
+        }
+    }
+
+    //记录tid在pid上持有锁，调用者需持有entry的监视器
+    private void addLockedPage(TransactionId tid, PageId pid) {
+        Set<PageId> pages = lockedPages.get(tid);
+        if (pages == null) {
+            pages = ConcurrentHashMap.newKeySet();
+            Set<PageId> prev = lockedPages.putIfAbsent(tid, pages);
+            if (prev != null) {
+                pages = prev;
+            }
         }
+        pages.add(pid);
     }
 
     /**
-     * add lock to the lock list of the specific page
-     * @param tid transaction id
-     * @param pid page id
-     * @param permission permission of the lock
+     * add a waiting request of the transaction to the waits-for graph
+     * @param request the request that is about to wait
      */
-    private synchronized void addLock(TransactionId tid, PageId pid, Permissions permission) {
-        PageLock lock = new PageLock(tid, permission);
-        LinkedList<PageLock> lockList = pageLocks.get(pid);
-        if(lockList==null){
-            lockList = new LinkedList<PageLock>();
+    private void addDependency(LockRequest request) {
+        synchronized (dependenciesSet) {
+            HashSet<LockRequest> requests = dependenciesSet.get(request.tid);
+            if (requests == null) {
+                requests = new HashSet<LockRequest>();
+                dependenciesSet.put(request.tid, requests);
+            }
+            requests.add(request);
         }
-        lockList.add(lock);
-        pageLocks.put(pid, lockList);
-        // when the lock can be added, it means that the transaction has no dependency
-        deleteDependency(tid);
     }
 
     /**
-     * add dependency to the transaction
-     * @param tid transaction id
-     * @param dependedTid transaction id that the transaction depends on
+     * remove a request that is no longer waiting from the waits-for graph
+     * @param request the request that stopped waiting
      */
-    private synchronized void addDependency(TransactionId tid, TransactionId dependedTid) {
-        if(tid.equals(dependedTid)){
-            return;
+    private void deleteDependency(LockRequest request) {
+        synchronized (dependenciesSet) {
+            HashSet<LockRequest> requests = dependenciesSet.get(request.tid);
+            if (requests != null) {
+                requests.remove(request);
+                if (requests.isEmpty()) {
+                    dependenciesSet.remove(request.tid);
+                    //牺牲者所有等待的请求都已经退出
+                    victims.remove(request.tid);
+                }
+            }
         }
-        HashSet<TransactionId> transactionIds = dependenciesSet.get(tid);
-        if(transactionIds==null){
-            transactionIds = new HashSet<TransactionId>();
+    }
+
+    private Set<TransactionId> getBlockers(LockRequest request) {
+        synchronized (dependenciesSet) {
+            return request.blockers;
         }
-        transactionIds.add(dependedTid);
-        dependenciesSet.put(tid, transactionIds);
     }
 
-    /**
-     * delete the dependency of the transaction
-     * @param tid transaction id
-     */
-    private synchronized void deleteDependency(TransactionId tid) {
-        dependenciesSet.remove(tid);
+    private boolean isVictim(TransactionId tid) {
+        synchronized (dependenciesSet) {
+            return victims.contains(tid);
+        }
     }
 
     /**
-     * release the lock on the specific page that belongs to the transaction
-     * @param tid transaction id
-     * @param pid page id
+     * Record the transactions a waiting request now depends on and check
+     * whether that closes a cycle in the waits-for graph.
+     * @return the transaction chosen to abort, or null if there is no deadlock
      */
-    //事务执行完成，释放该事务在所有page上的所有锁
-    public synchronized void releasePage(TransactionId tid, PageId pid){
-        LinkedList<PageLock> lockList = pageLocks.get(pid);
-        if(lockList==null || lockList.size() == 0){
-            return;
-        }
-        for(PageLock lock : lockList){
-            if(lock.getTid().equals(tid)){
-                lockList.remove(lock);
-                break;
+    private TransactionId updateDependency(LockRequest request, Set<TransactionId> blockers) {
+        synchronized (dependenciesSet) {
+            request.blockers = blockers;
+            List<TransactionId> cycle = findCycle(request.tid);
+            if (cycle == null) {
+                return null;
+            }
+            //中断环中最年轻（id最大）的事务
+            TransactionId victim = cycle.get(0);
+            for (TransactionId t : cycle) {
+                if (t.getId() > victim.getId()) {
+                    victim = t;
+                }
+            }
+            if (victims.add(victim)) {
+                deadlockCount.incrementAndGet();
             }
+            return victim;
         }
-        if(lockList.size() == 0){
-            pageLocks.remove(pid);
+    }
+
+    /**
+     * Depth first search of the waits-for graph for a path from tid back to
+     * itself. Any cycle created by a new edge goes through the waiting
+     * transaction, so this is enough to find every deadlock when it forms.
+     * Caller must hold the dependenciesSet monitor.
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId tid) {
+        LinkedList<TransactionId> path = new LinkedList<TransactionId>();
+        path.add(tid);
+        if (findCycle(tid, tid, path, new HashSet<TransactionId>())) {
+            return path;
         }
+        return null;
     }
 
-    //获取tid在pid上的锁
-    public synchronized PageLock getLock(TransactionId tid, PageId pid){
-        LinkedList<PageLock> lockList = pageLocks.get(pid);
-        if(lockList==null || lockList.size() == 0){
-            return null;
+    private boolean findCycle(TransactionId start, TransactionId current,
+                              LinkedList<TransactionId> path, Set<TransactionId> visited) {
+        HashSet<LockRequest> requests = dependenciesSet.get(current);
+        if (requests == null) {
+            return false;
         }
-        for(PageLock lock : lockList){
-            if(lock.getTid().equals(tid)){
-                return lock;
+        for (LockRequest request : requests) {
+            for (TransactionId next : request.blockers) {
+                if (next.equals(start)) {
+                    return true;
+                }
+                if (visited.add(next)) {
+                    path.addLast(next);
+                    if (findCycle(start, next, path, visited)) {
+                        return true;
+                    }
+                    path.removeLast();
+                }
             }
         }
-        return null;
+        return false;
     }
-    public synchronized boolean checkDeadLock(TransactionId tid){
-        Set<TransactionId> diverseid=new HashSet<>();
-        Queue<TransactionId> que=new ConcurrentLinkedQueue<>();
-        que.add(tid);
-
-        while(que.size()>0){
-            TransactionId remove_tid=que.remove();
-            if(diverseid.contains(remove_tid)) {
-                continue;
+
+    //唤醒牺牲者正在等待的page，让它发现自己被中断
+    private void wakeUp(TransactionId victim) {
+        List<LockEntry> entries = new ArrayList<LockEntry>();
+        synchronized (dependenciesSet) {
+            HashSet<LockRequest> requests = dependenciesSet.get(victim);
+            if (requests == null) {
+                return;
             }
-            diverseid.add(remove_tid);
-            Set<TransactionId> now_set=dependenciesSet.get(remove_tid);
-            if(now_set==null) {
-                continue;
+            for (LockRequest request : requests) {
+                entries.add(request.entry);
             }
-            for(TransactionId now_tid:now_set){
-                que.add(now_tid);
+        }
+        for (LockEntry entry : entries) {
+            synchronized (entry) {
+                entry.notifyAll();
             }
         }
+    }
 
-        ConcurrentHashMap<TransactionId,Integer> now_rudu=new ConcurrentHashMap<>();
-        for(TransactionId now_tid:diverseid){
-            now_rudu.put(now_tid,0);
+    /**
+     * release the lock on the specific page that belongs to the transaction,
+     * and wake up the transactions waiting on that page
+     * @param tid transaction id
+     * @param pid page id
+     */
+    public void releasePage(TransactionId tid, PageId pid){
+        Set<PageId> pages = lockedPages.get(tid);
+        if (pages != null) {
+            pages.remove(pid);
         }
-        for(TransactionId now_tid:diverseid){
-            Set<TransactionId> now_set=dependenciesSet.get(now_tid);
-            if(now_set==null) {
-                continue;
+        unlock(tid, pid);
+    }
+
+    private void unlock(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            LockEntry entry = stripe.pageLocks.get(pid);
+            if (entry == null) {
+                return;
             }
-            for(TransactionId now2_tid:now_set){
-                Integer temp = now_rudu.get(now2_tid);
-                temp++;
-                now_rudu.put(now2_tid,temp);
+            synchronized (entry) {
+                if (entry.removeHolder(tid)) {
+                    entry.notifyAll();
+                }
+                removeIfIdle(stripe, pid, entry);
             }
         }
+    }
 
-        while(true){
-            int cnt=0;
-            for(TransactionId now_tid:diverseid){
-                if(now_rudu.get(now_tid)==null) {
-                    continue;
-                }
-                if(now_rudu.get(now_tid)==0){
-                    Set<TransactionId> now_set=dependenciesSet.get(now_tid);
-                    if(now_set==null) {
-                        continue;
-                    }
-                    for(TransactionId now2_tid:now_set){
-                        Integer temp = now_rudu.get(now2_tid);
-                        if(temp==null) {
-                            continue;
-                        }
-                        temp--;
-                        now_rudu.put(now2_tid,temp);
-                    }
-                    now_rudu.remove(now_tid);
-                    cnt++;
-                }
+    /**
+     * release all locks held by the transaction. Only the pages the
+     * transaction has locked are visited.
+     * @param tid transaction id
+     */
+    //事务执行完成，释放该事务在所有page上的所有锁
+    public void releaseAllLocks(TransactionId tid){
+        Set<PageId> pages = lockedPages.remove(tid);
+        if (pages == null) {
+            return;
+        }
+        for (PageId pid : pages) {
+            unlock(tid, pid);
+        }
+    }
+
+    /**
+     * @return true if the transaction holds a lock on the page
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid){
+        Set<PageId> pages = lockedPages.get(tid);
+        return pages != null && pages.contains(pid);
+    }
+
+    //获取tid在pid上的锁
+    public PageLock getLock(TransactionId tid, PageId pid){
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            LockEntry entry = stripe.pageLocks.get(pid);
+            if (entry == null) {
+                return null;
             }
-            if(cnt==0) {
-                break;
+            synchronized (entry) {
+                return entry.getHolder(tid);
             }
         }
+    }
 
-        if(now_rudu.size()==0) {
-            return false;
+    /** @return the pages on which the transaction currently holds a lock */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> pages = lockedPages.get(tid);
+        if (pages == null) {
+            return new HashSet<PageId>();
         }
-        return true;
+        return new HashSet<PageId>(pages);
+    }
+
+    /**
+     * Set how long a lock request may wait before its transaction is aborted.
+     * Deadlocks are detected immediately; this only bounds waits on
+     * transactions that are not themselves blocked.
+     * @param timeout timeout in milliseconds, or 0 to wait indefinitely
+     */
+    public void setLockWaitTimeout(long timeout) {
+        this.lockWaitTimeout = timeout;
+    }
+
+    /** @return the number of deadlocks detected (and resolved by aborting a victim) */
+    public long getDeadlockCount() {
+        return deadlockCount.get();
+    }
+
+    /** @return the number of lock requests that had to wait */
+    public long getLockWaitCount() {
+        return lockWaitCount.get();
+    }
+
+    /** @return total time in milliseconds spent by transactions waiting for locks */
+    public long getLockWaitTime() {
+        return lockWaitNanos.get() / 1000000;
     }
-}
\ No newline at end of file
+}
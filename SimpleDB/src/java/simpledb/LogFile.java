@@ -4,6 +4,9 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -51,8 +54,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, and BULK
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,6 +64,11 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li> BULK records name pages a transaction appended to a HeapFile with
+a {@link HeapFile.BulkLoader}: an integer table id, the integer number
+of the first page and the integer number of pages. The pages have no
+before image; undoing the record empties them again.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
@@ -82,6 +90,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int BULK_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -91,7 +100,40 @@ public class LogFile {
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // sequence number of the last record appended; unlike file offsets it
+    // is not changed by logTruncate //protected by this
+    long lastLsn = 0;
+
+    /* Group commit. A thread that must wait for the log to reach disk, and
+       does not hold the log lock, queues its LSN and sleeps; one flusher
+       thread forces the log for everybody queued and wakes those whose
+       records are now durable. Fields below are protected by
+       groupCommitLock, which is never held while taking the log lock. */
+    private final Object groupCommitLock = new Object();
+    private long durableLsn = 0;
+    // highest LSN anybody waits for; the flusher only forces while it is
+    // not durable yet, since queued still counts waiters that were woken
+    // up but have not run yet
+    private long requestedLsn = 0;
+    private int queued = 0;
+    private Thread flusher = null;
+    private IOException flushError = null;
+    private long failedLsn = 0;
+    private volatile boolean groupCommit = true;
+    private volatile long maxBatchDelayMicros = 0;
+    private volatile int maxBatchSize = 64;
+    private long forceCount = 0;
+    // a flusher with nothing to do for this long exits
+    static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    // statistics of the last recover() //protected by this
+    long recoveryRecordsScanned = 0;
+    int recoveryPagesRedone = 0;
+    int recoveryPagesUndone = 0;
+    long recoveryTime = 0;
+
+    // read without the log lock by BufferPool when it picks a dirty page to steal
+    Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -125,6 +167,7 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        lastLsn++;
         if(recoveryUndecided){
             recoveryUndecided = false;
             raf.seek(0);
@@ -173,17 +216,23 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long commitLsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            commitLsn = lastLsn;
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // wait outside the log lock, so that other transactions can
+        // append their commit records and share the same force
+        awaitDurable(commitLsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -218,6 +267,47 @@ public class LogFile {
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
+    /** Write a BULK record for pages that tid appended to a HeapFile,
+        and force the log to disk; the pages must not be written before
+        this returns.
+
+        @param tid The transaction that appended the pages
+        @param tableId The table the pages belong to
+        @param firstPage The number of the first page
+        @param numPages The number of pages
+    */
+    public void logBulkLoad(TransactionId tid, int tableId, int firstPage, int numPages)
+        throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("BULK " + tid.getId() + " " + firstPage + "+" + numPages);
+            raf.writeInt(BULK_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeInt(tableId);
+            raf.writeInt(firstPage);
+            raf.writeInt(numPages);
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            lsn = lastLsn;
+        }
+        awaitDurable(lsn);
+    }
+
+    // the pages named by a BULK record, as they were before the load:
+    // empty, in the format of the table
+    private List<Page> readBulkPages(RandomAccessFile raf) throws IOException {
+        int tableId = raf.readInt();
+        int firstPage = raf.readInt();
+        int numPages = raf.readInt();
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        List<Page> pages = new ArrayList<Page>(numPages);
+        for (int i = 0; i < numPages; i++) {
+            pages.add(file.emptyPage(firstPage + i));
+        }
+        return pages;
+    }
+
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
@@ -246,6 +336,19 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
+    // the (PageId, byte[]) constructor of a page class; page classes may
+    // have other two argument constructors as well
+    private static Constructor<?> pageConstructor(Class<?> pageClass, Class<?> idClass)
+        throws NoSuchMethodException {
+        for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+            Class<?>[] params = c.getParameterTypes();
+            if (params.length == 2 && params[0].isAssignableFrom(idClass)
+                && params[1] == byte[].class)
+                return c;
+        }
+        throw new NoSuchMethodException(pageClass.getName() + "(" + idClass.getName() + ", byte[])");
+    }
+
     Page readPageData(RandomAccessFile raf) throws IOException {
         PageId pid;
         Page newPage = null;
@@ -265,7 +368,6 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -275,7 +377,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConstructor(pageClass, idClass).newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -290,6 +392,9 @@ public class LogFile {
         } catch (InvocationTargetException e) {
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         }
         return newPage;
 
@@ -316,6 +421,14 @@ public class LogFile {
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
+    /** @return true if a BEGIN record was written for tid and the
+        transaction has not committed or aborted yet, so that its updates
+        can be rolled back from the log
+    */
+    public boolean hasBegun(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
         //make sure we have buffer pool lock before proceeding
@@ -416,6 +529,10 @@ public class LogFile {
                     writePageData(logNew, before);
                     writePageData(logNew, after);
                     break;
+                case BULK_RECORD:
+                    for (int i = 0; i < 3; i++)
+                        logNew.writeInt(raf.readInt());
+                    break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
                     logNew.writeInt(numXactions);
@@ -442,6 +559,10 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
+        // the old log is about to be deleted, so everything in it must be
+        // on disk in the new one
+        logNew.getChannel().force(true);
+        logNew.close();
         raf.close();
         logFile.delete();
         newFile.renameTo(logFile);
@@ -450,6 +571,7 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        markDurable(lastLsn);
         //print();
     }
 
@@ -467,6 +589,50 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not in the log");
+
+                // the first update record of each page holds the page as
+                // it was before the transaction touched it
+                LinkedHashMap<PageId,Page> beforeImages = new LinkedHashMap<PageId,Page>();
+                raf.seek(firstRecord);
+                while (raf.getFilePointer() < currentOffset) {
+                    int type = raf.readInt();
+                    long recordTid = raf.readLong();
+                    switch (type) {
+                    case UPDATE_RECORD:
+                        Page before = readPageData(raf);
+                        readPageData(raf);
+                        if (recordTid == tid.getId() && !beforeImages.containsKey(before.getId()))
+                            beforeImages.put(before.getId(), before);
+                        break;
+                    case BULK_RECORD:
+                        if (recordTid != tid.getId()) {
+                            raf.skipBytes(3 * INT_SIZE);
+                            break;
+                        }
+                        for (Page empty : readBulkPages(raf))
+                            if (!beforeImages.containsKey(empty.getId()))
+                                beforeImages.put(empty.getId(), empty);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        int numXactions = raf.readInt();
+                        raf.skipBytes(numXactions * 2 * LONG_SIZE);
+                        break;
+                    }
+                    raf.readLong();
+                }
+                raf.seek(currentOffset);
+
+                // pages written by the transaction may be on disk (flushed
+                // or stolen by the BufferPool) and in the cache; restore the
+                // disk copy and drop the cached one
+                for (Page before : beforeImages.values()) {
+                    PageId pid = before.getId();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(before);
+                    Database.getBufferPool().discardPage(pid);
+                }
             }
         }
     }
@@ -488,23 +654,351 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery follows ARIES: an analysis pass finds the transactions
+        that were running at the crash (the losers), history is repeated
+        from the last checkpoint on (after images of all updates, before
+        images for transactions that aborted), and the losers are undone
+        with the before image of their first update to each page. Since
+        a checkpoint flushes the buffer pool, only the records after it
+        need to be redone; the log is only read further back for the
+        first records of transactions that were running at the checkpoint.
+        Recovery ends with an ABORT record for every loser and a new
+        checkpoint.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                long startTime = System.currentTimeMillis();
+                recoveryRecordsScanned = 0;
+                recoveryPagesRedone = 0;
+                recoveryPagesUndone = 0;
+                tidToFirstLogRecord.clear();
+
+                if (raf.length() < LONG_SIZE) {
+                    // nothing was ever logged
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    currentOffset = raf.getFilePointer();
+                    recoveryTime = System.currentTimeMillis() - startTime;
+                    return;
+                }
+
+                // analysis: transactions running at the checkpoint, and
+                // where their records start
+                raf.seek(0);
+                long cpOffset = raf.readLong();
+                long redoStart = cpOffset == NO_CHECKPOINT_ID ? LONG_SIZE : cpOffset;
+                long scanStart = redoStart;
+                HashMap<Long,Long> running = new HashMap<Long,Long>();
+                if (cpOffset != NO_CHECKPOINT_ID) {
+                    raf.seek(cpOffset);
+                    if (raf.readInt() != CHECKPOINT_RECORD)
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    raf.readLong();
+                    int numXactions = raf.readInt();
+                    while (numXactions-- > 0) {
+                        long xid = raf.readLong();
+                        long firstRecord = raf.readLong();
+                        running.put(xid, firstRecord);
+                        scanStart = Math.min(scanStart, firstRecord);
+                    }
+                }
+
+                // one forward pass: finish the analysis, remember the
+                // first before image per page of each transaction, and
+                // repeat history after the checkpoint into images
+                HashMap<Long,LinkedHashMap<PageId,Page>> beforeImages =
+                    new HashMap<Long,LinkedHashMap<PageId,Page>>();
+                HashMap<PageId,Page> images = new HashMap<PageId,Page>();
+                HashSet<PageId> redone = new HashSet<PageId>();
+                HashSet<PageId> undone = new HashSet<PageId>();
+                raf.seek(scanStart);
+                long end = scanStart;
+                while (true) {
+                    long recordStart = raf.getFilePointer();
+                    try {
+                        int type = raf.readInt();
+                        long recordTid = raf.readLong();
+                        switch (type) {
+                        case BEGIN_RECORD:
+                            running.put(recordTid, recordStart);
+                            break;
+                        case UPDATE_RECORD:
+                            Page before = readPageData(raf);
+                            Page after = readPageData(raf);
+                            LinkedHashMap<PageId,Page> tidImages = beforeImages.get(recordTid);
+                            if (tidImages == null) {
+                                tidImages = new LinkedHashMap<PageId,Page>();
+                                beforeImages.put(recordTid, tidImages);
+                            }
+                            if (!tidImages.containsKey(before.getId()))
+                                tidImages.put(before.getId(), before);
+                            if (recordStart >= redoStart) {
+                                images.put(after.getId(), after);
+                                redone.add(after.getId());
+                            }
+                            break;
+                        case BULK_RECORD:
+                            // the pages were forced before the commit, so
+                            // there is nothing to redo
+                            LinkedHashMap<PageId,Page> loaded = beforeImages.get(recordTid);
+                            if (loaded == null) {
+                                loaded = new LinkedHashMap<PageId,Page>();
+                                beforeImages.put(recordTid, loaded);
+                            }
+                            for (Page empty : readBulkPages(raf))
+                                if (!loaded.containsKey(empty.getId()))
+                                    loaded.put(empty.getId(), empty);
+                            break;
+                        case COMMIT_RECORD:
+                            running.remove(recordTid);
+                            beforeImages.remove(recordTid);
+                            break;
+                        case ABORT_RECORD:
+                            running.remove(recordTid);
+                            LinkedHashMap<PageId,Page> aborted = beforeImages.remove(recordTid);
+                            if (aborted != null && recordStart >= redoStart) {
+                                images.putAll(aborted);
+                                undone.addAll(aborted.keySet());
+                            }
+                            break;
+                        case CHECKPOINT_RECORD:
+                            int numXactions = raf.readInt();
+                            raf.skipBytes(numXactions * 2 * LONG_SIZE);
+                            break;
+                        default:
+                            throw new EOFException();
+                        }
+                        raf.readLong();
+                    } catch (EOFException e) {
+                        // a record torn by the crash ends the log
+                        break;
+                    }
+                    end = raf.getFilePointer();
+                    recoveryRecordsScanned++;
+                }
+
+                // undo: the losers still hold their locks, so nobody
+                // changed their pages after them
+                for (Long loser : running.keySet()) {
+                    LinkedHashMap<PageId,Page> loserImages = beforeImages.get(loser);
+                    if (loserImages != null) {
+                        images.putAll(loserImages);
+                        undone.addAll(loserImages.keySet());
+                    }
+                }
+
+                // install the final image of each page
+                for (Page p : images.values()) {
+                    PageId pid = p.getId();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                    Database.getBufferPool().discardPage(pid);
+                }
+                recoveryPagesRedone = redone.size();
+                recoveryPagesUndone = undone.size();
+
+                // drop a torn tail and log the losers as aborted, so that
+                // they are not undone again by a later recovery
+                raf.setLength(end);
+                raf.seek(end);
+                currentOffset = end;
+                for (Long loser : running.keySet()) {
+                    raf.writeInt(ABORT_RECORD);
+                    raf.writeLong(loser);
+                    raf.writeLong(currentOffset);
+                    currentOffset = raf.getFilePointer();
+                }
+                force();
+
+                // bound the work of the next recovery
+                logCheckpoint();
+                recoveryTime = System.currentTimeMillis() - startTime;
             }
          }
     }
 
+    /** @return the number of log records read by the last recover() */
+    public synchronized long getRecoveryRecordsScanned() {
+        return recoveryRecordsScanned;
+    }
+
+    /** @return the number of pages the last recover() rewrote with an
+        after image */
+    public synchronized int getRecoveryPagesRedone() {
+        return recoveryPagesRedone;
+    }
+
+    /** @return the number of pages the last recover() rewrote with a
+        before image */
+    public synchronized int getRecoveryPagesUndone() {
+        return recoveryPagesUndone;
+    }
+
+    /** @return how long the last recover() took, in milliseconds */
+    public synchronized long getRecoveryTime() {
+        return recoveryTime;
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
+    /** Force all log records written so far to disk. Callers that hold
+        the log lock force the log themselves; others go through group
+        commit, unless it is turned off.
+    */
+    public void force() throws IOException {
+        if (!groupCommit || Thread.holdsLock(this)) {
+            forceNow();
+            return;
+        }
+        long lsn;
+        synchronized (this) {
+            lsn = lastLsn;
+        }
+        awaitDurable(lsn);
+    }
+
+    // force the log in the calling thread
+    synchronized void forceNow() throws IOException {
+        long lsn = lastLsn;
         raf.getChannel().force(true);
+        markDurable(lsn);
+    }
+
+    private void markDurable(long lsn) {
+        synchronized (groupCommitLock) {
+            forceCount++;
+            if (lsn > durableLsn)
+                durableLsn = lsn;
+            groupCommitLock.notifyAll();
+        }
+    }
+
+    /** Block until the record with the given LSN is on disk. */
+    private void awaitDurable(long lsn) throws IOException {
+        if (!groupCommit || Thread.holdsLock(this)) {
+            forceNow();
+            return;
+        }
+        synchronized (groupCommitLock) {
+            if (durableLsn >= lsn)
+                return;
+            queued++;
+            if (lsn > requestedLsn)
+                requestedLsn = lsn;
+            try {
+                if (flusher == null) {
+                    flusher = new Flusher();
+                    flusher.start();
+                }
+                groupCommitLock.notifyAll();
+                while (durableLsn < lsn) {
+                    if (flushError != null && failedLsn >= lsn)
+                        throw new IOException("log force failed", flushError);
+                    groupCommitLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for log force");
+            } finally {
+                queued--;
+            }
+        }
+    }
+
+    /** Forces the log on behalf of the threads queued in awaitDurable. */
+    private class Flusher extends Thread {
+        Flusher() {
+            super("LogFile flusher");
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                synchronized (groupCommitLock) {
+                    try {
+                        long idleSince = System.currentTimeMillis();
+                        while (!forceRequested()) {
+                            if (System.currentTimeMillis() - idleSince >= FLUSHER_IDLE_MILLIS) {
+                                flusher = null;
+                                return;
+                            }
+                            groupCommitLock.wait(FLUSHER_IDLE_MILLIS);
+                        }
+                        // give more transactions a chance to join the batch
+                        long delay = maxBatchDelayMicros * 1000;
+                        long deadline = System.nanoTime() + delay;
+                        while (queued < maxBatchSize && delay > 0) {
+                            groupCommitLock.wait(delay / 1000000, (int) (delay % 1000000));
+                            delay = deadline - System.nanoTime();
+                        }
+                    } catch (InterruptedException e) {
+                        flusher = null;
+                        return;
+                    }
+                }
+                long lsn = 0;
+                try {
+                    FileChannel channel;
+                    synchronized (LogFile.this) {
+                        lsn = lastLsn;
+                        channel = raf.getChannel();
+                    }
+                    try {
+                        channel.force(true);
+                        markDurable(lsn);
+                    } catch (ClosedChannelException e) {
+                        // logTruncate replaced the file; force the new one
+                        forceNow();
+                    }
+                } catch (IOException e) {
+                    synchronized (groupCommitLock) {
+                        flushError = e;
+                        failedLsn = lsn;
+                        groupCommitLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    // whether some waiter needs a force that has neither happened nor
+    // failed //protected by groupCommitLock
+    private boolean forceRequested() {
+        return requestedLsn > durableLsn
+            && (flushError == null || requestedLsn > failedLsn);
+    }
+
+    /** Turn group commit on or off. When it is off, every force is an
+        fsync in the calling thread. On by default.
+    */
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    /** Tune group commit.
+        @param maxBatchDelayMicros how long the flusher waits for more
+        transactions to join a batch before it forces the log; 0 forces as
+        soon as one transaction is waiting (transactions that arrive during
+        a force still share the next one)
+        @param maxBatchSize the flusher stops waiting as soon as this many
+        transactions are queued
+    */
+    public void setGroupCommitBatch(long maxBatchDelayMicros, int maxBatchSize) {
+        this.maxBatchDelayMicros = maxBatchDelayMicros;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        synchronized (groupCommitLock) {
+            return forceCount;
+        }
     }
 
 }
@@ -23,6 +23,13 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The algorithms a join can be instantiated with */
+    public enum Algorithm { NESTED_LOOPS, HASH, SORT_MERGE }
+
+    /** The algorithm the JoinOptimizer estimated to be cheapest for this
+     * join, or null if it has not chosen one */
+    public Algorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
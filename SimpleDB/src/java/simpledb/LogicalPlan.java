@@ -1,5 +1,6 @@
 package simpledb;
 import java.util.Map;
+import java.util.BitSet;
 import java.util.Vector;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -305,6 +306,7 @@ public class LogicalPlan {
             filterSelectivities.put(table.alias, 1.0);
 
         }
+        setScanColumns();
 
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
@@ -475,13 +477,64 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        //已经按oByField升序时不用再排序
+        if (hasOrderBy && !(oByAsc && JoinOptimizer.sortedOn(node).contains(oByField))) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** Tells each scan which fields of its table the plan reads, so that
+     *  tables with column-oriented pages decode only those (see
+     *  {@link SeqScan#setColumns}). Every scan reads all fields if the
+     *  select list contains a * or a field name does not resolve; the
+     *  latter is reported later on.
+     */
+    private void setScanColumns() {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.endsWith("*"))
+                return;
+            names.add(si.fname);
+        }
+        if (hasAgg) {
+            names.add(aggField);
+            if (groupByField != null)
+                names.add(groupByField);
+        }
+        if (hasOrderBy)
+            names.add(oByField);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+
+        HashMap<String,BitSet> columns = new HashMap<String,BitSet>();
+        for (String name : names) {
+            String alias = name.split("[.]")[0];
+            OpIterator scan = subplanMap.get(alias);
+            if (!(scan instanceof SeqScan))
+                return;
+            int id;
+            try {
+                id = scan.getTupleDesc().fieldNameToIndex(name);
+            } catch (NoSuchElementException e) {
+                return;
+            }
+            if (!columns.containsKey(alias))
+                columns.put(alias, new BitSet());
+            columns.get(alias).set(id);
+        }
+        for (LogicalScanNode table : tables) {
+            BitSet c = columns.get(table.alias);
+            ((SeqScan) subplanMap.get(table.alias)).setColumns(c != null ? c : new BitSet());
+        }
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
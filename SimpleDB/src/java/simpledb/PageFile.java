@@ -0,0 +1,269 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * PageFile is the I/O layer under HeapFile and BTreeFile. It keeps a single
+ * FileChannel open for as long as the DbFile is in use and reads and writes
+ * with positional I/O, so that a buffer miss costs one read system call
+ * and concurrent readers never share (or lock) a file pointer. The length
+ * of the file is cached in memory and kept up to date by write(), so the
+ * DbFile can compute numPages() without asking the file system.
+ * <p>
+ * All writes to the file have to go through this PageFile, otherwise
+ * length() does not see them.
+ * <p>
+ * map() gives read-only access to the file through memory mappings, which
+ * spares the copy into a byte[]. Since a single mapping is limited to 2GB,
+ * the file is mapped in segments of SEGMENT_SIZE bytes; the mappings are
+ * extended when the file grows.
+ *
+ * @Threadsafe
+ */
+public class PageFile {
+
+    /** Size of one mapped segment; a multiple of any power of 2 page size */
+    public static final long SEGMENT_SIZE = 1L << 30;
+
+    private final File file;
+    private volatile FileChannel channel;
+    //文件长度（字节），channel打开前为-1 //protected by this
+    private long length = -1;
+
+    private final long segmentSize;
+    //当前的映射，文件变长后整体替换
+    private volatile Mapping mapping = Mapping.NONE;
+
+    //映射区域：segments[i]映射文件的[i*segmentSize, i*segmentSize+segments[i].capacity())
+    private static final class Mapping {
+        static final Mapping NONE = new Mapping(new MappedByteBuffer[0], 0);
+
+        final MappedByteBuffer[] segments;
+        final long length;
+
+        Mapping(MappedByteBuffer[] segments, long length) {
+            this.segments = segments;
+            this.length = length;
+        }
+    }
+
+    public PageFile(File file) {
+        this(file, SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize the size of each memory mapped segment; only
+     *   smaller than SEGMENT_SIZE for testing
+     */
+    PageFile(File file, long segmentSize) {
+        this.file = file;
+        this.segmentSize = segmentSize;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    //第一次使用时才打开文件，之后一直复用同一个channel
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen()) {
+            return ch;
+        }
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                RandomAccessFile raf;
+                try {
+                    raf = new RandomAccessFile(file, "rw");
+                } catch (FileNotFoundException e) {
+                    //只读文件
+                    if (!file.exists()) {
+                        throw e;
+                    }
+                    raf = new RandomAccessFile(file, "r");
+                }
+                channel = raf.getChannel();
+                length = channel.size();
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Returns the length of the file in bytes. Only the first call stats
+     * the file; afterwards the length is tracked by write().
+     */
+    public long length() throws IOException {
+        synchronized (this) {
+            if (length >= 0) {
+                return length;
+            }
+            //不为了求长度创建文件
+            if (!file.exists()) {
+                return 0;
+            }
+        }
+        channel();
+        synchronized (this) {
+            return length;
+        }
+    }
+
+    /**
+     * Reads data.length bytes starting at the given offset, or fewer if the
+     * file ends first.
+     *
+     * @return the number of bytes read, -1 if offset is at or past the end
+     *   of the file
+     */
+    public int read(long offset, byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            int n = read(buf, offset + buf.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        return (buf.position() == 0 && data.length > 0) ? -1 : buf.position();
+    }
+
+    private int read(ByteBuffer buf, long position) throws IOException {
+        try {
+            return channel().read(buf, position);
+        } catch (ClosedChannelException e) {
+            rethrowIfInterrupted(e);
+            return channel().read(buf, position);
+        }
+    }
+
+    /**
+     * Writes data starting at the given offset, extending the file if
+     * needed.
+     */
+    public void write(long offset, byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            long position = offset + buf.position();
+            try {
+                channel().write(buf, position);
+            } catch (ClosedChannelException e) {
+                rethrowIfInterrupted(e);
+                channel().write(buf, position);
+            }
+        }
+        synchronized (this) {
+            length = Math.max(length, offset + data.length);
+        }
+    }
+
+    /**
+     * Appends data at the end of the file.
+     *
+     * @return the offset it was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long offset = length();
+        write(offset, data);
+        return offset;
+    }
+
+    /**
+     * Reserves bytes at the end of the file for the caller to write later;
+     * length() includes them from now on, and they read as zeros until
+     * they are written.
+     *
+     * @return the offset of the reserved region
+     */
+    public synchronized long reserve(long bytes) throws IOException {
+        long offset = length();
+        channel();
+        length = offset + bytes;
+        return offset;
+    }
+
+    /**
+     * Returns a read-only view of size bytes of the file starting at
+     * offset, backed by a memory mapping of the file. Writes to the file are
+     * visible through the view. The mappings are extended first if the file
+     * has grown past them.
+     *
+     * @return the view, with position 0 at offset, or null if the region is
+     *   not inside the file or crosses the boundary between two segments
+     */
+    public ByteBuffer map(long offset, int size) throws IOException {
+        Mapping m = mapping;
+        if (offset + size > m.length) {
+            m = remap();
+            if (offset + size > m.length) {
+                return null;
+            }
+        }
+        int seg = (int) (offset / segmentSize);
+        int pos = (int) (offset - seg * segmentSize);
+        MappedByteBuffer segment = m.segments[seg];
+        if (pos + size > segment.capacity()) {
+            return null;
+        }
+        //duplicate出独立的position/limit，多个线程可以同时读一个segment
+        ByteBuffer view = segment.duplicate();
+        view.position(pos);
+        view.limit(pos + size);
+        return view.slice();
+    }
+
+    //把映射扩展到文件当前的长度，已经映射满的segment保留
+    private synchronized Mapping remap() throws IOException {
+        long len = length();
+        Mapping m = mapping;
+        if (len <= m.length) {
+            return m;
+        }
+        FileChannel ch = channel();
+        int count = (int) ((len + segmentSize - 1) / segmentSize);
+        MappedByteBuffer[] segments = Arrays.copyOf(m.segments, count);
+        for (int i = 0; i < count; i++) {
+            long start = i * segmentSize;
+            long size = Math.min(segmentSize, len - start);
+            if (segments[i] == null || segments[i].capacity() < size) {
+                segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        }
+        mapping = new Mapping(segments, len);
+        return mapping;
+    }
+
+    /** Forces all writes to the storage device. */
+    public void force() throws IOException {
+        channel().force(true);
+    }
+
+    /**
+     * Closes the channel. The file is reopened the next time it is used.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            length = -1;
+            mapping = Mapping.NONE;
+        }
+    }
+
+    /* A thread that is interrupted during I/O on a FileChannel closes it
+       for every thread. channel() reopens it, so other threads just retry;
+       the interrupted thread itself still gets the exception. */
+    private void rethrowIfInterrupted(ClosedChannelException e) throws IOException {
+        if (e instanceof ClosedByInterruptException) {
+            throw e;
+        }
+    }
+}
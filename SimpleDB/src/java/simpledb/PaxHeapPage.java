@@ -0,0 +1,237 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * PaxHeapPage is the page format of HeapFiles created with
+ * {@link HeapFile.Format#PAX} (Partition Attributes Across). It has as many
+ * slots as a HeapPage and the same header bitmap, but instead of storing
+ * each tuple's fields next to each other, it stores the values of each
+ * column together: after the header comes one region ("minipage") per
+ * column, holding that column's value for every slot in slot order.
+ * <p>
+ * A scan that only needs some of the columns reads them with
+ * {@link #iterator(BitSet)}, which decodes just those values and touches
+ * only their minipages; the other fields of the returned tuples are null.
+ *
+ * @see HeapPage
+ */
+public class PaxHeapPage extends CopyOnWriteHeapPage {
+
+    final int numSlots;
+    final int headerSize;
+    //每一列的minipage在page中的起始位置
+    private final int[] columnStart;
+    //已经完整解码的tuple //protected by this
+    private Tuple[] tuples;
+
+    /**
+     * Create a PaxHeapPage from a set of bytes of data read from disk. The
+     * page keeps data as its contents without copying it; data must not be
+     * modified afterwards.
+     */
+    public PaxHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, data);
+        this.numSlots = HeapPage.getNumSlots(td);
+        this.headerSize = HeapPage.getHeaderSize(numSlots);
+        this.columnStart = new int[td.numFields()];
+        int start = headerSize;
+        for (int i = 0; i < td.numFields(); i++) {
+            columnStart[i] = start;
+            start += numSlots * td.getFieldType(i).getLen();
+        }
+        if (data.length < headerSize) {
+            throw new EOFException("page " + id.getPageNumber() + " is truncated");
+        }
+    }
+
+    PaxHeapPage newPage(byte[] bytes) throws IOException {
+        return new PaxHeapPage(pid, bytes);
+    }
+
+    public synchronized int getNumEmptySlots() {
+        int cnt = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(data, i)) cnt++;
+        }
+        return cnt;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public synchronized boolean isSlotUsed(int i) {
+        return isSlotUsed(data, i);
+    }
+
+    private static boolean isSlotUsed(byte[] bytes, int i) {
+        return (bytes[i / 8] >> (i % 8) & 1) == 1;
+    }
+
+    //protected by this
+    private void markSlotUsed(int i, boolean value) {
+        if (value)
+            data[i / 8] |= (byte) (1 << (i % 8));
+        else
+            data[i / 8] &= (byte) ~(1 << (i % 8));
+    }
+
+    //第col列第slot个值的位置
+    private int offset(int col, int slot) {
+        return columnStart[col] + slot * td.getFieldType(col).getLen();
+    }
+
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) throw new DbException("tupleDesc is mismatch");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(data, i)) {
+                beforeWrite();
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                for (int j = 0; j < td.numFields(); j++) {
+                    buf.position(offset(j, i));
+                    t.getField(j).serialize(buf);
+                }
+                if (tuples == null)
+                    tuples = new Tuple[numSlots];
+                tuples[i] = t;
+                t.setRecordId(new RecordId(pid, i));
+                markSlotUsed(i, true);
+                return;
+            }
+        }
+        throw new DbException("the page is full (no empty slots)");
+    }
+
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        int slot = rid == null ? -1 : rid.getTupleNumber();
+        if (rid == null || !pid.equals(rid.getPageId()) || slot < 0 || slot >= numSlots
+                || !isSlotUsed(data, slot))
+            throw new DbException("this tuple is not on this page,or tuple slot is already empty");
+        beforeWrite();
+        if (tuples != null)
+            tuples[slot] = null;
+        //空slot的内容全为0
+        for (int j = 0; j < td.numFields(); j++) {
+            int offset = offset(j, slot);
+            Arrays.fill(data, offset, offset + td.getFieldType(j).getLen(), (byte) 0);
+        }
+        markSlotUsed(slot, false);
+    }
+
+    //第slot个完整的tuple，第一次访问时解码；bytes不是当前的data时不缓存
+    private synchronized Tuple tuple(byte[] bytes, ByteBuffer buf, int slot, BitSet all) {
+        if (bytes != data)
+            return readTuple(buf, slot, all);
+        if (tuples == null)
+            tuples = new Tuple[numSlots];
+        Tuple t = tuples[slot];
+        if (t == null) {
+            t = readTuple(buf, slot, all);
+            tuples[slot] = t;
+        }
+        return t;
+    }
+
+    //只解码columns中的列，其余字段为null
+    private Tuple readTuple(ByteBuffer buf, int slot, BitSet columns) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                if (!columns.get(j)) {
+                    t.setField(j, null);
+                    continue;
+                }
+                buf.position(offset(j, slot));
+                t.setField(j, td.getFieldType(j).parse(buf));
+            }
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return t;
+    }
+
+    public Iterator<Tuple> iterator() {
+        BitSet all = new BitSet();
+        all.set(0, td.numFields());
+        return iterator(all);
+    }
+
+    /**
+     * Returns a reader that decodes the given columns of the tuples on this
+     * page straight out of their minipages into the column vectors of
+     * TupleBatches; the other columns are stored as 0 or null.
+     */
+    public BatchReader batchReader(final BitSet columns) {
+        final byte[] snapshot = snapshot();
+        return new BatchReader() {
+            private int next = nextUsedSlot(0);
+
+            private int nextUsedSlot(int from) {
+                while (from < numSlots && !isSlotUsed(snapshot, from))
+                    from++;
+                return from;
+            }
+
+            public boolean read(TupleBatch batch) {
+                int row = batch.size();
+                while (next < numSlots && row < batch.capacity()) {
+                    for (int j = 0; j < td.numFields(); j++) {
+                        if (columns == null || columns.get(j))
+                            batch.readField(j, row, snapshot, offset(j, next));
+                        else if (td.getFieldType(j) == Type.INT_TYPE)
+                            batch.getInts(j)[row] = 0;
+                        else
+                            batch.getStrings(j)[row] = null;
+                    }
+                    row++;
+                    next = nextUsedSlot(next + 1);
+                }
+                batch.setSize(row);
+                return next < numSlots;
+            }
+        };
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that decodes only
+     * the given columns; the other fields of the tuples are null. When all
+     * columns are asked for, the tuples are the ones {@link #iterator()}
+     * returns.
+     */
+    public Iterator<Tuple> iterator(final BitSet columns) {
+        //迭代器看到的是创建时的page
+        final byte[] snapshot = snapshot();
+        final boolean all = columns.nextClearBit(0) >= td.numFields();
+        final ByteBuffer buf = ByteBuffer.wrap(snapshot);
+        return new Iterator<Tuple>() {
+            private int next = nextUsedSlot(0);
+
+            private int nextUsedSlot(int from) {
+                while (from < numSlots && !isSlotUsed(snapshot, from))
+                    from++;
+                return from;
+            }
+
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = all ? tuple(snapshot, buf, next, columns) : readTuple(buf, next, columns);
+                next = nextUsedSlot(next + 1);
+                return t;
+            }
+        };
+    }
+}
@@ -105,6 +105,73 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op,operand);
     }
 
+    /**
+     * Applies the predicate to every row of in and appends the rows for
+     * which it is true to out, which has the same schema. Compares the
+     * column vectors directly, without creating a Field per row.
+     *
+     * @see #filter(Tuple)
+     */
+    public void filter(TupleBatch in, TupleBatch out) {
+        int n = in.size();
+        if (operand.getType() == Type.INT_TYPE) {
+            int[] values = in.getInts(field);
+            int c = ((IntField) operand).getValue();
+            //按op分开循环，循环体内没有分支
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int i = 0; i < n; i++) if (values[i] == c) out.addRow(in, i);
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < n; i++) if (values[i] != c) out.addRow(in, i);
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < n; i++) if (values[i] > c) out.addRow(in, i);
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) if (values[i] >= c) out.addRow(in, i);
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < n; i++) if (values[i] < c) out.addRow(in, i);
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) if (values[i] <= c) out.addRow(in, i);
+                break;
+            }
+        } else {
+            String[] values = in.getStrings(field);
+            String c = ((StringField) operand).getValue();
+            for (int i = 0; i < n; i++) {
+                if (values[i] != null && compare(values[i], c))
+                    out.addRow(in, i);
+            }
+        }
+    }
+
+    //同StringField.compare
+    private boolean compare(String value, String c) {
+        if (op == Op.LIKE)
+            return value.indexOf(c) >= 0;
+        int cmp = value.compareTo(c);
+        switch (op) {
+        case EQUALS:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+        case GREATER_THAN:
+            return cmp > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+        case LESS_THAN:
+            return cmp < 0;
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        default:
+            return false;
+        }
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -5,12 +5,14 @@ import java.util.*;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private transient BatchIterator batches;//以batch读child
+    private transient int[] outCols;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -80,6 +82,21 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of projected rows. The batch is a view of the
+     * child's batch, so no values are copied.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (batches == null) {
+            batches = TupleBatcher.of(child);
+            outCols = new int[outFieldIds.size()];
+            for (int i = 0; i < outCols.length; i++)
+                outCols[i] = outFieldIds.get(i);
+        }
+        TupleBatch b = batches.nextBatch();
+        return b == null ? null : b.project(td, outCols);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -90,6 +107,7 @@ public class Project extends Operator {
 	if (this.child!=children[0])
 	{
 	    this.child = children[0];
+	    batches = null;
 	}
     }
     
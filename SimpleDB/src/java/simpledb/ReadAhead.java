@@ -0,0 +1,230 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequential read-ahead for the BufferPool. The BufferPool reports every
+ * page access; when consecutive accesses to a file follow its scan order
+ * (page n+1 after page n of a HeapFile, the right sibling after a leaf of
+ * a BTreeFile), the following pages are loaded into the BufferPool by a
+ * small pool of I/O threads, so that the scan finds them cached.
+ * <p>
+ * The number of pages read ahead (the window) adapts to the scan: it
+ * doubles when the scan catches up with pages that are still being read,
+ * and halves when pages read ahead are evicted before the scan gets to
+ * them.
+ *
+ * @Threadsafe
+ */
+public class ReadAhead {
+
+    /** Number of threads that read pages ahead */
+    public static final int IO_THREADS = 2;
+    /** Window of a new sequential scan */
+    public static final int INITIAL_WINDOW = 4;
+    /** Sequential accesses it takes before reading ahead */
+    static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private final BufferPool bufferPool;
+    //窗口上限，不超过bufferpool的1/4，避免预读把正在用的page挤出去
+    private final int maxWindow;
+    private final ThreadPoolExecutor executor;
+    //每个表一个扫描流
+    private final ConcurrentHashMap<Integer, Stream> streams;
+
+    //一个表上的顺序扫描状态，protected by the stream
+    private static final class Stream {
+        //按扫描顺序，下一次应访问的page
+        PageId expected;
+        //连续顺序访问的次数
+        int run;
+        int window = INITIAL_WINDOW;
+        //已预读（值为true）或正在预读（false）、但扫描还没访问到的page
+        final HashMap<PageId, Boolean> pending = new HashMap<PageId, Boolean>();
+        //最后一个提交预读的page，下一批从它的下一页开始
+        PageId frontier;
+        boolean reading;
+        //预读重新开始时加一，旧的预读任务据此停下
+        int generation;
+
+        void restart() {
+            pending.clear();
+            frontier = null;
+            generation++;
+        }
+    }
+
+    /** How a page access was served, see {@link #pageAccessed} */
+    enum Access {
+        /** the page was cached */
+        HIT,
+        /** the page was being read and the caller waited for it */
+        WAITED,
+        /** the caller read the page from disk */
+        MISS
+    }
+
+    ReadAhead(BufferPool bufferPool, int numPages) {
+        this.bufferPool = bufferPool;
+        this.maxWindow = Math.max(numPages / 4, 1);
+        this.streams = new ConcurrentHashMap<Integer, Stream>();
+        this.executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BufferPool read-ahead");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the page that follows page in the scan order of its file, or
+     * null if there is none.
+     */
+    static PageId nextPageId(Page page) {
+        if (page instanceof HeapFilePage) {
+            HeapPageId pid = ((HeapFilePage) page).getId();
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+            if (!(file instanceof HeapFile)
+                    || pid.getPageNumber() + 1 >= ((HeapFile) file).numPages()) {
+                return null;
+            }
+            return new HeapPageId(pid.getTableId(), pid.getPageNumber() + 1);
+        }
+        if (page instanceof BTreeLeafPage) {
+            return ((BTreeLeafPage) page).getRightSiblingId();
+        }
+        return null;
+    }
+
+    /**
+     * Called by the BufferPool after it served a page. Detects sequential
+     * scans and starts reading ahead.
+     */
+    void pageAccessed(Page page, Access access) {
+        if (!(page instanceof HeapFilePage || page instanceof BTreeLeafPage)) {
+            return;
+        }
+        PageId pid = page.getId();
+        Stream stream = streams.get(pid.getTableId());
+        if (stream == null) {
+            stream = new Stream();
+            Stream prev = streams.putIfAbsent(pid.getTableId(), stream);
+            if (prev != null) {
+                stream = prev;
+            }
+        }
+        PageId next = nextPageId(page);
+        PageId start;
+        int count;
+        int generation;
+        synchronized (stream) {
+            if (pid.equals(stream.expected)) {
+                stream.run++;
+            } else {
+                //不是顺序访问，重新开始
+                stream.run = 1;
+                stream.window = INITIAL_WINDOW;
+                stream.restart();
+            }
+            stream.expected = next;
+            Boolean loaded = stream.pending.remove(pid);
+            if (loaded != null) {
+                if (access == Access.WAITED || (access == Access.MISS && !loaded)) {
+                    //扫描追上了预读，说明窗口太小
+                    stream.window = Math.min(stream.window * 2, maxWindow);
+                } else if (access == Access.MISS) {
+                    //预读的page在被用到前就被驱逐了，窗口太大
+                    stream.window = Math.max(stream.window / 2, 1);
+                }
+            } else if (access == Access.MISS && stream.run > SEQUENTIAL_THRESHOLD) {
+                //扫描已经越过了预读的位置，从当前位置重新预读，并加大窗口
+                stream.window = Math.min(stream.window * 2, maxWindow);
+                stream.restart();
+                stream.reading = false;
+            }
+            if (next == null || stream.run < SEQUENTIAL_THRESHOLD || stream.reading
+                    || stream.pending.size() > stream.window / 2) {
+                return;
+            }
+            start = stream.frontier != null && !stream.pending.isEmpty() ? stream.frontier : pid;
+            count = Math.min(stream.window, maxWindow) - stream.pending.size();
+            if (count <= 0) {
+                return;
+            }
+            stream.reading = true;
+            generation = stream.generation;
+        }
+        submit(stream, start, count, generation);
+    }
+
+    private void submit(final Stream stream, final PageId start, final int count, final int generation) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    readAhead(stream, start, count, generation);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (stream) {
+                if (stream.generation == generation) {
+                    stream.reading = false;
+                }
+            }
+        }
+    }
+
+    //沿扫描顺序读入start之后的count个page
+    private void readAhead(Stream stream, PageId start, int count, int generation) {
+        try {
+            Page page = bufferPool.prefetchPage(start);
+            for (int i = 0; i < count && page != null; i++) {
+                PageId pid = nextPageId(page);
+                if (pid == null) {
+                    break;
+                }
+                synchronized (stream) {
+                    //扫描已经转向别处，或已经越过了这里
+                    if (stream.generation != generation) {
+                        break;
+                    }
+                    stream.pending.put(pid, Boolean.FALSE);
+                    stream.frontier = pid;
+                }
+                page = bufferPool.prefetchPage(pid);
+                synchronized (stream) {
+                    if (stream.generation == generation && stream.pending.containsKey(pid)) {
+                        stream.pending.put(pid, Boolean.TRUE);
+                    }
+                }
+            }
+        } catch (DbException | RuntimeException e) {
+            //预读只是优化：bufferpool满了或表已不存在时放弃
+        } finally {
+            synchronized (stream) {
+                if (stream.generation == generation) {
+                    stream.reading = false;
+                }
+            }
+        }
+    }
+
+    /** Stop the I/O threads; pages being read are still read. */
+    void shutdown() {
+        executor.shutdown();
+    }
+}
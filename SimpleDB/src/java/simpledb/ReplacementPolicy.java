@@ -0,0 +1,52 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool evicts when it is
+ * full. The BufferPool tells the policy about every page it admits, every
+ * hit on a cached page and every page it drops, and asks it for a victim on
+ * a miss.
+ * <p>
+ * Implementations must be safe to call from several threads at once.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Tells the policy which pages may be evicted right now (for example,
+     * the BufferPool will not evict dirty pages).
+     */
+    public interface EvictionFilter {
+        /** @return true if the page may be evicted */
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Called when a page is read into the buffer pool on a miss.
+     * @param pid the page that was admitted
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * Called when a request is served by a page already in the buffer pool.
+     * @param pid the page that was accessed
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool without being chosen by
+     * {@link #chooseVictim}, e.g. when it is discarded.
+     * @param pid the page that was removed
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose a page to evict and stop tracking it.
+     * @param filter decides which of the tracked pages may be evicted
+     * @return the page to evict, or null if no tracked page may be evicted
+     */
+    public PageId chooseVictim(EvictionFilter filter);
+
+    /** @return a short name for this policy, used when reporting statistics */
+    public String getName();
+}
@@ -7,7 +7,7 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements OpIterator, BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -31,6 +31,8 @@ public class SeqScan implements OpIterator {
     private int tableId;//欲扫描的表的id
     private String tableAlias;//表的别名
     private DbFileIterator iterator;//用于遍历表中所有tuple
+    private BitSet columns;//查询用到的列，null表示全部
+    private transient TupleBatch batch;//nextBatch复用的batch
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
         this.tid = tid;
@@ -79,10 +81,32 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Tells the scan which fields of the table the rest of the plan reads.
+     * The scanned tuples still have the full TupleDesc, but for tables
+     * whose pages store columns separately (see {@link HeapFile.Format#PAX})
+     * the other fields are not decoded and are null. Takes effect at the
+     * next open().
+     *
+     * @param columns the indexes of the needed fields, or null for all
+     */
+    public void setColumns(BitSet columns) {
+        this.columns = columns;
+    }
+
+    public BitSet getColumns() {
+        return columns;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         DbFile table = Database.getCatalog().getDatabaseFile(tableId);
-        iterator = table.iterator(tid);
+        if (columns != null && table instanceof HeapFile) {
+            iterator = ((HeapFile) table).iterator(tid, columns);
+        } else {
+            iterator = table.iterator(tid);
+        }
+        batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_SIZE);
         iterator.open();
     }
 
@@ -136,9 +160,29 @@ public class SeqScan implements OpIterator {
         else throw new NoSuchElementException("This is the last element");
     }
 
+    /**
+     * Returns the next batch of up to TupleBatch.DEFAULT_SIZE tuples of
+     * the table, with the TupleDesc of {@link #getTupleDesc}. The rows of
+     * a HeapFile are decoded straight from its pages into the batch.
+     *
+     * @throws IllegalStateException if the scan is not open
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (batch == null) throw new IllegalStateException("SeqScan is not open");
+        batch.clear();
+        if (iterator instanceof HeapFile.HeapFileIterator) {
+            ((HeapFile.HeapFileIterator) iterator).fillBatch(batch);
+        } else {
+            while (!batch.isFull() && iterator.hasNext())
+                batch.addTuple(iterator.next());
+        }
+        return batch.size() == 0 ? null : batch;
+    }
+
     public void close() {
         // some code goes here
         iterator.close();
+        batch = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
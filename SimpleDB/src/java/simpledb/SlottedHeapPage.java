@@ -0,0 +1,366 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * SlottedHeapPage is the page format of HeapFiles created with
+ * {@link HeapFile.Format#SLOTTED}. A HeapPage gives every tuple a slot as
+ * wide as the widest tuple of the table, so a string always takes
+ * STRING_LEN + 4 bytes; a SlottedHeapPage stores each tuple as a record of
+ * its actual length, so short strings take little more than their
+ * characters.
+ * <p>
+ * The page starts with a header of three unsigned 16 bit integers: the
+ * number of slots, the offset of the record area, and the number of bytes
+ * used by records. The slot directory follows, with an unsigned 16 bit
+ * record offset and length per slot; an offset of 0 marks a free slot.
+ * Records are stored at the end of the page, growing towards the
+ * directory; an offset of 0 for the record area stands for the page size,
+ * so that an all zero page is empty. A record holds the tuple's fields in
+ * order: an int as 4 bytes, a string as a length byte followed by its
+ * characters.
+ * <p>
+ * Slots keep their number for as long as the tuple is on the page, so
+ * RecordIds stay valid. Deleting a tuple leaves a hole in the record area;
+ * holes are compacted away when an insert needs the space.
+ *
+ * @see HeapPage
+ */
+public class SlottedHeapPage extends CopyOnWriteHeapPage {
+
+    /** Size of the page header in bytes */
+    static final int HEADER_SIZE = 6;
+    /** Size of a slot directory entry in bytes */
+    static final int SLOT_SIZE = 4;
+
+    //最长的记录的字节数
+    final int maxRecordSize;
+    private final int pageSize;
+    //已经解码的tuple，按slot号 //protected by this
+    private Tuple[] tuples;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     * The page keeps data as its contents without copying it; data must
+     * not be modified afterwards.
+     *
+     * @throws IOException if data is not a valid page
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, data);
+        this.maxRecordSize = getMaxRecordSize(td);
+        this.pageSize = BufferPool.getPageSize();
+        if (pageSize > 1 << 16) {
+            throw new IOException("pages of " + pageSize + " bytes are too large for 16 bit offsets");
+        }
+        if (data.length < HEADER_SIZE) {
+            throw new EOFException("page " + id.getPageNumber() + " is truncated");
+        }
+        int dirEnd = HEADER_SIZE + numSlots() * SLOT_SIZE;
+        if (dirEnd > recordStart() || recordStart() > pageSize) {
+            throw new IOException("page " + id.getPageNumber() + " is not a slotted page");
+        }
+    }
+
+    SlottedHeapPage newPage(byte[] bytes) throws IOException {
+        return new SlottedHeapPage(pid, bytes);
+    }
+
+    /**
+     * Returns the number of bytes the largest record of a table whose
+     * tuples are described by td takes.
+     */
+    static int getMaxRecordSize(TupleDesc td) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            size += td.getFieldType(i) == Type.STRING_TYPE ? 1 + Type.STRING_LEN : td.getFieldType(i).getLen();
+        }
+        return size;
+    }
+
+    /**
+     * Returns whether a page of a table whose tuples are described by td
+     * has room for a record of the largest size, given the first
+     * HEADER_SIZE bytes of the page.
+     */
+    static boolean hasRoom(byte[] header, TupleDesc td) {
+        int free = BufferPool.getPageSize() - HEADER_SIZE - getU16(header, 0) * SLOT_SIZE - getU16(header, 4);
+        return free >= getMaxRecordSize(td) + SLOT_SIZE;
+    }
+
+    private static int getU16(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+    }
+
+    private static void putU16(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    //下面几个读写header和slot directory的方法 //protected by this
+    private int numSlots() {
+        return getU16(data, 0);
+    }
+
+    private int recordStart() {
+        int start = getU16(data, 2);
+        return start == 0 ? pageSize : start;
+    }
+
+    private int usedBytes() {
+        return getU16(data, 4);
+    }
+
+    private int freeBytes() {
+        return pageSize - HEADER_SIZE - numSlots() * SLOT_SIZE - usedBytes();
+    }
+
+    private static int recordOffset(byte[] bytes, int slot) {
+        return getU16(bytes, HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private static int recordLength(byte[] bytes, int slot) {
+        return getU16(bytes, HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        putU16(data, HEADER_SIZE + slot * SLOT_SIZE, offset);
+        putU16(data, HEADER_SIZE + slot * SLOT_SIZE + 2, length);
+    }
+
+    public synchronized int getNumEmptySlots() {
+        return Math.max(freeBytes(), 0) / (maxRecordSize + SLOT_SIZE);
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public synchronized boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots() && recordOffset(data, i) != 0;
+    }
+
+    /**
+     * Adds the specified tuple to the page, compacting the record area
+     * first if the free space is split up by holes.
+     *
+     * @throws DbException if the page has no room for the tuple or the
+     *         tupledesc does not match
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) throw new DbException("tupleDesc is mismatch");
+        int length = recordLength(t);
+        //优先复用空出来的slot
+        int slot = 0;
+        int slots = numSlots();
+        while (slot < slots && recordOffset(data, slot) != 0)
+            slot++;
+        int needed = length + (slot == slots ? SLOT_SIZE : 0);
+        if (freeBytes() < needed)
+            throw new DbException("the page is full (no room for the tuple)");
+
+        beforeWrite();
+        int dirEnd = HEADER_SIZE + slots * SLOT_SIZE + (slot == slots ? SLOT_SIZE : 0);
+        if (recordStart() - length < dirEnd)
+            compact();
+        int offset = recordStart() - length;
+        writeRecord(t, offset);
+        if (slot == slots)
+            putU16(data, 0, slots + 1);
+        setSlot(slot, offset, length);
+        putU16(data, 2, offset);
+        putU16(data, 4, usedBytes() + length);
+
+        if (tuples == null || tuples.length <= slot)
+            tuples = tuples == null ? new Tuple[slot + 1] : Arrays.copyOf(tuples, Math.max(slot + 1, tuples.length * 2));
+        tuples[slot] = t;
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page; its slot becomes free.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        int slot = rid == null ? -1 : rid.getTupleNumber();
+        if (rid == null || !pid.equals(rid.getPageId()) || !isSlotUsed(slot))
+            throw new DbException("this tuple is not on this page,or tuple slot is already empty");
+        beforeWrite();
+        int length = recordLength(data, slot);
+        Arrays.fill(data, recordOffset(data, slot), recordOffset(data, slot) + length, (byte) 0);
+        setSlot(slot, 0, 0);
+        putU16(data, 4, usedBytes() - length);
+        //去掉末尾的空slot，directory变短
+        int slots = numSlots();
+        while (slots > 0 && recordOffset(data, slots - 1) == 0)
+            slots--;
+        putU16(data, 0, slots);
+        if (tuples != null && slot < tuples.length)
+            tuples[slot] = null;
+    }
+
+    //把所有记录挪到page末尾，去掉删除留下的空洞；slot号不变 //protected by this
+    private void compact() {
+        byte[] compacted = new byte[pageSize];
+        int slots = numSlots();
+        System.arraycopy(data, 0, compacted, 0, HEADER_SIZE + slots * SLOT_SIZE);
+        int end = pageSize;
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = recordOffset(data, slot);
+            if (offset == 0)
+                continue;
+            int length = recordLength(data, slot);
+            end -= length;
+            System.arraycopy(data, offset, compacted, end, length);
+            putU16(compacted, HEADER_SIZE + slot * SLOT_SIZE, end);
+        }
+        putU16(compacted, 2, end);
+        //调用前已经beforeWrite过，data不与别人共享
+        data = compacted;
+    }
+
+    private int recordLength(Tuple t) {
+        int length = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE)
+                length += 1 + Math.min(((StringField) t.getField(i)).getValue().length(), Type.STRING_LEN);
+            else
+                length += td.getFieldType(i).getLen();
+        }
+        return length;
+    }
+
+    //protected by this
+    private void writeRecord(Tuple t, int offset) {
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                String s = ((StringField) f).getValue();
+                int len = Math.min(s.length(), Type.STRING_LEN);
+                data[offset++] = (byte) len;
+                for (int j = 0; j < len; j++)
+                    data[offset++] = (byte) s.charAt(j);
+            } else {
+                int v = ((IntField) f).getValue();
+                data[offset++] = (byte) (v >>> 24);
+                data[offset++] = (byte) (v >>> 16);
+                data[offset++] = (byte) (v >>> 8);
+                data[offset++] = (byte) v;
+            }
+        }
+    }
+
+    //第slot个tuple，第一次访问时解码；bytes不是当前的data时不缓存
+    private synchronized Tuple tuple(byte[] bytes, int slot) {
+        if (bytes != data)
+            return readTuple(bytes, slot);
+        if (tuples == null || tuples.length <= slot)
+            tuples = tuples == null ? new Tuple[numSlots()] : Arrays.copyOf(tuples, numSlots());
+        Tuple t = tuples[slot];
+        if (t == null) {
+            t = readTuple(bytes, slot);
+            tuples[slot] = t;
+        }
+        return t;
+    }
+
+    private Tuple readTuple(byte[] bytes, int slot) {
+        int offset = recordOffset(bytes, slot);
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                int len = bytes[offset++] & 0xff;
+                t.setField(i, new StringField(readString(bytes, offset, len), Type.STRING_LEN));
+                offset += len;
+            } else {
+                t.setField(i, new IntField(readInt(bytes, offset)));
+                offset += 4;
+            }
+        }
+        return t;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static String readString(byte[] bytes, int offset, int len) {
+        return new String(bytes, offset, len, java.nio.charset.StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns a reader that decodes the records on this page straight into
+     * the column vectors of TupleBatches; see {@link HeapFilePage#batchReader}.
+     * All fields are decoded, like {@link #iterator()} does.
+     */
+    public BatchReader batchReader(BitSet columns) {
+        final byte[] snapshot = snapshot();
+        final int slots = getU16(snapshot, 0);
+        return new BatchReader() {
+            private int next = nextUsedSlot(0);
+
+            private int nextUsedSlot(int from) {
+                while (from < slots && recordOffset(snapshot, from) == 0)
+                    from++;
+                return from;
+            }
+
+            public boolean read(TupleBatch batch) {
+                int row = batch.size();
+                while (next < slots && row < batch.capacity()) {
+                    int offset = recordOffset(snapshot, next);
+                    for (int i = 0; i < td.numFields(); i++) {
+                        if (td.getFieldType(i) == Type.STRING_TYPE) {
+                            int len = snapshot[offset++] & 0xff;
+                            batch.getStrings(i)[row] = readString(snapshot, offset, len);
+                            offset += len;
+                        } else {
+                            batch.getInts(i)[row] = readInt(snapshot, offset);
+                            offset += 4;
+                        }
+                    }
+                    row++;
+                    next = nextUsedSlot(next + 1);
+                }
+                batch.setSize(row);
+                return next < slots;
+            }
+        };
+    }
+
+    public Iterator<Tuple> iterator() {
+        //迭代器看到的是创建时的page
+        final byte[] snapshot = snapshot();
+        final int slots = getU16(snapshot, 0);
+        return new Iterator<Tuple>() {
+            private int next = nextUsedSlot(0);
+
+            private int nextUsedSlot(int from) {
+                while (from < slots && recordOffset(snapshot, from) == 0)
+                    from++;
+                return from;
+            }
+
+            public boolean hasNext() {
+                return next < slots;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = tuple(snapshot, next);
+                next = nextUsedSlot(next + 1);
+                return t;
+            }
+        };
+    }
+}
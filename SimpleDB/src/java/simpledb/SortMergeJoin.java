@@ -0,0 +1,250 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two children that return their tuples in ascending
+ * order of their join fields, such as a scan of a BTreeFile keyed on the
+ * join field or an ascending {@link OrderBy}, by merging them.
+ * <p>
+ * For EQUALS both children are read once, and only the tuples of child2
+ * with the current join key are kept in memory; consecutive tuples of
+ * child1 with the same key are joined with them again, so duplicates on
+ * both sides are handled. For the other predicates child2 is read into
+ * memory once, and the tuples of child2 that match a tuple of child1 are
+ * one range of it (two for NOT_EQUALS), whose bounds only move forward as
+ * the keys of child1 grow. LIKE is not supported.
+ * <p>
+ * The output is in the order of child1, so it is sorted on join field1,
+ * and for EQUALS also on join field2.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate p;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+    //当前的child1 tuple
+    transient private Tuple t1;
+    //EQUALS: child2中连接键为groupKey的tuple；其它谓词: child2的全部tuple
+    transient private ArrayList<Tuple> right;
+    transient private Field groupKey;
+    //EQUALS: child2中已经读出、但键大于groupKey的tuple
+    transient private Tuple next2;
+    transient private boolean loaded;
+    //t1还要连接right中的[pos, end)和[pos2, end2)
+    transient private int pos, end, pos2, end2;
+    //其它谓词: right中第一个键>=t1的键的位置，和第一个键>t1的键的位置
+    transient private int lo, hi;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on; both children must be sorted ascending on their join field.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() == Predicate.Op.LIKE)
+            throw new UnsupportedOperationException("Unsupported join operator " + p.getOperator());
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1, quantified by alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2, quantified by alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        right = new ArrayList<Tuple>();
+        loaded = false;
+        reset();
+        super.open();
+    }
+
+    //回到child1的开头；不等值连接已读入的child2可以继续使用
+    private void reset() {
+        t1 = null;
+        groupKey = null;
+        next2 = null;
+        pos = end = pos2 = end2 = 0;
+        lo = hi = 0;
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            right.clear();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        right = null;
+        t1 = null;
+        next2 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            child2.rewind();
+        reset();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a tuple of child1 and a matching
+     * tuple of child2.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (pos < end)
+                return joinTuple(t1, right.get(pos++));
+            if (pos2 < end2)
+                return joinTuple(t1, right.get(pos2++));
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            if (p.getOperator() == Predicate.Op.EQUALS)
+                matchEquals();
+            else
+                matchRange();
+        }
+    }
+
+    //在right中放入child2中键等于t1的键的tuple
+    private void matchEquals() throws DbException, TransactionAbortedException {
+        Field k = t1.getField(p.getField1());
+        pos2 = end2 = 0;
+        if (groupKey != null && compare(k, groupKey) == 0) {
+            //child1的重复键，再连接一次同一组
+            pos = 0;
+            end = right.size();
+            return;
+        }
+        right.clear();
+        groupKey = k;
+        while (true) {
+            if (next2 == null) {
+                if (!child2.hasNext())
+                    break;
+                next2 = child2.next();
+            }
+            int c = compare(next2.getField(p.getField2()), k);
+            if (c > 0)
+                break;
+            if (c == 0)
+                right.add(next2);
+            next2 = null;
+        }
+        pos = 0;
+        end = right.size();
+    }
+
+    //移动lo和hi，按谓词算出right中与t1匹配的范围
+    private void matchRange() throws DbException, TransactionAbortedException {
+        if (!loaded) {
+            while (child2.hasNext())
+                right.add(child2.next());
+            loaded = true;
+        }
+        Field k = t1.getField(p.getField1());
+        int n = right.size();
+        while (lo < n && compare(key2(lo), k) < 0)
+            lo++;
+        if (hi < lo)
+            hi = lo;
+        while (hi < n && compare(key2(hi), k) <= 0)
+            hi++;
+        pos = end = pos2 = end2 = 0;
+        switch (p.getOperator()) {
+        case LESS_THAN:
+            pos = hi;
+            end = n;
+            break;
+        case LESS_THAN_OR_EQ:
+            pos = lo;
+            end = n;
+            break;
+        case GREATER_THAN:
+            end = lo;
+            break;
+        case GREATER_THAN_OR_EQ:
+            end = hi;
+            break;
+        case NOT_EQUALS:
+            end = lo;
+            pos2 = hi;
+            end2 = n;
+            break;
+        default:
+            throw new UnsupportedOperationException("Unsupported join operator " + p.getOperator());
+        }
+    }
+
+    private Field key2(int i) {
+        return right.get(i).getField(p.getField2());
+    }
+
+    //比较两个连接键，返回负数、0或正数
+    private static int compare(Field a, Field b) {
+        if (a instanceof IntField)
+            return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    private Tuple joinTuple(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+
+}
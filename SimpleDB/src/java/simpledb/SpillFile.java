@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of rows, for operators whose input does not
+ * fit in memory. Rows are appended with {@link #add(Tuple)} or
+ * {@link #addRow(TupleBatch, int)}, then read back in the order they were
+ * added, as an OpIterator or a BatchIterator; rewind reads them again.
+ * close deletes the file, and a SpillFile can not be written after it has
+ * been opened.
+ */
+public class SpillFile implements OpIterator, BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TupleDesc td;
+    //第一次add时才创建文件，空的SpillFile不占文件
+    private transient File file;
+    private transient DataOutputStream out;
+    private transient DataInputStream in;
+    private transient int count, read;
+    //所有打开过的读取一共读出的行数
+    private transient long readCount;
+    private transient TupleBatch batch;
+
+    public SpillFile(TupleDesc td) {
+        this.td = td;
+    }
+
+    /** @return the number of rows added */
+    public int size() {
+        return count;
+    }
+
+    /** Appends t, which may have null fields. */
+    public void add(Tuple t) throws DbException {
+        try {
+            startWrite();
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (f == null) {
+                    out.writeBoolean(false);
+                } else if (td.getFieldType(i) == Type.INT_TYPE) {
+                    out.writeBoolean(true);
+                    out.writeInt(((IntField) f).getValue());
+                } else {
+                    out.writeBoolean(true);
+                    out.writeUTF(((StringField) f).getValue());
+                }
+            }
+            count++;
+        } catch (IOException e) {
+            throw new DbException("spill failed: " + e.getMessage());
+        }
+    }
+
+    /** Appends row of b, which has the same schema. */
+    public void addRow(TupleBatch b, int row) throws DbException {
+        try {
+            startWrite();
+            for (int i = 0; i < td.numFields(); i++) {
+                int[] ints = b.getInts(i);
+                if (ints != null) {
+                    out.writeBoolean(true);
+                    out.writeInt(ints[row]);
+                } else {
+                    String s = b.getStrings(i)[row];
+                    out.writeBoolean(s != null);
+                    if (s != null)
+                        out.writeUTF(s);
+                }
+            }
+            count++;
+        } catch (IOException e) {
+            throw new DbException("spill failed: " + e.getMessage());
+        }
+    }
+
+    private void startWrite() throws IOException {
+        if (in != null)
+            throw new IllegalStateException("spill file is being read");
+        if (out == null) {
+            file = File.createTempFile("spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+    }
+
+    public void open() throws DbException {
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (in != null)
+                in.close();
+            in = file == null ? null
+                    : new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            read = 0;
+        } catch (IOException e) {
+            throw new DbException("spill failed: " + e.getMessage());
+        }
+    }
+
+    public boolean hasNext() {
+        return read < count;
+    }
+
+    public Tuple next() throws DbException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        try {
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = null;
+                if (in.readBoolean()) {
+                    if (td.getFieldType(i) == Type.INT_TYPE)
+                        f = new IntField(in.readInt());
+                    else
+                        f = new StringField(in.readUTF(), Type.STRING_LEN);
+                }
+                t.setField(i, f);
+            }
+            read++;
+            readCount++;
+            return t;
+        } catch (IOException e) {
+            throw new DbException("spill failed: " + e.getMessage());
+        }
+    }
+
+    public TupleBatch nextBatch() throws DbException {
+        if (!hasNext())
+            return null;
+        if (batch == null)
+            batch = new TupleBatch(td, TupleBatch.DEFAULT_SIZE);
+        batch.clear();
+        try {
+            //直接读入列向量，不经过Tuple
+            int n = Math.min(count - read, batch.capacity());
+            for (int row = 0; row < n; row++) {
+                for (int i = 0; i < td.numFields(); i++) {
+                    boolean present = in.readBoolean();
+                    int[] ints = batch.getInts(i);
+                    if (ints != null)
+                        ints[row] = present ? in.readInt() : 0;
+                    else
+                        batch.getStrings(i)[row] = present ? in.readUTF() : null;
+                }
+            }
+            batch.setSize(n);
+            read += n;
+            readCount += n;
+            return batch;
+        } catch (IOException e) {
+            throw new DbException("spill failed: " + e.getMessage());
+        }
+    }
+
+    /** @return the number of rows read, over all the times it was read */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    public void rewind() throws DbException {
+        open();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** Closes the file and deletes it. */
+    public void close() {
+        try {
+            if (out != null)
+                out.close();
+            if (in != null)
+                in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+        in = null;
+        if (file != null)
+            file.delete();
+        file = null;
+        count = 0;
+        read = 0;
+    }
+}
@@ -1,7 +1,7 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -16,34 +16,36 @@ public class StringAggregator implements Aggregator {
     private int aggFieldIndex;
     StringAggregator.AggHandler aggHandler;
     private Op what;
+    private HashKeyTable groups;//分组字段的值到组号的映射，NO_GROUPING时为null，只有组0
+    private int numGroups;//已有的组数
 
     private abstract class AggHandler{
-        HashMap<Field,Integer> aggResult;
-        //用于保存聚合后的结果
-        //Filed是用于分组的gbField，gbFieIndex=NO_GROUPING时为null
-        //Integer是聚合结果
-        abstract void handle(Field gbField, StringField aggField);
+        int[] aggResult;
+        //用于保存聚合后的结果，按组号存放
+        //组号是gbField在groups中的id，gbFieIndex=NO_GROUPING时只有组0
+        //新的组的结果是0
+        abstract void handle(int group, String aggValue);
 
         public AggHandler(){
-            aggResult = new HashMap<>();
+            aggResult = new int[16];
         }
-        public HashMap<Field,Integer> getAggResult(){
-            return aggResult;
+        //保证可以存放groups个组
+        void grow(int groups){
+            if(groups > aggResult.length){
+                aggResult = Arrays.copyOf(aggResult, aggResult.length * 2);
+            }
+        }
+        int getAggResult(int group){
+            return aggResult[group];
         }
     }
 
     private class CountHandler extends StringAggregator.AggHandler {
 
         @Override
-        void handle(Field gbField, StringField aggField) {
-            if(aggResult.containsKey(gbField)){
-                //对相同gbField对应的String计数
-                //HashMap的put方法覆盖键值对
-                //HashMap的get方法获取key对应的value
-                aggResult.put(gbField, aggResult.get(gbField) + 1);
-            } else {
-                aggResult.put(gbField, 1);
-            }
+        void handle(int group, String aggValue) {
+            //对相同组号的String计数
+            aggResult[group]++;
         }
     }
     /**
@@ -60,6 +62,9 @@ public class StringAggregator implements Aggregator {
         gbFieldIndex = gbfield;
         gbFieldType = gbfieldtype;
         aggFieldIndex = afield;
+        if(gbfield != NO_GROUPING){
+            groups = new HashKeyTable(gbfieldtype);
+        }
         switch (what) {
             case COUNT:
                 aggHandler = new StringAggregator.CountHandler();
@@ -76,15 +81,39 @@ public class StringAggregator implements Aggregator {
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
 
-        Field gbField;
         StringField aggField = (StringField) tup.getField(aggFieldIndex);
-        if(gbFieldIndex == NO_GROUPING){
-            gbField = null;
+        int group = gbFieldIndex == NO_GROUPING ? 0 : groups.add(tup.getField(gbFieldIndex));
+        merge(group, aggField == null ? null : aggField.getValue());
+    }
+
+    //把aggValue加入组号为group的组，group等于numGroups时是新的组
+    private void merge(int group, String aggValue) {
+        if(group == numGroups){
+            numGroups++;
+            aggHandler.grow(numGroups);
+        }
+        aggHandler.handle(group, aggValue);
+    }
+
+    /**
+     * Merge every row of a batch into the aggregate, reading the group-by
+     * values straight from the column vector
+     */
+    public void mergeBatch(TupleBatch batch) {
+        String[] values = batch.getStrings(aggFieldIndex);
+        int n = batch.size();
+        if (gbFieldIndex == NO_GROUPING) {
+            for (int i = 0; i < n; i++)
+                merge(0, values[i]);
+        } else if (gbFieldType == Type.INT_TYPE) {
+            int[] gb = batch.getInts(gbFieldIndex);
+            for (int i = 0; i < n; i++)
+                merge(groups.add(gb[i]), values[i]);
         } else {
-            gbField = tup.getField(gbFieldIndex);
+            String[] gb = batch.getStrings(gbFieldIndex);
+            for (int i = 0; i < n; i++)
+                merge(groups.add(gb[i]), values[i]);
         }
-        String newValue = aggField.getValue();
-        aggHandler.handle(gbField,aggField);
     }
 
     /**
@@ -98,7 +127,6 @@ public class StringAggregator implements Aggregator {
     public OpIterator iterator() {
         // some code goes here
         //这里的type注意不要混淆，聚合后的结果是数字INT_TYPE，原tuple的field是STRING_TYPE
-        HashMap<Field,Integer> result = aggHandler.getAggResult();
         Type[] fieldTypes;
         String[] fieldNames;
         TupleDesc tupleDesc;
@@ -108,25 +136,22 @@ public class StringAggregator implements Aggregator {
             fieldTypes = new Type[]{Type.INT_TYPE};
             fieldNames = new String[]{"aggregateValue"};
             tupleDesc = new TupleDesc(fieldTypes,fieldNames);
-            Tuple tuple = new Tuple(tupleDesc);
-            IntField resultField = new IntField(result.get(gbFieldIndex));
-            tuple.setField(0,resultField);
-            tuples.add(tuple);
+            //没有输入时没有结果
+            if(numGroups > 0){
+                Tuple tuple = new Tuple(tupleDesc);
+                IntField resultField = new IntField(aggHandler.getAggResult(0));
+                tuple.setField(0,resultField);
+                tuples.add(tuple);
+            }
         } else {
             fieldTypes = new Type[]{gbFieldType,Type.INT_TYPE};
             fieldNames = new String[]{"groupByValue" , "aggregateValue"};
             tupleDesc = new TupleDesc(fieldTypes,fieldNames);
-            for(Field field : result.keySet()){
+            for(int group = 0; group < numGroups; group++){
                 Tuple tuple = new Tuple(tupleDesc);
-                if(gbFieldType == Type.STRING_TYPE){
-                    StringField gbField = (StringField)field;
-                    tuple.setField(0,gbField);
-                } else {
-                    IntField gbField = (IntField) field;
-                    tuple.setField(0,gbField);
-                }
-
-                IntField resultField = new IntField(result.get(field));
+                tuple.setField(0,groups.getField(group));
+
+                IntField resultField = new IntField(aggHandler.getAggResult(group));
                 tuple.setField(1,resultField);
                 tuples.add(tuple);
             }
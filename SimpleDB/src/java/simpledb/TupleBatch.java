@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds a batch of rows in column vectors: an int[] for each
+ * INT_TYPE column and a String[] for each STRING_TYPE column. It is the
+ * unit of work of {@link BatchIterator}s, which process a whole batch per
+ * call instead of a Tuple at a time.
+ * <p>
+ * A batch converts to and from Tuples with {@link #getTuple} and
+ * {@link #addTuple}. Fields that are null in a Tuple (columns a scan did
+ * not decode, see {@link SeqScan#setColumns}) are stored as 0 or null.
+ */
+public class TupleBatch {
+
+    /** Number of rows batch operators put in a batch */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    //每一列的值，按类型放在ints或strings中，另一个数组对应位置为null
+    private final int[][] ints;
+    private final String[][] strings;
+    private int size;
+
+    /**
+     * Creates an empty batch for up to capacity rows of the given schema.
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.strings = new String[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                strings[i] = new String[capacity];
+        }
+    }
+
+    //直接使用给定的列，不复制
+    private TupleBatch(TupleDesc td, int capacity, int[][] ints, String[][] strings, int size) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.strings = strings;
+        this.size = size;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows in the batch */
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** Removes all rows. */
+    public void clear() {
+        size = 0;
+    }
+
+    //调用者已经直接写好了列向量的前n行
+    void setSize(int n) {
+        size = n;
+    }
+
+    /**
+     * Returns the values of INT_TYPE column col; only the first size()
+     * are rows of the batch.
+     */
+    public int[] getInts(int col) {
+        return ints[col];
+    }
+
+    /**
+     * Returns the values of STRING_TYPE column col; only the first size()
+     * are rows of the batch.
+     */
+    public String[] getStrings(int col) {
+        return strings[col];
+    }
+
+    /** Returns the value of column col of row as a Field. */
+    public Field getField(int col, int row) {
+        if (ints[col] != null)
+            return new IntField(ints[col][row]);
+        String s = strings[col][row];
+        return s == null ? null : new StringField(s, Type.STRING_LEN);
+    }
+
+    /** Returns row as a Tuple. */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++)
+            t.setField(i, getField(i, row));
+        return t;
+    }
+
+    //把bytes中offset处按Type的格式（见Type#parse）存放的值解码到第col列的第row行，不创建Field
+    void readField(int col, int row, byte[] bytes, int offset) {
+        int v = ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+        if (ints[col] != null)
+            ints[col][row] = v;
+        else
+            strings[col][row] = new String(bytes, offset + 4, v);
+    }
+
+    /** Appends the fields of t as a row. */
+    public void addTuple(Tuple t) {
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (ints[i] != null)
+                ints[i][size] = f == null ? 0 : ((IntField) f).getValue();
+            else
+                strings[i][size] = f == null ? null : ((StringField) f).getValue();
+        }
+        size++;
+    }
+
+    /** Appends row of src, which has the same schema, as a row. */
+    public void addRow(TupleBatch src, int row) {
+        copyRow(src, row, 0);
+        size++;
+    }
+
+    /**
+     * Appends the concatenation of row1 of b1 and row2 of b2 as a row; the
+     * schema of this batch is the merge of theirs.
+     */
+    public void addJoinedRow(TupleBatch b1, int row1, TupleBatch b2, int row2) {
+        copyRow(b1, row1, 0);
+        copyRow(b2, row2, b1.td.numFields());
+        size++;
+    }
+
+    //把src的第row行复制到本batch的size行，从第first列开始
+    private void copyRow(TupleBatch src, int row, int first) {
+        for (int i = 0; i < src.ints.length; i++) {
+            if (src.ints[i] != null)
+                ints[first + i][size] = src.ints[i][row];
+            else
+                strings[first + i][size] = src.strings[i][row];
+        }
+    }
+
+    /**
+     * Returns a batch with the given columns of this one, in the given
+     * order, as a view: it shares the column vectors and is only valid as
+     * long as this batch is.
+     */
+    public TupleBatch project(TupleDesc projected, int[] cols) {
+        int[][] pInts = new int[cols.length][];
+        String[][] pStrings = new String[cols.length][];
+        for (int i = 0; i < cols.length; i++) {
+            pInts[i] = ints[cols[i]];
+            pStrings[i] = strings[cols[i]];
+        }
+        return new TupleBatch(projected, capacity, pInts, pStrings, size);
+    }
+
+    /** Returns a copy of this batch that does not share its vectors. */
+    public TupleBatch copy() {
+        int[][] cInts = new int[ints.length][];
+        String[][] cStrings = new String[strings.length][];
+        for (int i = 0; i < ints.length; i++) {
+            cInts[i] = ints[i] == null ? null : Arrays.copyOf(ints[i], size);
+            cStrings[i] = strings[i] == null ? null : Arrays.copyOf(strings[i], size);
+        }
+        return new TupleBatch(td, size, cInts, cStrings, size);
+    }
+}
@@ -0,0 +1,54 @@
+package simpledb;
+
+/**
+ * TupleBatcher turns an OpIterator into a BatchIterator, by collecting
+ * its tuples into batches of up to TupleBatch.DEFAULT_SIZE rows. open,
+ * rewind and close are passed on to the child.
+ */
+public class TupleBatcher implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OpIterator child;
+    private transient TupleBatch batch;
+
+    public TupleBatcher(OpIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * Returns child itself if it implements BatchIterator, otherwise a
+     * TupleBatcher around it. Batch operators use this to read their
+     * children; they still open, rewind and close the child themselves.
+     */
+    public static BatchIterator of(OpIterator child) {
+        if (child instanceof BatchIterator)
+            return (BatchIterator) child;
+        return new TupleBatcher(child);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null)
+            batch = new TupleBatch(child.getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.addTuple(child.next());
+        return batch.size() == 0 ? null : batch;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
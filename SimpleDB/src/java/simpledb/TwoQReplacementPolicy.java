@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Scan resistant 2Q replacement (Johnson and Shasha, VLDB '94, simplified
+ * version). Pages enter a small FIFO queue, A1in, on their first access.
+ * Pages evicted from A1in are remembered (by id only) in the ghost queue
+ * A1out. A page that is read again while it is remembered in A1out has been
+ * re-referenced, so it goes to the main LRU queue, Am. A long sequential
+ * scan therefore only cycles through A1in and does not flush the hot pages
+ * in Am.
+ *
+ * @Threadsafe
+ */
+public class TwoQReplacementPolicy implements ReplacementPolicy {
+
+    //A1in：第一次访问的page，FIFO
+    private final LinkedHashSet<PageId> a1in;
+    //A1out：从A1in驱逐的page id（不占buffer），FIFO
+    private final LinkedHashSet<PageId> a1out;
+    //Am：被重复访问的热page，按访问顺序排列的LRU
+    private final LinkedHashMap<PageId, Boolean> am;
+    private final int kin;
+    private final int kout;
+
+    /**
+     * @param capacity the number of pages in the buffer pool
+     */
+    public TwoQReplacementPolicy(int capacity) {
+        this(capacity, Math.max(capacity / 4, 1), Math.max(capacity / 2, 1));
+    }
+
+    /**
+     * @param capacity the number of pages in the buffer pool
+     * @param kin the target size of A1in
+     * @param kout the number of page ids remembered in A1out
+     */
+    public TwoQReplacementPolicy(int capacity, int kin, int kout) {
+        this.a1in = new LinkedHashSet<PageId>();
+        this.a1out = new LinkedHashSet<PageId>();
+        this.am = new LinkedHashMap<PageId, Boolean>(capacity, 0.75f, true);
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (am.containsKey(pid) || a1in.contains(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        //在A1out里说明不久前被访问过，直接进入Am
+        if (a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        //Am中的page移到LRU队尾；A1in中的page不动（相关的连续访问只算一次）
+        am.get(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        a1in.remove(pid);
+        am.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(EvictionFilter filter) {
+        PageId victim;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = evictFrom(a1in.iterator(), filter);
+            if (victim != null) {
+                remember(victim);
+                return victim;
+            }
+            return evictFrom(am.keySet().iterator(), filter);
+        }
+        victim = evictFrom(am.keySet().iterator(), filter);
+        if (victim != null) {
+            return victim;
+        }
+        victim = evictFrom(a1in.iterator(), filter);
+        if (victim != null) {
+            remember(victim);
+        }
+        return victim;
+    }
+
+    //从队头开始找第一个可以驱逐的page并将其移出队列
+    private PageId evictFrom(Iterator<PageId> it, EvictionFilter filter) {
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (filter.canEvict(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    public String getName() {
+        return "2Q";
+    }
+}
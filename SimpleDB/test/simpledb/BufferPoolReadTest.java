@@ -0,0 +1,233 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolReadTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // 2 int columns fit 504 tuples per page, so this is 10 pages
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+    }
+
+    /**
+     * Unit test for BufferPool.getPage(): the pool never holds more than
+     * numPages pages.
+     */
+    @Test public void doesNotOvergrow() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hf.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(10, bp.getMissCount());
+        assertEquals(7, bp.getEvictionCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.getPage(): concurrent misses on the same page
+     * read it from disk only once and all see the same cached copy.
+     */
+    @Test public void concurrentMissesLoadOnce() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Page[][] seen = new Page[threads][hf.numPages()];
+        final Exception[] errors = new Exception[threads];
+        ArrayList<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int me = t;
+            Thread reader = new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        start.await();
+                        for (int i = 0; i < hf.numPages(); i++) {
+                            seen[me][i] = bp.getPage(tid, new HeapPageId(hf.getId(), i),
+                                    Permissions.READ_ONLY);
+                        }
+                        bp.transactionComplete(tid);
+                    } catch (Exception e) {
+                        errors[me] = e;
+                    }
+                }
+            };
+            readers.add(reader);
+            reader.start();
+        }
+        start.countDown();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        for (int t = 0; t < threads; t++) {
+            assertNull(errors[t]);
+            for (int i = 0; i < hf.numPages(); i++) {
+                assertSame(seen[0][i], seen[t][i]);
+            }
+        }
+        assertEquals(hf.numPages(), bp.getMissCount());
+        assertEquals(threads * hf.numPages() - hf.numPages(), bp.getHitCount());
+    }
+
+    /**
+     * Unit test for BufferPool.pinPage(): pinned pages are not evicted, and
+     * a pool full of pinned pages cannot admit more.
+     */
+    @Test public void pinnedPagesStay() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        Page pinned = bp.pinPage(tid, first, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(first));
+        for (int i = 1; i < hf.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertSame(pinned, bp.getPage(tid, first, Permissions.READ_ONLY));
+
+        bp.pinPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            fail("expected DbException, all pages are pinned");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(tid, first);
+        assertEquals(0, bp.getPinCount(first));
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+
+        // remaining pins are released when the transaction completes
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(new HeapPageId(hf.getId(), 1)));
+    }
+
+    /**
+     * Unit test for BufferPool.unpinPage(): the pin is released on the copy
+     * of the page that was pinned, not on the copy read after the page was
+     * discarded.
+     */
+    @Test public void unpinDiscardedPage() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        bp.pinPage(tid1, first, Permissions.READ_ONLY);
+        bp.discardPage(first);
+        bp.pinPage(tid2, first, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(first));
+
+        bp.unpinPage(tid1, first);
+        assertEquals(1, bp.getPinCount(first));
+        bp.transactionComplete(tid1);
+        assertEquals(1, bp.getPinCount(first));
+        bp.transactionComplete(tid2);
+        assertEquals(0, bp.getPinCount(first));
+    }
+
+    /**
+     * Unit test for HeapFile's iterator: it only pins the page it is on.
+     */
+    @Test public void iteratorPinsCurrentPage() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 504 + 1; i++) {
+            assertTrue(it.hasNext());
+            it.next();
+        }
+        assertEquals(0, bp.getPinCount(new HeapPageId(hf.getId(), 0)));
+        assertEquals(1, bp.getPinCount(new HeapPageId(hf.getId(), 1)));
+        it.close();
+        assertEquals(0, bp.getPinCount(new HeapPageId(hf.getId(), 1)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for read-ahead: after two sequential accesses the following
+     * pages are loaded in the background and served as hits.
+     */
+    @Test public void readAheadSequentialScan() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setReadAhead(true);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        awaitReadAhead(bp, 2);
+
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 3), Permissions.READ_ONLY);
+        assertEquals(2, bp.getMissCount());
+        assertEquals(2, bp.getHitCount());
+
+        // the rest of a full scan is read ahead as well
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 10, count);
+        assertTrue(bp.getReadAheadCount() >= 2);
+        assertEquals(hf.numPages(), bp.getMissCount() + bp.getReadAheadCount());
+        bp.transactionComplete(tid);
+        bp.setReadAhead(false);
+    }
+
+    /**
+     * Unit test for read-ahead on the leaves of a B+ tree, which follows
+     * right sibling pointers.
+     */
+    @Test public void readAheadBTreeLeaves() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setReadAhead(true);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            // a consumer that does some work per tuple
+            if (++count % 100 == 0) {
+                Thread.sleep(5);
+            }
+        }
+        it.close();
+        assertEquals(5000, count);
+        assertTrue(bp.getReadAheadCount() >= 1);
+        bp.transactionComplete(tid);
+        bp.setReadAhead(false);
+    }
+
+    private static void awaitReadAhead(BufferPool bp, long pages) throws InterruptedException {
+        for (int i = 0; i < 500 && bp.getReadAheadCount() < pages; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(bp.getReadAheadCount() >= pages);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolReadTest.class);
+    }
+}
@@ -1,8 +1,6 @@
 package simpledb;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -35,10 +33,8 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
 			ArrayList<Page> dirtypages = new ArrayList<Page>();
 			for(int i = 0; i < duplicates; i++) {
 				// create a blank page
-				BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(super.getFile(), true));
 				byte[] emptyData = HeapPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				super.writePage(new HeapPage(new HeapPageId(super.getId(), super.numPages()), emptyData));
 				HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages() - 1),
 						HeapPage.createEmptyPageData());
 				p.insertTuple(t);
@@ -48,6 +44,31 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
 		}
 	}
 
+	// class that lets a transaction insert one more tuple right after a
+	// page of the file was written out
+	class HeapFileInterleaved extends HeapFile {
+
+		private TransactionId writer;
+
+		public HeapFileInterleaved(File f, TupleDesc td) {
+			super(f, td);
+		}
+
+		@Override
+		public void writePage(Page page) throws IOException {
+			super.writePage(page);
+			TransactionId tid = writer;
+			if (tid != null) {
+				writer = null;
+				try {
+					Database.getBufferPool().insertTuple(tid, getId(), Utility.getHeapTuple(2, 2));
+				} catch (DbException | TransactionAbortedException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Set up initial resources for each unit test.
 	 */
@@ -133,6 +154,38 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
 		assertEquals(10, count);
 	}
 
+	/**
+	 * A page its transaction changes while it is being stolen stays dirty
+	 * and cached, so the change still reaches the disk.
+	 */
+	@Test public void stealKeepsConcurrentChange() throws Exception {
+		HeapFileInterleaved hfi = new HeapFileInterleaved(empty.getFile(), empty.getTupleDesc());
+		Database.getCatalog().addTable(hfi, SystemTestUtil.getUUID());
+		HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		BufferPool bp = Database.resetBufferPool(1);
+		bp.setSteal(true);
+
+		Transaction t = new Transaction();
+		t.start();
+		bp.insertTuple(t.getId(), hfi.getId(), Utility.getHeapTuple(1, 2));
+		// the only page in the pool is dirty, so it is stolen to make room
+		hfi.writer = t.getId();
+		bp.getPage(t.getId(), new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+		assertNull(hfi.writer);
+		t.commit();
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		DbFileIterator it = hfi.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(2, count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CompressedPageFileTest extends SimpleDbTestBase {
+    private File file;
+    private int pageSize;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("compressed", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + CompressedPageFile.INDEX_SUFFIX).deleteOnExit();
+        pageSize = BufferPool.getPageSize();
+    }
+
+    /**
+     * Pages read back as written, before and after reopening, while the
+     * data file only holds their compressed size.
+     */
+    @Test public void readWrite() throws Exception {
+        CompressedPageFile pf = new CompressedPageFile(file);
+        byte[] sparse = new byte[pageSize];
+        sparse[17] = 1;
+        byte[] random = new byte[pageSize];
+        new Random(1).nextBytes(random);
+        assertEquals(0, pf.append(sparse));
+        assertEquals(pageSize, pf.append(random));
+        assertEquals(2 * pageSize, pf.length());
+        // the sparse page compresses, the random one is stored as is
+        assertTrue(file.length() < pageSize + 128);
+
+        byte[] buf = new byte[pageSize];
+        assertEquals(pageSize, pf.read(0, buf));
+        assertArrayEquals(sparse, buf);
+        assertEquals(pageSize, pf.read(pageSize, buf));
+        assertArrayEquals(random, buf);
+        assertEquals(-1, pf.read(2 * pageSize, buf));
+
+        // a partial read, like HeapFile's read of a page header
+        byte[] header = new byte[32];
+        assertEquals(32, pf.read(0, header));
+        assertArrayEquals(Arrays.copyOf(sparse, 32), header);
+        pf.close();
+
+        CompressedPageFile reopened = new CompressedPageFile(file);
+        assertEquals(2 * pageSize, reopened.length());
+        assertEquals(pageSize, reopened.read(0, buf));
+        assertArrayEquals(sparse, buf);
+        assertTrue(reopened.getDecompressionCount() > 0);
+        reopened.close();
+    }
+
+    /**
+     * A page that no longer fits its space moves to the end of the file;
+     * reserved pages read as zeros.
+     */
+    @Test public void rewriteAndReserve() throws Exception {
+        CompressedPageFile pf = new CompressedPageFile(file);
+        byte[] page = new byte[pageSize];
+        pf.write(0, page);
+        assertEquals(pageSize, pf.reserve(2 * pageSize));
+        assertEquals(3 * pageSize, pf.length());
+
+        new Random(2).nextBytes(page);
+        pf.write(0, page);
+        pf.write(2 * pageSize, page);
+        byte[] buf = new byte[pageSize];
+        pf.read(0, buf);
+        assertArrayEquals(page, buf);
+        pf.read(pageSize, buf);
+        assertArrayEquals(new byte[pageSize], buf);
+        pf.read(2 * pageSize, buf);
+        assertArrayEquals(page, buf);
+        pf.close();
+    }
+
+    /**
+     * A compressed HeapFile of a mostly empty table takes a fraction of the
+     * space and reads back the same.
+     */
+    @Test public void compressedHeapFile() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        HeapFile hf = new HeapFile(file, td, HeapFile.Format.FIXED, true);
+        Database.getCatalog().addTable(hf, "compressed");
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2000; ++i) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i % 7, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(4, hf.numPages());
+        assertTrue(hf.getCompressedPageFile().getCompressionRatio() > 4);
+        assertTrue(file.length() < pageSize);
+
+        HeapFile reopened = new HeapFile(file, td, HeapFile.Format.FIXED, true);
+        Database.getCatalog().addTable(reopened, "compressed");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(n % 7), it.next().getField(0));
+            n++;
+        }
+        it.close();
+        assertEquals(2000, n);
+        assertTrue(reopened.getCompressedPageFile().getDecompressionCount() >= 4);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedPageFileTest.class);
+    }
+}
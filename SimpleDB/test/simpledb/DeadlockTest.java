@@ -7,6 +7,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +212,27 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A deadlock should be broken as soon as it forms, by aborting the
+   * younger of the two transactions, rather than after a lock timeout.
+   */
+  @Test public void testDeadlockDetectedImmediately() throws Exception {
+    long deadlocks = bp.getDeadlockCount();
+
+    LockGrabber lg1Write0 = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    LockGrabber lg2Write1 = startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(WAIT_INTERVAL);
+
+    // tid2 is younger, so it is the victim and tid1 gets its lock
+    assertTrue(lg2Write0.getError() instanceof TransactionAbortedException);
+    assertTrue(lg1Write1.acquired());
+    assertEquals(deadlocks + 1, bp.getDeadlockCount());
+  }
+
   /**
    * JUnit suite target
    */
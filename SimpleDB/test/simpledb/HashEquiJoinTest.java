@@ -0,0 +1,91 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    /** Joins two lists of (key, row) pairs on the key, in tuples or in batches. */
+    private static int join(HashEquiJoin j, boolean batches) throws Exception {
+        int n = 0;
+        j.open();
+        if (batches) {
+            TupleBatch b;
+            while ((b = j.nextBatch()) != null) {
+                for (int i = 0; i < b.size(); i++) {
+                    assertEquals(b.getTuple(i).getField(0), b.getTuple(i).getField(2));
+                    n++;
+                }
+            }
+        } else {
+            while (j.hasNext()) {
+                Tuple t = j.next();
+                assertEquals(t.getField(0), t.getField(2));
+                n++;
+            }
+        }
+        j.close();
+        return n;
+    }
+
+    /**
+     * A first level partition with several times MAP_SIZE distinct keys is
+     * split again, so its probe rows are read back once per level, and not
+     * once per MAP_SIZE build rows.
+     */
+    @Test public void repartition() throws Exception {
+        int buildRows = 4 * HashEquiJoin.MAP_SIZE, probeRows = 1000;
+        int[] build = new int[2 * buildRows];
+        int k = 0;
+        for (int i = 0; i < buildRows; i++) {
+            // every key falls in the first partition
+            while (HashEquiJoin.partition(k, 0) != 0)
+                k++;
+            build[2 * i] = k++;
+            build[2 * i + 1] = i;
+        }
+        int[] probe = new int[2 * probeRows];
+        for (int i = 0; i < probeRows; i++) {
+            probe[2 * i] = build[2 * (i * (buildRows / probeRows))];
+            probe[2 * i + 1] = i;
+        }
+
+        for (boolean batches : new boolean[] { false, true }) {
+            HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                    TestUtil.createTupleList(2, build), TestUtil.createTupleList(2, probe));
+            assertEquals(probeRows, join(j, batches));
+            assertEquals(2 * probeRows, j.getSpilledProbeReadCount());
+        }
+    }
+
+    /**
+     * The rows of one key can not be split, so a key with more than
+     * MAP_SIZE build rows is joined in pieces, which still returns every
+     * match once.
+     */
+    @Test public void oversizedKey() throws Exception {
+        int buildRows = 3 * HashEquiJoin.MAP_SIZE;
+        int[] build = new int[2 * buildRows];
+        for (int i = 0; i < buildRows; i++) {
+            build[2 * i] = 7;
+            build[2 * i + 1] = i;
+        }
+        int[] probe = { 7, 0, 8, 1, 7, 2, 9, 3 };
+
+        for (boolean batches : new boolean[] { false, true }) {
+            HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                    TestUtil.createTupleList(2, build), TestUtil.createTupleList(2, probe));
+            assertEquals(2 * buildRows, join(j, batches));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashKeyTableTest extends SimpleDbTestBase {
+
+    /**
+     * Int keys get dense ids in the order they are added, also after the
+     * table grows, and keep them until clear.
+     */
+    @Test public void intKeys() {
+        HashKeyTable t = new HashKeyTable(Type.INT_TYPE);
+        for (int i = 0; i < 10000; i++)
+            assertEquals(i, t.add(i * 16));
+        assertEquals(10000, t.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, t.add(i * 16));
+            assertEquals(i, t.find(i * 16));
+            assertEquals(i * 16, t.getInt(i));
+        }
+        assertEquals(-1, t.find(1));
+        assertEquals(-1, t.find(-16));
+        assertEquals(10000, t.size());
+        assertEquals(new IntField(32), t.getField(2));
+        assertEquals(2, t.find(new IntField(32)));
+
+        t.clear();
+        assertEquals(0, t.size());
+        assertEquals(-1, t.find(0));
+        assertEquals(0, t.add(-5));
+    }
+
+    /**
+     * String keys with the same hash, and null, are different keys.
+     */
+    @Test public void stringKeys() {
+        HashKeyTable t = new HashKeyTable(Type.STRING_TYPE);
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertEquals(0, t.add("Aa"));
+        assertEquals(1, t.add("BB"));
+        assertEquals(2, t.add((String) null));
+        assertEquals(3, t.add(""));
+        assertEquals(0, t.find("Aa"));
+        assertEquals(1, t.find(new StringField("BB", Type.STRING_LEN)));
+        assertEquals(2, t.find((String) null));
+        assertEquals(3, t.find(""));
+        assertEquals(-1, t.find("C#"));
+        assertEquals("BB", t.getString(1));
+        assertNull(t.getField(2));
+
+        for (int i = 0; i < 1000; i++)
+            assertEquals(4 + i, t.add("key" + i));
+        for (int i = 0; i < 1000; i++)
+            assertEquals(4 + i, t.find("key" + i));
+        assertEquals(0, t.find("Aa"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashKeyTableTest.class);
+    }
+}
@@ -77,6 +77,28 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() with the memory mapped read path
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage copied = (HeapPage) hf.readPage(pid);
+        hf.setMemoryMapped(true);
+        HeapPage mapped = (HeapPage) hf.readPage(pid);
+        assertArrayEquals(copied.getPageData(), mapped.getPageData());
+
+        // the mapping follows the file when it grows
+        HeapPageId next = new HeapPageId(hf.getId(), 1);
+        HeapPage page = new HeapPage(next, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(new int[] { 7, 8 }));
+        hf.writePage(page);
+        assertEquals(2, hf.numPages());
+        mapped = (HeapPage) hf.readPage(next);
+        assertEquals(503, mapped.getNumEmptySlots());
+        assertArrayEquals(page.getPageData(), mapped.getPageData());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -43,6 +43,124 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for the free space map of HeapFile.insertTuple(): full
+     * pages are skipped without locking them, concurrent inserters get
+     * different pages, and deleted slots are reused.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a fresh HeapFile builds the map from the pages on disk
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(reopened, "reopened");
+        HeapPageId p0 = new HeapPageId(reopened.getId(), 0);
+        HeapPageId p1 = new HeapPageId(reopened.getId(), 1);
+        HeapPageId p2 = new HeapPageId(reopened.getId(), 2);
+
+        TransactionId tid1 = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        reopened.insertTuple(tid1, t);
+        assertEquals(p2, t.getRecordId().getPageId());
+        assertFalse(Database.getBufferPool().holdsLock(tid1, p0));
+        assertFalse(Database.getBufferPool().holdsLock(tid1, p1));
+
+        // page 2 is still being inserted into by tid1
+        TransactionId tid2 = new TransactionId();
+        t = Utility.getHeapTuple(2, 2);
+        reopened.insertTuple(tid2, t);
+        assertEquals(3, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(4, reopened.numPages());
+        Database.getBufferPool().transactionComplete(tid1);
+        Database.getBufferPool().transactionComplete(tid2);
+
+        // a deleted slot on page 0 is found again
+        TransactionId tid3 = new TransactionId();
+        Tuple victim = firstTuple(reopened, tid3);
+        Database.getBufferPool().deleteTuple(tid3, victim);
+        Database.getBufferPool().transactionComplete(tid3);
+        TransactionId tid4 = new TransactionId();
+        t = Utility.getHeapTuple(4, 2);
+        reopened.insertTuple(tid4, t);
+        assertEquals(p0, t.getRecordId().getPageId());
+        Database.getBufferPool().transactionComplete(tid4);
+    }
+
+    /**
+     * A page filled by a transaction that aborts has room again, also when
+     * the transaction appended it.
+     */
+    @Test public void abortRestoresFreeSpace() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        for (int i = 0; i < 504; ++i) {
+            Database.getBufferPool().insertTuple(tid1, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(1, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid1, false);
+
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(1, empty.numPages());
+    }
+
+    /**
+     * A HeapFile in the SLOTTED format stores short strings in little more
+     * than their length, both through insertTuple and the BulkLoader.
+     */
+    @Test public void slottedFormat() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        java.io.File f = java.io.File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        HeapFile slotted = new HeapFile(f, td, HeapFile.Format.SLOTTED);
+        Database.getCatalog().addTable(slotted, "slotted");
+
+        HeapFile.BulkLoader loader = slotted.bulkLoader(tid);
+        for (int i = 0; i < 1000; ++i) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("b" + i, Type.STRING_LEN));
+            if (i < 500) {
+                Database.getBufferPool().insertTuple(tid, slotted.getId(), t);
+            } else {
+                loader.add(t);
+            }
+        }
+        assertEquals(500, loader.finish());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a HeapPage holds 30 of these tuples
+        assertTrue(slotted.numPages() < 1000 / 30 / 4);
+        HeapFile reopened = new HeapFile(f, td, HeapFile.Format.SLOTTED);
+        Database.getCatalog().addTable(reopened, "slotted");
+        tid = new TransactionId();
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        boolean[] seen = new boolean[1000];
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertEquals(new StringField("b" + i, Type.STRING_LEN), t.getField(1));
+            assertFalse(seen[i]);
+            seen[i] = true;
+        }
+        it.close();
+        for (boolean b : seen) {
+            assertTrue(b);
+        }
+    }
+
+    private static Tuple firstTuple(HeapFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        return t;
+    }
+
     /**
      * JUnit suite target
      */
@@ -1,9 +1,11 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +128,59 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for the copy-on-write page data: the before image and
+     * iterators keep the page as it was, and the bytes the page was
+     * created from are never modified.
+     */
+    @Test public void copyOnWrite() throws Exception {
+        byte[] original = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        int before = 0;
+        for (Iterator<Tuple> all = page.iterator(); all.hasNext(); all.next())
+            before++;
+
+        Tuple addition = Utility.getHeapTuple(42, 2);
+        page.insertTuple(addition);
+        page.deleteTuple(page.iterator().next());
+
+        assertTrue(Arrays.equals(original, HeapPageReadTest.EXAMPLE_DATA));
+        assertTrue(Arrays.equals(original, page.getBeforeImage().getPageData()));
+        assertFalse(Arrays.equals(original, page.getPageData()));
+        int seen = 0;
+        while (it.hasNext()) {
+            assertFalse(TestUtil.compareTuples(addition, it.next()));
+            seen++;
+        }
+        assertEquals(before, seen);
+
+        // the bytes of the page decode to the same tuples
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        Iterator<Tuple> a = page.iterator(), b = copy.iterator();
+        while (a.hasNext())
+            assertTrue(TestUtil.compareTuples(a.next(), b.next()));
+        assertFalse(b.hasNext());
+    }
+
+    /**
+     * Unit test for HeapPage.getPageData(): it returns the page's own byte
+     * image without copying, and the image is not changed by later
+     * modifications of the page.
+     */
+    @Test public void getPageDataSnapshot() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] data = page.getPageData();
+        assertTrue(data == page.getPageData());
+
+        byte[] copy = data.clone();
+        page.insertTuple(Utility.getHeapTuple(42, 2));
+        assertTrue(Arrays.equals(copy, data));
+        assertFalse(data == page.getPageData());
+        assertFalse(Arrays.equals(copy, page.getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
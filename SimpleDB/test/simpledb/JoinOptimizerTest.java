@@ -3,8 +3,10 @@ package simpledb;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -621,4 +623,163 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Joins are costed as the cheapest algorithm that can compute them:
+     * equality joins of unsorted tables as a hash join, other joins of
+     * unsorted tables as a sort-merge join, which beats nested loops.
+     */
+    @Test
+    public void estimateHashJoinCostTest() {
+        JoinOptimizer jo = new JoinOptimizer(null, new Vector<LogicalJoinNode>());
+        LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.LESS_THAN);
+
+        double hash = JoinOptimizer.estimateHashJoinCost(1000, 10000, 200, 2000);
+        Assert.assertEquals(hash, jo.estimateJoinCost(eq, 1000, 10000, 200, 2000), 0.001);
+        Assert.assertTrue(hash < JoinOptimizer.estimateNestedLoopJoinCost(1000, 10000, 200, 2000));
+        double merge = JoinOptimizer.estimateSortMergeJoinCost(Predicate.Op.LESS_THAN,
+                1000, 10000, 200, 2000, false, false);
+        Assert.assertEquals(merge, jo.estimateJoinCost(lt, 1000, 10000, 200, 2000), 0.001);
+        Assert.assertTrue(merge < JoinOptimizer.estimateNestedLoopJoinCost(1000, 10000, 200, 2000));
+
+        // a single outer tuple is cheaper to join without building a table
+        Assert.assertEquals(JoinOptimizer.estimateNestedLoopJoinCost(1, 10000, 1, 2000),
+                jo.estimateJoinCost(eq, 1, 10000, 1, 2000), 0.001);
+
+        // a big outer side is partitioned, and the inner side is written and
+        // read back once more for every level of partitioning
+        int[] card1s = { HashEquiJoin.MAP_SIZE, 3 * HashEquiJoin.MAP_SIZE, 100 * HashEquiJoin.MAP_SIZE };
+        int[] scans = { 1, 3, 5 };
+        for (int i = 0; i < card1s.length; i++) {
+            double inner = JoinOptimizer.estimateHashJoinCost(card1s[i], 10, 1, 1000)
+                    - JoinOptimizer.estimateHashJoinCost(card1s[i], 10, 1, 0);
+            Assert.assertEquals(scans[i] * 1000, inner, 0.001);
+        }
+    }
+
+    /**
+     * instantiateJoin emits a HashEquiJoin for equality joins of unsorted
+     * plans, unless the optimizer chose another algorithm.
+     */
+    @Test
+    public void instantiateJoinTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.EQUALS);
+        OpIterator j = JoinOptimizer.instantiateJoin(eq,
+                new SeqScan(tid, tableId1, "t1"), new SeqScan(tid, tableId2, "t2"));
+        Assert.assertTrue(j instanceof HashEquiJoin);
+        Assert.assertEquals(1, ((HashEquiJoin) j).getJoinPredicate().getField1());
+        Assert.assertEquals(2, ((HashEquiJoin) j).getJoinPredicate().getField2());
+
+        eq.algorithm = LogicalJoinNode.Algorithm.NESTED_LOOPS;
+        j = JoinOptimizer.instantiateJoin(eq,
+                new SeqScan(tid, tableId1, "t1"), new SeqScan(tid, tableId2, "t2"));
+        Assert.assertTrue(j instanceof Join);
+
+        LogicalJoinNode lt = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.LESS_THAN);
+        j = JoinOptimizer.instantiateJoin(lt,
+                new SeqScan(tid, tableId1, "t1"), new SeqScan(tid, tableId2, "t2"));
+        Assert.assertTrue(j instanceof Join);
+
+        // a sort-merge join sorts both unsorted sides
+        eq.algorithm = LogicalJoinNode.Algorithm.SORT_MERGE;
+        j = JoinOptimizer.instantiateJoin(eq,
+                new SeqScan(tid, tableId1, "t1"), new SeqScan(tid, tableId2, "t2"));
+        Assert.assertTrue(j instanceof SortMergeJoin);
+        Assert.assertTrue(((Operator) j).getChildren()[0] instanceof OrderBy);
+        Assert.assertTrue(((Operator) j).getChildren()[1] instanceof OrderBy);
+        Assert.assertEquals(JoinOptimizer.sortedOn(j),
+                new HashSet<String>(Arrays.asList("t1.c1", "t2.c2")));
+    }
+
+    /**
+     * The plans LogicalPlan builds use the algorithm orderJoins estimated
+     * cheapest: hashing for an equality join of two big tables, merging
+     * for a range join.
+     */
+    @Test
+    public void physicalPlanAlgorithmTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN }) {
+            LogicalPlan lp = new LogicalPlan();
+            lp.addScan(tableId1, "t1");
+            lp.addScan(tableId2, "t2");
+            lp.addJoin("t1.c1", "t2.c2", op);
+            lp.addProjectField("t1.c0", null);
+
+            Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+            joins.add(new LogicalJoinNode("t1", "t2", "c1", "c2", op));
+            HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+            stats.put(tableName1, stats1);
+            stats.put(tableName2, stats2);
+            HashMap<String, Double> selectivities = new HashMap<String, Double>();
+            selectivities.put("t1", 1.0);
+            selectivities.put("t2", 1.0);
+            Vector<LogicalJoinNode> order = new JoinOptimizer(lp, joins).orderJoins(stats, selectivities, false);
+            Assert.assertEquals(op == Predicate.Op.EQUALS ? LogicalJoinNode.Algorithm.HASH
+                    : LogicalJoinNode.Algorithm.SORT_MERGE, order.get(0).algorithm);
+
+            OpIterator join = ((Operator) lp.physicalPlan(tid, TableStats.getStatsMap(), false)).getChildren()[0];
+            if (op == Predicate.Op.EQUALS)
+                Assert.assertTrue(join instanceof HashEquiJoin);
+            else
+                Assert.assertTrue(join instanceof SortMergeJoin);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A random B+ tree keyed on keyField, with fields named field0, field1 */
+    private static BTreeFile namedBTreeFile(int keyField) throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 500, 50, null, null, keyField);
+        f = new BTreeFile(f.getFile(), keyField, Utility.getTupleDesc(2, "field"));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        return f;
+    }
+
+    /**
+     * Scans of B+ trees are sorted on their key field, so joins on the key
+     * fields of two B+ trees are merged without sorting either side, and
+     * their sort-merge cost includes no sort.
+     */
+    @Test
+    public void sortedJoinTest() throws Exception {
+        BTreeFile bt1 = namedBTreeFile(1);
+        BTreeFile bt2 = namedBTreeFile(0);
+        TransactionId tid = new TransactionId();
+
+        OpIterator scan1 = new SeqScan(tid, bt1.getId(), "a");
+        Assert.assertEquals(Collections.singleton("a.field1"), JoinOptimizer.sortedOn(scan1));
+        Assert.assertTrue(JoinOptimizer.sortedOn(new SeqScan(tid, tableId1, "t1")).isEmpty());
+
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "field1", "field0",
+                Predicate.Op.EQUALS);
+        OpIterator j = JoinOptimizer.instantiateJoin(eq, scan1, new SeqScan(tid, bt2.getId(), "b"));
+        Assert.assertTrue(j instanceof SortMergeJoin);
+        Assert.assertTrue(((Operator) j).getChildren()[0] instanceof SeqScan);
+        Assert.assertTrue(((Operator) j).getChildren()[1] instanceof SeqScan);
+
+        // only the unsorted side of a chosen sort-merge join is sorted
+        LogicalJoinNode ge = new LogicalJoinNode("a", "t2", "field1", "c2",
+                Predicate.Op.GREATER_THAN_OR_EQ);
+        ge.algorithm = LogicalJoinNode.Algorithm.SORT_MERGE;
+        j = JoinOptimizer.instantiateJoin(ge, new SeqScan(tid, bt1.getId(), "a"),
+                new SeqScan(tid, tableId2, "t2"));
+        Assert.assertTrue(((Operator) j).getChildren()[0] instanceof SeqScan);
+        Assert.assertTrue(((Operator) j).getChildren()[1] instanceof OrderBy);
+        Assert.assertEquals(Collections.singleton("a.field1"), JoinOptimizer.sortedOn(j));
+
+        // the merge of two sorted sides is cheaper than hashing them
+        Assert.assertTrue(JoinOptimizer.estimateSortMergeJoinCost(Predicate.Op.EQUALS,
+                1000, 1000, 100, 100, true, true)
+                <= JoinOptimizer.estimateHashJoinCost(1000, 1000, 100, 100));
+        Assert.assertTrue(JoinOptimizer.estimateSortMergeJoinCost(Predicate.Op.EQUALS,
+                1000, 1000, 100, 100, false, true)
+                > JoinOptimizer.estimateHashJoinCost(1000, 1000, 100, 100));
+        Database.getBufferPool().transactionComplete(tid);
+    }
 }
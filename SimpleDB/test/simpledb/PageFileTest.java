@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageFileTest extends SimpleDbTestBase {
+    private File file;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("pagefile", ".dat");
+        file.deleteOnExit();
+    }
+
+    /**
+     * Unit test for PageFile.write() and PageFile.read()
+     */
+    @Test public void readWrite() throws Exception {
+        PageFile pf = new PageFile(file);
+        byte[] first = new byte[64];
+        byte[] second = new byte[64];
+        Arrays.fill(first, (byte) 1);
+        Arrays.fill(second, (byte) 2);
+        pf.write(64, second);
+        pf.write(0, first);
+
+        byte[] buf = new byte[64];
+        assertEquals(64, pf.read(64, buf));
+        assertArrayEquals(second, buf);
+        assertEquals(64, pf.read(0, buf));
+        assertArrayEquals(first, buf);
+
+        // short read at the end of the file, nothing past it
+        assertEquals(32, pf.read(96, buf));
+        assertEquals(-1, pf.read(128, buf));
+        pf.close();
+
+        // a fresh PageFile sees what was written
+        PageFile reopened = new PageFile(file);
+        assertEquals(64, reopened.read(64, buf));
+        assertArrayEquals(second, buf);
+        reopened.close();
+    }
+
+    /**
+     * Unit test for PageFile.length(): it follows writes without going back
+     * to the file system.
+     */
+    @Test public void cachedLength() throws Exception {
+        File missing = new File(file.getPath() + ".missing");
+        missing.deleteOnExit();
+        PageFile pf = new PageFile(missing);
+        assertEquals(0, pf.length());
+        assertFalse(missing.exists());
+
+        assertEquals(0, pf.append(new byte[100]));
+        assertEquals(100, pf.length());
+        assertEquals(100, pf.append(new byte[10]));
+        assertEquals(110, pf.length());
+        pf.write(50, new byte[10]);
+        assertEquals(110, pf.length());
+        assertEquals(110, missing.length());
+        pf.close();
+    }
+
+    /**
+     * Unit test for PageFile.map(): regions are read from several segments,
+     * and the mapping is extended when the file grows.
+     */
+    @Test public void mapSegments() throws Exception {
+        PageFile pf = new PageFile(file, 64);
+        byte[] data = new byte[160];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        pf.write(0, data);
+
+        ByteBuffer view = pf.map(96, 32);
+        assertEquals(32, view.remaining());
+        for (int i = 0; i < 32; i++) {
+            assertEquals((byte) (96 + i), view.get(i));
+        }
+        // crosses a segment boundary, or the end of the file
+        assertNull(pf.map(48, 32));
+        assertNull(pf.map(160, 32));
+
+        // written data shows up in the mapping, also past the old end
+        pf.write(160, new byte[] { 42 });
+        pf.write(0, new byte[] { 43 });
+        assertEquals(42, pf.map(160, 1).get(0));
+        assertEquals(43, pf.map(0, 1).get(0));
+        assertEquals((byte) 159, pf.map(128, 32).get(31));
+        pf.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageFileTest.class);
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaxHeapPageTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(4)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * A PaxHeapPage has the slots of a HeapPage, and its tuples survive a
+     * round trip through getPageData.
+     */
+    @Test public void insertAndDelete() throws Exception {
+        PaxHeapPage page = new PaxHeapPage(pid, HeapPage.createEmptyPageData());
+        int free = page.getNumEmptySlots();
+        assertEquals(HeapPage.getNumSlots(Utility.getTupleDesc(4)), free);
+        Tuple[] inserted = new Tuple[free];
+        for (int i = 0; i < free; ++i) {
+            inserted[i] = Utility.getHeapTuple(new int[] { i, 2 * i, 3 * i, 4 * i });
+            page.insertTuple(inserted[i]);
+        }
+        assertEquals(0, page.getNumEmptySlots());
+        page.deleteTuple(inserted[1]);
+        assertFalse(page.isSlotUsed(1));
+
+        PaxHeapPage copy = new PaxHeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < free; ++i) {
+            if (i == 1)
+                continue;
+            Tuple t = it.next();
+            assertTrue(TestUtil.compareTuples(inserted[i], t));
+            assertEquals(new RecordId(pid, i), t.getRecordId());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * iterator(columns) decodes only the asked for columns.
+     */
+    @Test public void projectedIterator() throws Exception {
+        PaxHeapPage page = new PaxHeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < 10; ++i)
+            page.insertTuple(Utility.getHeapTuple(new int[] { i, 2 * i, 3 * i, 4 * i }));
+        BitSet columns = new BitSet();
+        columns.set(2);
+        Iterator<Tuple> it = page.iterator(columns);
+        for (int i = 0; i < 10; ++i) {
+            Tuple t = it.next();
+            assertNull(t.getField(0));
+            assertNull(t.getField(1));
+            assertEquals(new IntField(3 * i), t.getField(2));
+            assertNull(t.getField(3));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * A query over a PAX table reads only the fields the plan uses.
+     */
+    @Test public void scanReadsUsedColumns() throws Exception {
+        File f = File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        TupleDesc td = Utility.getTupleDesc(4, "c");
+        HeapFile table = new HeapFile(f, td, HeapFile.Format.PAX);
+        Database.getCatalog().addTable(table, "pax");
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; ++i) {
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < 4; ++j)
+                t.setField(j, new IntField(i * 4 + j));
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        }
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "p");
+        lp.addProjectField("p.c3", null);
+        lp.addProjectField("p.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+        SeqScan scan = (SeqScan) ((Operator) plan).getChildren()[0];
+        BitSet expected = new BitSet();
+        expected.set(1);
+        expected.set(3);
+        assertEquals(expected, scan.getColumns());
+
+        plan.open();
+        int n = 0;
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            int c3 = ((IntField) t.getField(0)).getValue();
+            assertEquals(3, c3 % 4);
+            assertEquals(new IntField(c3 - 2), t.getField(1));
+            n++;
+        }
+        plan.close();
+        assertEquals(1000, n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxHeapPageTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.EvictionFilter ANY =
+            new ReplacementPolicy.EvictionFilter() {
+                public boolean canEvict(PageId pid) {
+                    return true;
+                }
+            };
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+      * Unit test for ClockReplacementPolicy: a page that was referenced since
+      * the last sweep gets a second chance.
+      */
+    @Test public void clockSecondChance() {
+        ClockReplacementPolicy clock = new ClockReplacementPolicy(3);
+        clock.pageLoaded(pid(0));
+        clock.pageLoaded(pid(1));
+        clock.pageLoaded(pid(2));
+
+        // first sweep clears all reference bits and evicts page 0
+        assertEquals(pid(0), clock.chooseVictim(ANY));
+
+        // page 1 is referenced again, so page 2 goes before it
+        clock.pageAccessed(pid(1));
+        assertEquals(pid(2), clock.chooseVictim(ANY));
+        assertEquals(pid(1), clock.chooseVictim(ANY));
+        assertNull(clock.chooseVictim(ANY));
+    }
+
+    /**
+      * Unit test for ClockReplacementPolicy: pages rejected by the filter are
+      * never chosen.
+      */
+    @Test public void clockSkipsUnevictable() {
+        ClockReplacementPolicy clock = new ClockReplacementPolicy(2);
+        clock.pageLoaded(pid(0));
+        clock.pageLoaded(pid(1));
+        ReplacementPolicy.EvictionFilter notZero = new ReplacementPolicy.EvictionFilter() {
+            public boolean canEvict(PageId pid) {
+                return pid.getPageNumber() != 0;
+            }
+        };
+        assertEquals(pid(1), clock.chooseVictim(notZero));
+        assertNull(clock.chooseVictim(notZero));
+
+        clock.pageRemoved(pid(0));
+        assertNull(clock.chooseVictim(ANY));
+    }
+
+    /**
+      * Unit test for TwoQReplacementPolicy: a scan over many pages that are
+      * touched once must not push out pages that are accessed repeatedly.
+      */
+    @Test public void twoQScanResistance() {
+        int capacity = 8;
+        TwoQReplacementPolicy twoQ = new TwoQReplacementPolicy(capacity, 2, capacity);
+        Set<PageId> cached = new HashSet<PageId>();
+
+        // pages 0..3 are read, pushed out by other pages and read again, so
+        // they are promoted from A1out to Am
+        for (int i = 0; i < 4; i++) {
+            load(twoQ, cached, pid(i), capacity);
+        }
+        for (int i = 100; i < 100 + capacity; i++) {
+            load(twoQ, cached, pid(i), capacity);
+        }
+        for (int i = 0; i < 4; i++) {
+            load(twoQ, cached, pid(i), capacity);
+        }
+
+        // a long scan of cold pages
+        for (int i = 1000; i < 1100; i++) {
+            load(twoQ, cached, pid(i), capacity);
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cached.contains(pid(i)));
+        }
+    }
+
+    private static void load(ReplacementPolicy policy, Set<PageId> cached, PageId pid, int capacity) {
+        if (cached.contains(pid)) {
+            policy.pageAccessed(pid);
+            return;
+        }
+        if (cached.size() >= capacity) {
+            cached.remove(policy.chooseVictim(ANY));
+        }
+        cached.add(pid);
+        policy.pageLoaded(pid);
+    }
+
+    /**
+      * Unit test for BufferPool statistics.
+      */
+    @Test public void bufferPoolCounters() {
+        BufferPool bp = new BufferPool(4, new TwoQReplacementPolicy(4));
+        assertEquals("2Q", bp.getReplacementPolicy().getName());
+        assertEquals(0, bp.getHitCount());
+        assertEquals(0, bp.getMissCount());
+        assertEquals(0, bp.getEvictionCount());
+    }
+
+    /**
+      * JUnit suite target
+      */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
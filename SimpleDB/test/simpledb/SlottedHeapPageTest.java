@@ -0,0 +1,141 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        this.td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int i, String s) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private static ArrayList<Tuple> tuples(Iterator<Tuple> it) {
+        ArrayList<Tuple> res = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            res.add(it.next());
+        }
+        return res;
+    }
+
+    /**
+     * Short strings take only their length: many more tuples fit than on a
+     * HeapPage, and they survive a round trip through getPageData.
+     */
+    @Test public void insertShortStrings() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        try {
+            while (true) {
+                page.insertTuple(tuple(n, "s" + n));
+                n++;
+            }
+        } catch (DbException full) {
+            // expected once the page is full
+        }
+        assertTrue(n > 4 * HeapPage.getNumSlots(td));
+        assertEquals(0, page.getNumEmptySlots());
+
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData().clone());
+        ArrayList<Tuple> read = tuples(copy.iterator());
+        assertEquals(n, read.size());
+        for (int i = 0; i < n; i++) {
+            Tuple t = read.get(i);
+            assertTrue(TestUtil.compareTuples(tuple(i, "s" + i), t));
+            assertEquals(new RecordId(pid, i), t.getRecordId());
+        }
+    }
+
+    /**
+     * Deleted records leave holes that are compacted away when an insert
+     * needs the space; the remaining tuples keep their slots.
+     */
+    @Test public void deleteAndCompact() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        String longString = new String(new char[Type.STRING_LEN]).replace('\0', 'x');
+        while (page.getNumEmptySlots() > 0) {
+            Tuple t = tuple(inserted.size(), longString);
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        int before = page.getNumEmptySlots();
+
+        // free every other record; the free space is only in holes
+        for (int i = 0; i < inserted.size(); i += 2) {
+            page.deleteTuple(inserted.get(i));
+            assertFalse(page.isSlotUsed(i));
+        }
+        assertTrue(page.getNumEmptySlots() > before);
+
+        int slot = 0;
+        while (page.getNumEmptySlots() > 0) {
+            Tuple t = tuple(-1, longString);
+            page.insertTuple(t);
+            // freed slots are reused first
+            assertEquals(slot, t.getRecordId().getTupleNumber());
+            slot += 2;
+        }
+
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        for (Tuple t : tuples(copy.iterator())) {
+            int i = t.getRecordId().getTupleNumber();
+            if (i % 2 == 1) {
+                assertTrue(TestUtil.compareTuples(inserted.get(i), t));
+            } else {
+                assertEquals(new IntField(-1), t.getField(0));
+            }
+        }
+    }
+
+    /**
+     * An iterator keeps seeing the page as it was when it was created, and
+     * the before image as it was at setBeforeImage.
+     */
+    @Test public void iteratorSnapshot() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple first = tuple(1, "one");
+        page.insertTuple(first);
+        page.setBeforeImage();
+        Iterator<Tuple> it = page.iterator();
+        page.deleteTuple(first);
+        page.insertTuple(tuple(2, "two"));
+        assertTrue(TestUtil.compareTuples(first, it.next()));
+        assertFalse(it.hasNext());
+        assertTrue(TestUtil.compareTuples(tuple(1, "one"), page.getBeforeImage().iterator().next()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    // both sides sorted on column 0, with duplicate keys on both sides and
+    // keys only one side has
+    private static final int[] LEFT = { 1, 10,
+                                        2, 20,
+                                        2, 21,
+                                        2, 22,
+                                        4, 40,
+                                        5, 50,
+                                        5, 51,
+                                        8, 80 };
+    private static final int[] RIGHT = { 0, 100,
+                                         2, 200,
+                                         2, 201,
+                                         3, 300,
+                                         5, 500,
+                                         5, 501,
+                                         5, 502,
+                                         7, 700,
+                                         9, 900 };
+
+    /** Reads all rows of it as strings, sorted. */
+    private static ArrayList<String> rows(OpIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static ArrayList<String> nestedLoops(Predicate.Op op) throws Exception {
+        Join j = new Join(new JoinPredicate(0, op, 0),
+                TestUtil.createTupleList(2, LEFT), TestUtil.createTupleList(2, RIGHT));
+        j.open();
+        ArrayList<String> rows = rows(j);
+        j.close();
+        return rows;
+    }
+
+    /**
+     * Every predicate but LIKE returns the same tuples as a nested-loops
+     * join, also after a rewind, and in order of the left join field.
+     */
+    @Test public void allPredicates() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS,
+                Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ,
+                Predicate.Op.NOT_EQUALS }) {
+            ArrayList<String> expected = nestedLoops(op);
+            assertFalse(expected.isEmpty());
+
+            SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    TestUtil.createTupleList(2, LEFT), TestUtil.createTupleList(2, RIGHT));
+            j.open();
+            int last = Integer.MIN_VALUE, n = 0;
+            while (j.hasNext()) {
+                int key = ((IntField) j.next().getField(0)).getValue();
+                assertTrue(key >= last);
+                last = key;
+                n++;
+            }
+            assertEquals(op.toString(), expected.size(), n);
+            j.rewind();
+            assertEquals(op.toString(), expected, rows(j));
+            j.close();
+        }
+    }
+
+    /**
+     * An equality join of sorted children that are both all duplicates is
+     * their cross product.
+     */
+    @Test public void allDuplicates() throws Exception {
+        SortMergeJoin j = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                TestUtil.createTupleList(1, new int[] { 7, 7, 7 }),
+                TestUtil.createTupleList(1, new int[] { 7, 7, 7, 7 }));
+        j.open();
+        assertEquals(12, rows(j).size());
+        j.close();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void like() {
+        new SortMergeJoin(new JoinPredicate(0, Predicate.Op.LIKE, 0),
+                TestUtil.createTupleList(2, LEFT), TestUtil.createTupleList(2, RIGHT));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
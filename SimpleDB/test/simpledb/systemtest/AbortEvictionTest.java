@@ -38,6 +38,69 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    /** Deletes more pages than fit in the buffer pool. With NO STEAL this
+     * fails; with STEAL the dirty pages are written out, and an abort
+     * restores them from the log.
+     */
+    @Test public void testStealDirtyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        // 10 full pages of data
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+        Database.resetBufferPool(2);
+
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            deleteAll(f, t);
+            fail("expected DbException, all pages are dirty");
+        } catch (DbException e) {
+            // expected
+        }
+        t.transactionComplete(true);
+
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.setSteal(true);
+        t = new Transaction();
+        t.start();
+        assertEquals(504*10, deleteAll(f, t));
+        assertTrue(bp.getStolenPageCount() > 0);
+        // ABORT
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertEquals(504*10, count(f, t));
+        assertEquals(504*10, deleteAll(f, t));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(0, count(f, t));
+        t.commit();
+    }
+
+    private static int deleteAll(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        Delete delete = new Delete(t.getId(), new SeqScan(t.getId(), f.getId(), ""));
+        delete.open();
+        int deleted = ((IntField) delete.next().getField(0)).getValue();
+        delete.close();
+        return deleted;
+    }
+
+    private static int count(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int n = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            n++;
+        }
+        ss.close();
+        return n;
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
@@ -0,0 +1,199 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+
+import simpledb.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BatchTest extends SimpleDbTestBase {
+    private static final Comparator<ArrayList<Integer>> ORDER = new Comparator<ArrayList<Integer>>() {
+        public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+            for (int i = 0; i < a.size(); i++) {
+                int c = a.get(i).compareTo(b.get(i));
+                if (c != 0) return c;
+            }
+            return 0;
+        }
+    };
+
+    /** Reads all rows of an OpIterator, sorted. */
+    private static ArrayList<ArrayList<Integer>> tuples(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext()) rows.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        Collections.sort(rows, ORDER);
+        return rows;
+    }
+
+    /** Reads all rows of a BatchIterator, sorted. */
+    private static ArrayList<ArrayList<Integer>> batches(BatchIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        TupleBatch b;
+        while ((b = it.nextBatch()) != null) {
+            assertTrue(b.size() > 0);
+            for (int i = 0; i < b.size(); i++) rows.add(SystemTestUtil.tupleToList(b.getTuple(i)));
+        }
+        it.close();
+        Collections.sort(rows, ORDER);
+        return rows;
+    }
+
+    private static OpIterator scanFilterProject(TransactionId tid, DbFile table) {
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Filter f = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(300)), ss);
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(0);
+        ArrayList<Type> types = new ArrayList<Type>();
+        types.add(Type.INT_TYPE);
+        types.add(Type.INT_TYPE);
+        return new Project(fields, types, f);
+    }
+
+    /**
+     * A scan, filter and projection return the same rows a batch at a time
+     * as a tuple at a time, also through a BatchOpIterator.
+     */
+    @Test public void scanFilterProject() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 5000, 1000, null, null);
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> expected = tuples(scanFilterProject(tid, table));
+        assertTrue(expected.size() > TupleBatch.DEFAULT_SIZE);
+        assertEquals(expected, batches((BatchIterator) scanFilterProject(tid, table)));
+        assertEquals(expected, tuples(new BatchOpIterator((BatchIterator) scanFilterProject(tid, table))));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Grouped aggregates are the same when read in batches.
+     */
+    @Test public void aggregate() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 3000, 50, null, null);
+        TransactionId tid = new TransactionId();
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MIN,
+                Aggregator.Op.MAX, Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+            Aggregate tupleAgg = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, op);
+            Aggregate batchAgg = new Aggregate(new SeqScan(tid, table.getId(), ""), 1, 0, op);
+            assertEquals(tuples(tupleAgg), batches(batchAgg));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A hash join returns the same rows in batches, when a probe row has
+     * more matches than fit in one batch, when a child only implements
+     * OpIterator, and when the build side is bigger than MAP_SIZE.
+     */
+    @Test public void hashJoin() throws IOException, DbException, TransactionAbortedException {
+        HeapFile left = SystemTestUtil.createRandomHeapFile(2, HashEquiJoin.MAP_SIZE + 3000, 20, null, null);
+        HeapFile right = SystemTestUtil.createRandomHeapFile(2, 200, 20, null, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        ArrayList<ArrayList<Integer>> expected = tuples(new HashEquiJoin(p,
+                new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), "")));
+        assertTrue(expected.size() > 10 * TupleBatch.DEFAULT_SIZE);
+        assertEquals(expected, batches(new HashEquiJoin(p,
+                new SeqScan(tid, left.getId(), ""), new SeqScan(tid, right.getId(), ""))));
+        assertEquals(expected, batches(new HashEquiJoin(p,
+                new SeqScan(tid, left.getId(), ""),
+                new BatchOpIterator(new SeqScan(tid, right.getId(), "")))));
+
+        // rewinding starts the join over
+        HashEquiJoin join = new HashEquiJoin(p,
+                new SeqScan(tid, right.getId(), ""), new SeqScan(tid, right.getId(), ""));
+        ArrayList<ArrayList<Integer>> once = tuples(join);
+        join.open();
+        int n = 0;
+        while (join.hasNext()) { join.next(); n++; }
+        join.rewind();
+        while (join.hasNext()) { join.next(); n++; }
+        join.close();
+        assertEquals(2 * once.size(), n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A scan of a table in each page format returns the same rows a batch
+     * at a time as a tuple at a time, with string columns and with only
+     * some columns asked for.
+     */
+    @Test public void scanFormats() throws IOException, DbException, TransactionAbortedException {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+                new String[] { "a", "b", "c" });
+        // the inserted pages stay dirty in the buffer pool
+        Database.resetBufferPool(500);
+        for (HeapFile.Format format : HeapFile.Format.values()) {
+            File f = File.createTempFile("batch", ".dat");
+            f.deleteOnExit();
+            HeapFile table = new HeapFile(f, td, format);
+            Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < 3000; i++) {
+                Tuple t = new Tuple(td);
+                t.setField(0, new IntField(i));
+                t.setField(1, new StringField("row" + i, Type.STRING_LEN));
+                t.setField(2, new IntField(-i));
+                Database.getBufferPool().insertTuple(tid, table.getId(), t);
+            }
+            // a hole on the first page
+            SeqScan first = new SeqScan(tid, table.getId(), "");
+            first.open();
+            Database.getBufferPool().deleteTuple(tid, first.next());
+            first.close();
+
+            BitSet some = new BitSet();
+            some.set(1);
+            for (BitSet columns : new BitSet[] { null, some }) {
+                SeqScan ss = new SeqScan(tid, table.getId(), "");
+                ss.setColumns(columns);
+                ArrayList<String> expected = new ArrayList<String>();
+                ss.open();
+                while (ss.hasNext()) expected.add(row(ss.next(), columns));
+                ss.close();
+                assertEquals(format.toString(), 2999, expected.size());
+
+                ArrayList<String> actual = new ArrayList<String>();
+                ss.open();
+                TupleBatch b;
+                while ((b = ss.nextBatch()) != null) {
+                    for (int i = 0; i < b.size(); i++) actual.add(row(b.getTuple(i), columns));
+                }
+                ss.close();
+                assertEquals(format.toString(), expected, actual);
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    // the fields of t that are in columns (all of them if columns is null)
+    private static String row(Tuple t, BitSet columns) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            if (columns == null || columns.get(i)) sb.append(t.getField(i)).append('|');
+        }
+        return sb.toString();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void nextBatchBeforeOpen() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        new SeqScan(new TransactionId(), table.getId(), "").nextBatch();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchTest.class);
+    }
+}
@@ -2,9 +2,12 @@ package simpledb.systemtest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 import simpledb.*;
 
@@ -69,6 +72,128 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * A HashEquiJoin whose build side is bigger than MAP_SIZE partitions
+     * both sides to disk and still reads its probe side only once.
+     */
+    @Test public void testHashJoinSpill()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3 * HashEquiJoin.MAP_SIZE, 5000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 2000, 5000, null, t2Tuples);
+
+        HashMap<Integer, ArrayList<ArrayList<Integer>>> byKey = new HashMap<Integer, ArrayList<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            if (!byKey.containsKey(t1.get(0))) byKey.put(t1.get(0), new ArrayList<ArrayList<Integer>>());
+            byKey.get(t1.get(0)).add(t1);
+        }
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t2 : t2Tuples) {
+            if (!byKey.containsKey(t2.get(0))) continue;
+            for (ArrayList<Integer> t1 : byKey.get(t2.get(0))) {
+                ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                out.addAll(t2);
+                expectedResults.add(out);
+            }
+        }
+        Comparator<ArrayList<Integer>> order = new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                for (int i = 0; i < a.size(); i++) {
+                    int c = a.get(i).compareTo(b.get(i));
+                    if (c != 0) return c;
+                }
+                return 0;
+            }
+        };
+        Collections.sort(expectedResults, order);
+
+        TransactionId tid = new TransactionId();
+        final int[] rewinds = new int[1];
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "") {
+            private static final long serialVersionUID = 1L;
+            public void rewind() throws DbException, TransactionAbortedException {
+                rewinds[0]++;
+                super.rewind();
+            }
+        };
+        HashEquiJoin joinOp = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), ss1, ss2);
+
+        ArrayList<ArrayList<Integer>> results = new ArrayList<ArrayList<Integer>>();
+        joinOp.open();
+        while (joinOp.hasNext()) results.add(SystemTestUtil.tupleToList(joinOp.next()));
+        joinOp.close();
+        Collections.sort(results, order);
+        assertEquals(expectedResults, results);
+        assertEquals(0, rewinds[0]);
+
+        // the same in batches
+        results.clear();
+        joinOp.open();
+        TupleBatch b;
+        while ((b = joinOp.nextBatch()) != null) {
+            for (int i = 0; i < b.size(); i++) results.add(SystemTestUtil.tupleToList(b.getTuple(i)));
+        }
+        joinOp.close();
+        Collections.sort(results, order);
+        assertEquals(expectedResults, results);
+        assertEquals(0, rewinds[0]);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A SortMergeJoin of two B+ tree scans, which are sorted on their key
+     * fields, joins duplicate keys on both sides without sorting either.
+     */
+    @Test public void testSortMergeJoinBTree()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table1 = BTreeUtility.createRandomBTreeFile(COLUMNS, 3000, 300, null, t1Tuples, 0);
+        Database.getCatalog().addTable(table1, SystemTestUtil.getUUID());
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 2000, 300, null, t2Tuples, 0);
+        Database.getCatalog().addTable(table2, SystemTestUtil.getUUID());
+
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN }) {
+            ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+            int n = 0;
+            for (ArrayList<Integer> t1 : t1Tuples) {
+                for (ArrayList<Integer> t2 : t2Tuples) {
+                    if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                        // the full GREATER_THAN result is too big to match tuple by tuple
+                        if (op == Predicate.Op.EQUALS) {
+                            ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                            out.addAll(t2);
+                            expectedResults.add(out);
+                        }
+                        n++;
+                    }
+                }
+            }
+
+            TransactionId tid = new TransactionId();
+            SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+            SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+            SortMergeJoin joinOp = new SortMergeJoin(new JoinPredicate(0, op, 0), ss1, ss2);
+            if (op == Predicate.Op.EQUALS) {
+                SystemTestUtil.matchTuples(joinOp, expectedResults);
+            } else {
+                joinOp.open();
+                int count = 0;
+                while (joinOp.hasNext()) {
+                    joinOp.next();
+                    count++;
+                }
+                assertEquals(n, count);
+            }
+            joinOp.close();
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -2,6 +2,7 @@ package simpledb.systemtest;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
@@ -37,6 +38,23 @@ public class LogTest extends SimpleDbTestBase {
         insert.close();
     }
 
+    // insert rows (first, 0) .. (first + n - 1, 0) with a bulk load
+    void bulkInsert(HeapFile hf, Transaction t, int first, int n)
+        throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            Tuple value = new Tuple(Utility.getTupleDesc(2));
+            value.setField(0, new IntField(first + i));
+            value.setField(1, new IntField(0));
+            rows.add(value);
+        }
+        Insert insert = new Insert(t.getId(), new TupleIterator(Utility.getTupleDesc(2), rows), hf.getId());
+        insert.setBulkLoad(true);
+        insert.open();
+        assertEquals(n, ((IntField)insert.next().getField(0)).getValue());
+        insert.close();
+    }
+
     // check that the specified tuple is, or is not, present
     void look(HeapFile hf, Transaction t, int v1, boolean present)
         throws DbException, TransactionAbortedException {
@@ -427,6 +445,178 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestRecoveryStatistics()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts but does not commit, T2 inserts and commits
+        // crash: T2 is redone and T1 undone
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 30, 0);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+        doInsert(hf2, 31, -1);
+
+        crash();
+        assertTrue(Database.getLogFile().getRecoveryRecordsScanned() > 0);
+        assertEquals(1, Database.getLogFile().getRecoveryPagesUndone());
+        assertTrue(Database.getLogFile().getRecoveryPagesRedone() >= 1);
+
+        // *** Test:
+        // recovery ends with a checkpoint, so crashing again has
+        // nothing left to redo or undo
+        crash();
+        assertEquals(1, Database.getLogFile().getRecoveryRecordsScanned());
+        assertEquals(0, Database.getLogFile().getRecoveryPagesRedone());
+        assertEquals(0, Database.getLogFile().getRecoveryPagesUndone());
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 30, false);
+        look(hf2, t, 31, true);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        final LogFile log = Database.getLogFile();
+        final int threads = 8;
+
+        // *** Test:
+        // concurrent commits share forces of the log
+        // all transactions start before any commits, so that the commits
+        // arrive together even on a loaded machine
+        log.setGroupCommitBatch(1000000, threads);
+        long forces = log.getForceCount();
+        final Exception[] errors = new Exception[threads];
+        final CountDownLatch started = new CountDownLatch(threads);
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int me = i;
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = new Transaction();
+                        t.start();
+                        started.countDown();
+                        started.await();
+                        t.commit();
+                    } catch (Exception e) {
+                        errors[me] = e;
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread committer : committers) {
+            committer.join();
+        }
+        for (Exception e : errors) {
+            assertNull(e);
+        }
+        assertTrue(log.getForceCount() - forces < threads);
+
+        // *** Test:
+        // commits are still durable
+        log.setGroupCommitBatch(0, 64);
+        doInsert(hf1, 1, 2);
+        crash();
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommitDirtyPages()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        final LogFile log = Database.getLogFile();
+        final int threads = 8;
+
+        // *** Test:
+        // transactions that dirtied pages also share the forces of their
+        // page records, which are forced outside the buffer pool's lock
+        final HeapFile[] tables = new HeapFile[threads];
+        for (int i = 0; i < threads; i++) {
+            File f = File.createTempFile("group", ".dat");
+            f.deleteOnExit();
+            tables[i] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+        log.setGroupCommitBatch(1000000, threads);
+        long forces = log.getForceCount();
+        final Exception[] errors = new Exception[threads];
+        Thread[] committers = new Thread[threads];
+        final CountDownLatch inserted = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final int me = i;
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = new Transaction();
+                        t.start();
+                        insertRow(tables[me], t, me, 0);
+                        inserted.countDown();
+                        inserted.await();
+                        t.commit();
+                    } catch (Exception e) {
+                        errors[me] = e;
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread committer : committers) {
+            committer.join();
+        }
+        for (Exception e : errors) {
+            assertNull(e);
+        }
+        assertTrue(log.getForceCount() - forces < threads);
+        log.setGroupCommitBatch(0, 64);
+    }
+
+    @Test public void TestBulkLoad()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // bulk loads are undone by abort and by recovery, and committed
+        // ones survive a crash
+        Transaction t1 = new Transaction();
+        t1.start();
+        bulkInsert(hf1, t1, 10, 600);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bulkInsert(hf1, t2, 1000, 600);
+        look(hf1, t2, 1599, true);
+        t2.abort();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        bulkInsert(hf1, t3, 2000, 600);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 10, true);
+        look(hf1, t, 609, true);
+        look(hf1, t, 1000, false);
+        look(hf1, t, 1599, false);
+        look(hf1, t, 2000, false);
+        look(hf1, t, 2599, false);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);